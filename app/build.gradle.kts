@@ -41,6 +41,7 @@ android {
 
 dependencies {
 
+    implementation(project(":transfer-core"))
     implementation(libs.androidx.core.ktx)
     implementation(libs.androidx.lifecycle.runtime.ktx)
     implementation(libs.androidx.activity.compose)
@@ -0,0 +1,99 @@
+package com.blueorion.wifidirecttransfer;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory for files that were written and closed, or moved in, and reports
+ * them in batches. A burst of captures is delivered once the directory has been quiet for
+ * {@link #QUIET_MILLIS}, and files that keep coming are delivered at least every
+ * {@link #MAX_DELAY_MILLIS}. A file the camera is still writing is only reported once it
+ * is closed; hidden files, such as the pending files MediaStore writes before renaming
+ * them, are ignored. Batches are delivered on the watcher's own thread.
+ */
+public class CameraWatcher implements DirectoryWatcher {
+    private static final String TAG = "CameraWatcher";
+    static final long QUIET_MILLIS = 2000;
+    static final long MAX_DELAY_MILLIS = 10000;
+
+    private final File directory;
+    private final Listener listener;
+    private final FileObserver observer;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Set<String> pending = new HashSet<>();
+    private long firstPendingNanos;
+    private ScheduledFuture<?> scheduledFlush;
+
+    public CameraWatcher(File directory, Listener listener) {
+        this.directory = directory;
+        this.listener = listener;
+        this.observer = new FileObserver(directory, FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                // Events on the directory itself come without a name
+                if (path != null && !path.startsWith(".")) {
+                    fileWritten(path);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void start() {
+        observer.startWatching();
+        Log.d(TAG, "Watching " + directory);
+    }
+
+    /**
+     * Stops watching. Files still waiting for their batch are dropped; the next sync finds
+     * them in its manifest.
+     */
+    @Override
+    public void stop() {
+        observer.stopWatching();
+        executor.shutdownNow();
+    }
+
+    private synchronized void fileWritten(String fileName) {
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstPendingNanos = now;
+        }
+        pending.add(fileName);
+
+        // Every new file restarts the quiet period, but never beyond the maximum delay of the batch
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+        }
+        long untilMax = MAX_DELAY_MILLIS - TimeUnit.NANOSECONDS.toMillis(now - firstPendingNanos);
+        long delay = Math.max(0, Math.min(QUIET_MILLIS, untilMax));
+        try {
+            scheduledFlush = executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile
+            pending.clear();
+        }
+    }
+
+    private void flush() {
+        Set<String> fileNames;
+        synchronized (this) {
+            fileNames = new HashSet<>(pending);
+            pending.clear();
+            scheduledFlush = null;
+        }
+        if (!fileNames.isEmpty()) {
+            Log.d(TAG, fileNames.size() + " files written in " + directory);
+            listener.onFilesWritten(fileNames);
+        }
+    }
+}
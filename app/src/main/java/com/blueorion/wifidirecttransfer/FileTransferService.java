@@ -1,37 +1,45 @@
 package com.blueorion.wifidirecttransfer;
 
 import android.content.Context;
-import android.net.wifi.p2p.WifiP2pInfo;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class FileTransferService {
     private static final String TAG = "FileTransferService";
     private static final int PORT = 8988;
-    private static final int SOCKET_TIMEOUT = 10000;
+    // Sends beyond the pooled connections per host would only wait for one to become free
+    private static final int DEFAULT_SEND_PARALLELISM = 2;
+    private static final int SEND_QUEUE_CAPACITY = 64;
+    // A Wi-Fi Direct group has a handful of clients
+    private static final int RECEIVE_PARALLELISM = 8;
+    private static final int RECEIVE_QUEUE_CAPACITY = 8;
 
     private Context context;
     private InetAddress hostAddress;
     private ServerSocket serverSocket;
+    private final MainThreadExecutor mainThread = new MainThreadExecutor();
+    // The accept loop has a thread of its own so it never holds up sends or receives; one per startReceiving
+    private ExecutorService serverExecutor;
+    // Not shut down by stop(), so the service can send and receive again afterwards
+    private final TransferExecutor sendExecutor =
+            new TransferExecutor("send", DEFAULT_SEND_PARALLELISM, SEND_QUEUE_CAPACITY);
+    private final TransferExecutor receiveExecutor =
+            new TransferExecutor("receive", RECEIVE_PARALLELISM, RECEIVE_QUEUE_CAPACITY);
 
     public FileTransferService(Context context) {
         this.context = context;
+        LogcatSink.install();
     }
 
     // Prepare to send files to host
@@ -39,164 +47,155 @@ public class FileTransferService {
         this.hostAddress = hostAddress;
     }
 
-    // Start receiving files (for host devices)
-    public void startReceiving(InetAddress groupOwnerAddress) {
-        new ServerAsyncTask().execute();
+    // How many queued files are sent at the same time
+    public void setSendParallelism(int parallelism) {
+        sendExecutor.setParallelism(parallelism);
     }
 
-    // Send a file to the host
-    public void sendFile(File file) {
-        if (hostAddress == null) {
-            Toast.makeText(context, "No host address available", Toast.LENGTH_SHORT).show();
+    // Start receiving files (for host devices)
+    public synchronized void startReceiving(InetAddress groupOwnerAddress) {
+        if (serverExecutor != null) {
+            Log.w(TAG, "Already receiving");
             return;
         }
-
-        new ClientAsyncTask(file).execute();
-    }
-
-    // Class to represent file metadata
-    public static class FileTransferData implements Serializable {
-        private static final long serialVersionUID = 1L;
-
-        String fileName;
-        long fileSize;
-
-        public FileTransferData(String fileName, long fileSize) {
-            this.fileName = fileName;
-            this.fileSize = fileSize;
-        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        serverExecutor = executor;
+        executor.execute(() -> acceptConnections(executor));
     }
 
-    // AsyncTask for server operations (receiving files)
-    private class ServerAsyncTask extends AsyncTask<Void, Void, String> {
-        @Override
-        protected String doInBackground(Void... params) {
-            try {
-                serverSocket = new ServerSocket(PORT);
-                Log.d(TAG, "Server socket opened, waiting for connections");
-
-                while (true) {
-                    Socket client = serverSocket.accept();
-                    Log.d(TAG, "Client connected: " + client.getInetAddress());
-
-                    // Get file metadata
-                    ObjectInputStream ois = new ObjectInputStream(client.getInputStream());
-                    FileTransferData fileData = (FileTransferData) ois.readObject();
-
-                    // Create output file in DCIM/Camera directory
-                    File cameraDir = new File(Environment.getExternalStoragePublicDirectory(
-                            Environment.DIRECTORY_DCIM), "Camera");
-                    if (!cameraDir.exists()) {
-                        cameraDir.mkdirs();
-                    }
-
-                    File outputFile = new File(cameraDir, fileData.fileName);
-                    FileOutputStream fos = new FileOutputStream(outputFile);
-
-                    // Receive file contents
-                    InputStream inputStream = client.getInputStream();
-                    byte[] buffer = new byte[1024];
-                    int bytesRead;
-                    long totalRead = 0;
-
-                    while (totalRead < fileData.fileSize &&
-                            (bytesRead = inputStream.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
-                    }
-
-                    // Clean up
-                    fos.close();
+    // Accept connections until stop() closes the server socket
+    private void acceptConnections(ExecutorService executor) {
+        ServerSocket socket = null;
+        try {
+            socket = new ServerSocket(PORT);
+            synchronized (this) {
+                if (executor.isShutdown()) {
+                    // stop() ran before the socket was open
+                    socket.close();
+                    return;
+                }
+                serverSocket = socket;
+            }
+            Log.d(TAG, "Server socket opened, waiting for connections");
+
+            File cameraDir = new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_DCIM), "Camera");
+            while (true) {
+                Socket client = socket.accept();
+                Log.d(TAG, "Client connected: " + client.getInetAddress());
+
+                // Senders keep their connections open between files, so each is received on its own
+                try {
+                    receiveExecutor.submit(token -> {
+                        token.closeOnCancel(client);
+                        receiveFiles(client, cameraDir);
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Too many senders, closing connection from " + client.getInetAddress());
                     client.close();
-
-                    Log.d(TAG, "File received: " + outputFile.getAbsolutePath());
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                Log.e(TAG, "Error receiving file", e);
-                return "Error receiving file: " + e.getMessage();
-            } finally {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    try {
-                        serverSocket.close();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error closing server socket", e);
-                    }
+            }
+        } catch (IOException e) {
+            if (socket != null && socket.isClosed()) {
+                Log.d(TAG, "Server socket closed");
+                return;
+            }
+            Log.e(TAG, "Error receiving file", e);
+            showToast("Error receiving file: " + e.getMessage());
+        } finally {
+            if (socket != null && !socket.isClosed()) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing server socket", e);
+                }
+            }
+            // A loop that ended on an error leaves the service free to start receiving again
+            synchronized (this) {
+                if (serverExecutor == executor) {
+                    executor.shutdown();
+                    serverExecutor = null;
                 }
             }
         }
+    }
 
-        @Override
-        protected void onPostExecute(String result) {
-            if (result != null) {
-                Toast.makeText(context, result, Toast.LENGTH_SHORT).show();
+    // Receive the files sent on one connection until the sender ends it
+    private void receiveFiles(Socket client, File destinationDir) {
+        try {
+            int filesReceived = SingleFileTransfer.receive(client, destinationDir);
+            Log.d(TAG, "Files received: " + filesReceived);
+        } catch (IOException e) {
+            Log.e(TAG, "Error receiving file", e);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Ignore errors on close
             }
         }
     }
 
-    // AsyncTask for client operations (sending files)
-    private class ClientAsyncTask extends AsyncTask<Void, Void, String> {
-        private File file;
-
-        ClientAsyncTask(File file) {
-            this.file = file;
+    /**
+     * Queues a file to be sent to the host
+     * @return Token to cancel the send with, or null if the file was not queued
+     */
+    public CancellationToken sendFile(File file) {
+        if (hostAddress == null) {
+            Toast.makeText(context, "No host address available", Toast.LENGTH_SHORT).show();
+            return null;
         }
 
-        @Override
-        protected String doInBackground(Void... params) {
-            Socket socket = new Socket();
-
-            try {
-                Log.d(TAG, "Opening client socket to " + hostAddress);
-                socket.bind(null);
-                socket.connect(new InetSocketAddress(hostAddress, PORT), SOCKET_TIMEOUT);
-
-                Log.d(TAG, "Client socket connected. Sending file: " + file.getName());
-
-                // Send file metadata
-                FileTransferData fileData = new FileTransferData(file.getName(), file.length());
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-                oos.writeObject(fileData);
-
-                // Send file contents
-                OutputStream outputStream = socket.getOutputStream();
-                FileInputStream fis = new FileInputStream(file);
-
-                byte[] buffer = new byte[1024];
-                int bytesRead;
+        InetSocketAddress address = new InetSocketAddress(hostAddress, PORT);
+        try {
+            // The pool's sockets are channels, so cancelling interrupts a send mid-file
+            return sendExecutor.submit(token -> showToast(send(address, file, token)));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Send queue full, not sending " + file.getName());
+            Toast.makeText(context, "Too many files queued", Toast.LENGTH_SHORT).show();
+            return null;
+        }
+    }
 
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+    private String send(InetSocketAddress address, File file, CancellationToken token) {
+        try {
+            Log.d(TAG, "Sending file: " + file.getName() + " to " + hostAddress);
 
-                fis.close();
-                outputStream.close();
+            // Send the file as frames over a pooled connection and wait for the host to verify it
+            if (!ConnectionPool.get().send(this, address, file)) {
+                Log.e(TAG, "File failed verification");
+                return "File failed verification";
+            }
 
-                Log.d(TAG, "File sent successfully");
-                return "File sent successfully";
+            Log.d(TAG, "File sent successfully");
+            return "File sent successfully";
 
-            } catch (IOException e) {
-                Log.e(TAG, "Error sending file", e);
-                return "Error sending file: " + e.getMessage();
-            } finally {
-                // Clean up
-                if (socket != null && socket.isConnected()) {
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        // Ignore errors on close
-                    }
-                }
+        } catch (IOException e) {
+            if (token.isCancelled()) {
+                Log.d(TAG, "Send cancelled: " + file.getName());
+                return "Send cancelled: " + file.getName();
             }
+            Log.e(TAG, "Error sending file", e);
+            return "Error sending file: " + e.getMessage();
         }
+    }
 
-        @Override
-        protected void onPostExecute(String result) {
-            Toast.makeText(context, result, Toast.LENGTH_SHORT).show();
-        }
+    private void showToast(String message) {
+        mainThread.execute(() -> Toast.makeText(context, message, Toast.LENGTH_SHORT).show());
     }
 
-    // Stop the service and clean up
-    public void stop() {
+    // Stop the service and clean up: queued sends are dropped, running transfers cancelled.
+    // The service may be started again afterwards.
+    public synchronized void stop() {
+        // Shut down first, so an accept loop still opening its socket closes it again
+        if (serverExecutor != null) {
+            serverExecutor.shutdownNow();
+            serverExecutor = null;
+        }
+        sendExecutor.cancelAll();
+        receiveExecutor.cancelAll();
+        // The pool is shared with the other senders of the app, so only our connections are closed
+        ConnectionPool.get().closeIdle(this);
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 serverSocket.close();
@@ -204,5 +203,6 @@ public class FileTransferService {
                 Log.e(TAG, "Error closing server socket", e);
             }
         }
+        serverSocket = null;
     }
-}
\ No newline at end of file
+}
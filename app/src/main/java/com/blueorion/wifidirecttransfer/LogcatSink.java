@@ -0,0 +1,28 @@
+package com.blueorion.wifidirecttransfer;
+
+import android.util.Log;
+
+/**
+ * Sends the log of the transfer core to logcat
+ */
+public final class LogcatSink implements TransferLog.Sink {
+    private static boolean installed;
+
+    private LogcatSink() {
+    }
+
+    public static synchronized void install() {
+        if (!installed) {
+            TransferLog.setSink(new LogcatSink());
+            installed = true;
+        }
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable error) {
+        if (error != null) {
+            message += '\n' + Log.getStackTraceString(error);
+        }
+        Log.println(priority, tag, message);
+    }
+}
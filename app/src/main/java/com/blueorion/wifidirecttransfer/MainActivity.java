@@ -122,8 +122,8 @@ public class MainActivity extends AppCompatActivity  implements WifiP2pManager.C
 
 
         fileSyncManager = new FileSyncManager(this);
-        //fileSyncManager.setListener((FileSyncManager.FileSyncListener) this);
-        fileSyncManager.setListener(new FileSyncManager.FileSyncListener() {
+        //fileSyncManager.setListener((SyncEngine.Listener) this);
+        fileSyncManager.setListener(new SyncEngine.Listener() {
             @Override
             public void onTransferProgress(int progress, int total) {
 
@@ -134,6 +134,16 @@ public class MainActivity extends AppCompatActivity  implements WifiP2pManager.C
 
             }
 
+            @Override
+            public void onFileSkipped(String fileName) {
+
+            }
+
+            @Override
+            public void onFileProgress(List<ProgressReporter.Update> updates) {
+
+            }
+
             @Override
             public void onTransferComplete(int fileCount) {
 
@@ -144,6 +154,21 @@ public class MainActivity extends AppCompatActivity  implements WifiP2pManager.C
 
             }
 
+            @Override
+            public void onClientProgress(String clientAddress, int progress, int total) {
+                Log.d(TAG, "Receiving from " + clientAddress + ": " + progress + "/" + total);
+            }
+
+            @Override
+            public void onClientComplete(String clientAddress, int fileCount) {
+                Log.d(TAG, "Received " + fileCount + " files from " + clientAddress);
+            }
+
+            @Override
+            public void onClientError(String clientAddress, String errorMessage) {
+                Log.e(TAG, "Sync with " + clientAddress + " failed: " + errorMessage);
+            }
+
             @Override
             public void onFileSyncStarted() {
                 // Implement what should happen when file sync starts
@@ -659,6 +684,7 @@ public class MainActivity extends AppCompatActivity  implements WifiP2pManager.C
             Intent intent = new Intent(MainActivity.this, SyncActivity.class);
             intent.putExtra("connectionInfo", connectionInfo);
             intent.putExtra("SERVER_ADDRESS", hostAddress);
+            intent.putExtra("DEVICE_ADDRESS", connectedDevice.deviceAddress);
             startActivity(intent);
         } else {
             Toast.makeText(this, "No active connection", Toast.LENGTH_SHORT).show();
@@ -0,0 +1,21 @@
+package com.blueorion.wifidirecttransfer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs the callbacks of the transfer core on the main thread
+ */
+public class MainThreadExecutor implements CallbackExecutor {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void executeDelayed(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+}
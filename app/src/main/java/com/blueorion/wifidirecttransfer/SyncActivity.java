@@ -1,9 +1,13 @@
 package com.blueorion.wifidirecttransfer;
 
+import android.Manifest;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 import android.view.View;
@@ -12,18 +16,20 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.activity.OnBackPressedCallback;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public abstract class SyncActivity extends AppCompatActivity implements FileSyncManager.FileSyncListener {
+public abstract class SyncActivity extends AppCompatActivity implements SyncEngine.Listener {
     private static final String TAG = "SyncActivity";
+    private static final int NOTIFICATION_PERMISSION_REQUEST_CODE = 200;
 
     // UI Components
     private TextView statusText;
@@ -33,10 +39,12 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
     private Button actionButton;
     private Button cancelButton;
 
-    // Sync Components
+    // Sync Components, the sync itself runs in SyncService
     private FileSyncManager fileSyncManager;
+    private boolean serviceBound;
     private String serverAddress;
-    private List<File> availableFiles = new ArrayList<>();
+    private String deviceAddress;
+    private List<FileIndex.Entry> availableFiles = new ArrayList<>();
     private ExecutorService scanExecutor;
     private final AtomicBoolean isSyncing = new AtomicBoolean(false);
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
@@ -53,6 +61,8 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
             finish();
             return;
         }
+        // Identifies the server device for its tuned link profile
+        deviceAddress = getIntent().getStringExtra("DEVICE_ADDRESS");
 
         // Initialize UI components
         statusText = findViewById(R.id.statusText);
@@ -62,9 +72,8 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         actionButton = findViewById(R.id.actionButton);
         cancelButton = findViewById(R.id.cancelButton);
 
-        // Initialize FileSyncManager
-        fileSyncManager = new FileSyncManager(this);
-        fileSyncManager.setListener(this);
+        // Follow the sync service once it runs
+        serviceBound = bindService(new Intent(this, SyncService.class), serviceConnection, 0);
 
         // Set up button click listeners
         actionButton.setOnClickListener(v -> handleActionButtonClick());
@@ -74,10 +83,7 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         getOnBackPressedDispatcher().addCallback(this, new OnBackPressedCallback(true) {
             @Override
             public void handleOnBackPressed() {
-                if (isSyncing.get()) {
-                    // Don't allow back press during sync
-                    return;
-                }
+                // A running sync carries on in the background
                 finish();
             }
         });
@@ -95,8 +101,27 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         if (scanExecutor != null) {
             scanExecutor.shutdownNow();
         }
+        if (fileSyncManager != null) {
+            fileSyncManager.setListener(null);
+        }
+        if (serviceBound) {
+            unbindService(serviceConnection);
+        }
     }
 
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            fileSyncManager = ((SyncService.LocalBinder) service).getService().getFileSyncManager();
+            fileSyncManager.setListener(SyncActivity.this);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            fileSyncManager = null;
+        }
+    };
+
     /**
      * Scans for available files in the DCIM/Camera directory
      */
@@ -108,24 +133,12 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         scanExecutor = Executors.newSingleThreadExecutor();
         scanExecutor.execute(() -> {
             try {
-                // Get files from DCIM/Camera
-                File sourceDir = new File(
-                        Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
-                        "Camera");
-
-                availableFiles.clear();
-
-                if (sourceDir.exists() && sourceDir.isDirectory()) {
-                    File[] files = sourceDir.listFiles(file -> file.isFile() && !file.isHidden());
-                    if (files != null) {
-                        for (File file : files) {
-                            availableFiles.add(file);
-                        }
-                    }
-                }
+                // Get files from DCIM/Camera; the index only stats and hashes what changed
+                List<FileIndex.Entry> files = FileSyncManager.cameraIndex(getApplicationContext()).refresh();
 
                 // Update UI on main thread
                 mainHandler.post(() -> {
+                    availableFiles = files;
                     int fileCount = availableFiles.size();
                     filesCountText.setText(getString(R.string.files_found, fileCount));
 
@@ -159,6 +172,23 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
                 startSync();
                 break;
 
+            case SYNCING:
+                // Disconnect right away; the host keeps what it received for the resume
+                SyncSession running = currentSession();
+                if (running != null) {
+                    running.pause();
+                    updateUIState(SyncState.PAUSED);
+                }
+                break;
+
+            case PAUSED:
+                SyncSession paused = currentSession();
+                if (paused != null) {
+                    paused.resume();
+                }
+                updateUIState(SyncState.SYNCING);
+                break;
+
             case COMPLETE:
             case ERROR:
             case NO_FILES:
@@ -175,6 +205,12 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         // Cancel ongoing sync
         if (isSyncing.getAndSet(false)) {
             updateUIState(SyncState.CANCELLING);
+            // Close the connections now instead of finishing the files in flight
+            SyncSession session = currentSession();
+            if (session != null) {
+                session.cancel();
+            }
+            SyncService.stop(this);
 
             // Give a brief moment to show cancelling state
             mainHandler.postDelayed(() -> {
@@ -184,6 +220,13 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         }
     }
 
+    /**
+     * The sync run by the service, or null before the service is bound
+     */
+    private SyncSession currentSession() {
+        return fileSyncManager != null ? fileSyncManager.getSyncSession() : null;
+    }
+
     /**
      * Starts the sync process
      */
@@ -193,8 +236,30 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         progressBar.setProgress(0);
         progressText.setText(getString(R.string.progress_format, 0, availableFiles.size()));
 
-        // Start the sync process
-        fileSyncManager.startClientSync(serverAddress);
+        // The service shows its progress as a notification, which needs the permission first
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[] {Manifest.permission.POST_NOTIFICATIONS},
+                    NOTIFICATION_PERMISSION_REQUEST_CODE);
+            return;
+        }
+        // Start the sync service, which keeps sending new captures until cancelled
+        SyncService.start(this, serverAddress, deviceAddress);
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+
+        // A sync cancelled while the permission was asked for is not started
+        if (requestCode != NOTIFICATION_PERMISSION_REQUEST_CODE || !isSyncing.get()) {
+            return;
+        }
+        if (grantResults.length == 0 || grantResults[0] != PackageManager.PERMISSION_GRANTED) {
+            // The sync works without the notification, it just runs unseen
+            Log.w(TAG, "Notification permission denied, syncing without a progress notification");
+        }
+        SyncService.start(this, serverAddress, deviceAddress);
     }
 
     /**
@@ -234,13 +299,25 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
                 break;
 
             case SYNCING:
-                actionButton.setVisibility(View.INVISIBLE);
+                actionButton.setVisibility(View.VISIBLE);
+                actionButton.setText(R.string.pause);
+                actionButton.setEnabled(true);
                 cancelButton.setVisibility(View.VISIBLE);
                 progressBar.setVisibility(View.VISIBLE);
                 progressBar.setIndeterminate(false);
                 statusText.setText(R.string.syncing_in_progress);
                 break;
 
+            case PAUSED:
+                actionButton.setVisibility(View.VISIBLE);
+                actionButton.setText(R.string.resume);
+                actionButton.setEnabled(true);
+                cancelButton.setVisibility(View.VISIBLE);
+                progressBar.setVisibility(View.VISIBLE);
+                progressBar.setIndeterminate(false);
+                statusText.setText(R.string.sync_paused);
+                break;
+
             case CANCELLING:
                 actionButton.setVisibility(View.INVISIBLE);
                 cancelButton.setVisibility(View.INVISIBLE);
@@ -269,7 +346,7 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         }
     }
 
-    // FileSyncListener implementation
+    // SyncEngine.Listener implementation
     @Override
     public void onTransferProgress(int progress, int total) {
         if (!isSyncing.get()) {
@@ -279,7 +356,10 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         progressBar.setMax(total);
         progressBar.setProgress(progress);
         progressText.setText(getString(R.string.progress_format, progress, total));
-        statusText.setText(getString(R.string.syncing_progress, progress, total));
+        // Updates sent before the pause may still arrive
+        if (actionButton.getTag() != SyncState.PAUSED) {
+            statusText.setText(getString(R.string.syncing_progress, progress, total));
+        }
     }
 
     @Override
@@ -291,6 +371,27 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         // You could add a recent files list here if desired
     }
 
+    @Override
+    public void onFileSkipped(String fileName) {
+        // Files the host already has are not sent again
+    }
+
+    @Override
+    public void onFileProgress(List<ProgressReporter.Update> updates) {
+        if (!isSyncing.get()) {
+            return; // Ignore updates if sync was cancelled
+        }
+
+        // Show the most recently updated file that is still in flight
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            ProgressReporter.Update update = updates.get(i);
+            if (!update.finished) {
+                progressText.setText(getString(R.string.file_progress_format, update.fileName, update.percent()));
+                return;
+            }
+        }
+    }
+
     @Override
     public void onTransferComplete(int fileCount) {
         if (!isSyncing.get()) {
@@ -309,6 +410,19 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         updateUIState(SyncState.ERROR);
     }
 
+    // Host side callbacks, not used while this device syncs as a client
+    @Override
+    public void onClientProgress(String clientAddress, int progress, int total) {
+    }
+
+    @Override
+    public void onClientComplete(String clientAddress, int fileCount) {
+    }
+
+    @Override
+    public void onClientError(String clientAddress, String errorMessage) {
+    }
+
     /**
      * Enum to represent different states of the sync process
      */
@@ -317,6 +431,7 @@ public abstract class SyncActivity extends AppCompatActivity implements FileSync
         READY,
         NO_FILES,
         SYNCING,
+        PAUSED,
         CANCELLING,
         COMPLETE,
         ERROR
@@ -0,0 +1,104 @@
+package com.blueorion.wifidirecttransfer;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Foreground service that keeps a continuous sync to the host running while the app is
+ * in the background, see {@link FileSyncManager#startContinuousSync}. Activities bind to
+ * it to follow the sync through its {@link FileSyncManager}.
+ */
+public class SyncService extends Service {
+    private static final String TAG = "SyncService";
+    private static final String EXTRA_SERVER_ADDRESS = "SERVER_ADDRESS";
+    private static final String EXTRA_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    private static final String CHANNEL_ID = "sync";
+    private static final int NOTIFICATION_ID = 1;
+
+    private final IBinder binder = new LocalBinder();
+    private FileSyncManager fileSyncManager;
+
+    public class LocalBinder extends Binder {
+        public SyncService getService() {
+            return SyncService.this;
+        }
+    }
+
+    /**
+     * Starts syncing new captures to the given server until {@link #stop(Context)}
+     * @param deviceAddress Wi-Fi Direct address of the server device, or null if unknown
+     */
+    public static void start(Context context, String serverAddress, String deviceAddress) {
+        Intent intent = new Intent(context, SyncService.class);
+        intent.putExtra(EXTRA_SERVER_ADDRESS, serverAddress);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
+        context.startForegroundService(intent);
+    }
+
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, SyncService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        fileSyncManager = new FileSyncManager(this);
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                getString(R.string.sync_channel_name), NotificationManager.IMPORTANCE_LOW);
+        getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Notification notification = new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_upload)
+                .setContentTitle(getString(R.string.sync_notification_title))
+                .setContentText(getString(R.string.sync_notification_text))
+                .setOngoing(true)
+                .build();
+        startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+
+        String serverAddress = intent != null ? intent.getStringExtra(EXTRA_SERVER_ADDRESS) : null;
+        if (serverAddress == null) {
+            Log.e(TAG, "No server address provided");
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+        fileSyncManager.startContinuousSync(serverAddress, intent.getStringExtra(EXTRA_DEVICE_ADDRESS));
+        // If the process is killed the sync picks up again with the same server
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Called once data sync services used up their daily time in the foreground
+     */
+    @Override
+    public void onTimeout(int startId, int fgsType) {
+        Log.w(TAG, "Foreground time limit reached, stopping sync");
+        stopSelf();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        fileSyncManager.stopContinuousSync();
+        fileSyncManager.setListener(null);
+        super.onDestroy();
+    }
+
+    public FileSyncManager getFileSyncManager() {
+        return fileSyncManager;
+    }
+}
@@ -8,18 +8,14 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 public class WiFiDirectFileTransferService extends IntentService {
     private static final String TAG = "FileTransferService";
-    private static final int SOCKET_TIMEOUT = 5000;
     public static final String ACTION_SEND_FILE = "com.example.wifidirecttransfer.SEND_FILE";
     public static final String EXTRAS_FILE_PATH = "file_path";
     public static final String EXTRAS_HOST_ADDRESS = "host_address";
@@ -27,6 +23,7 @@ public class WiFiDirectFileTransferService extends IntentService {
 
     public WiFiDirectFileTransferService() {
         super("WiFiDirectFileTransferService");
+        LogcatSink.install();
     }
 
     @Override
@@ -42,59 +39,34 @@ public class WiFiDirectFileTransferService extends IntentService {
             String host = intent.getStringExtra(EXTRAS_HOST_ADDRESS);
             int port = intent.getIntExtra(EXTRAS_PORT, 8888);
 
-            Socket socket = null;
             try {
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT);
-
                 File file = new File(filePath);
-                long fileSize = file.length();
-                OutputStream outputStream = socket.getOutputStream();
-
-                // First write the file name
-                String fileName = file.getName();
-                byte[] fileNameBytes = fileName.getBytes();
-                outputStream.write(fileNameBytes.length);
-                outputStream.write(fileNameBytes);
-
-                // Then write the file size
-                outputStream.write(String.valueOf(fileSize).getBytes());
-
-                // Finally, write the file data
-                FileInputStream fis = new FileInputStream(file);
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                long totalBytesWritten = 0;
-
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                    totalBytesWritten += bytesRead;
-                }
 
-                fis.close();
-                Log.d(TAG, "File sent: " + fileName + " (" + totalBytesWritten + " bytes)");
+                // The pooled connection outlives this intent, so the next file skips the connect
+                if (ConnectionPool.get().send(new InetSocketAddress(host, port), file)) {
+                    Log.d(TAG, "File sent: " + file.getName() + " (" + file.length() + " bytes)");
+                } else {
+                    Log.e(TAG, "File failed verification: " + file.getName());
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Error sending file: " + e.getMessage());
-            } finally {
-                if (socket != null) {
-                    if (socket.isConnected()) {
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error closing socket: " + e.getMessage());
-                        }
-                    }
-                }
             }
         }
     }
 
     // Class for handling file reception
     public static class FileServerAsyncTask {
+        // A Wi-Fi Direct group has a handful of clients
+        private static final int RECEIVE_PARALLELISM = 8;
+        private static final int RECEIVE_QUEUE_CAPACITY = 8;
+
         private final ServerSocket serverSocket;
         private final String destinationDir;
+        private final TransferExecutor receiveExecutor =
+                new TransferExecutor("receive", RECEIVE_PARALLELISM, RECEIVE_QUEUE_CAPACITY);
 
         public FileServerAsyncTask(String destinationDir) throws IOException {
+            LogcatSink.install();
             this.serverSocket = new ServerSocket(8888);
             this.destinationDir = destinationDir;
         }
@@ -105,44 +77,16 @@ public class WiFiDirectFileTransferService extends IntentService {
                     while (true) {
                         Socket client = serverSocket.accept();
 
-                        InputStream inputStream = client.getInputStream();
-
-                        // Read file name length
-                        int fileNameLength = inputStream.read();
-                        byte[] fileNameBytes = new byte[fileNameLength];
-                        inputStream.read(fileNameBytes);
-                        String fileName = new String(fileNameBytes);
-
-                        // Read file size
-                        byte[] fileSizeBytes = new byte[20]; // Enough for a long value as string
-                        int read = inputStream.read(fileSizeBytes);
-                        String fileSizeStr = new String(fileSizeBytes, 0, read);
-                        long fileSize = Long.parseLong(fileSizeStr.trim());
-
-                        // Create file
-                        File outputDir = new File(destinationDir);
-                        if (!outputDir.exists()) {
-                            outputDir.mkdirs();
-                        }
-
-                        File outputFile = new File(outputDir, fileName);
-                        FileOutputStream fos = new FileOutputStream(outputFile);
-
-                        // Copy file data
-                        byte[] buffer = new byte[1024];
-                        int bytesRead;
-                        long totalBytesRead = 0;
-
-                        while (totalBytesRead < fileSize &&
-                                (bytesRead = inputStream.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
-                            totalBytesRead += bytesRead;
+                        // Senders keep their connections open between files, so each is received on its own
+                        try {
+                            receiveExecutor.submit(token -> {
+                                token.closeOnCancel(client);
+                                receiveFiles(client);
+                            });
+                        } catch (RejectedExecutionException e) {
+                            Log.w(TAG, "Too many senders, closing connection from " + client.getInetAddress());
+                            client.close();
                         }
-
-                        fos.close();
-                        client.close();
-
-                        Log.d(TAG, "File received: " + fileName + " (" + totalBytesRead + " bytes)");
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Server error: " + e.getMessage());
@@ -152,7 +96,24 @@ public class WiFiDirectFileTransferService extends IntentService {
             serverThread.start();
         }
 
+        private void receiveFiles(Socket client) {
+            try {
+                int filesReceived = SingleFileTransfer.receive(client, new File(destinationDir));
+                Log.d(TAG, "Files received: " + filesReceived);
+            } catch (IOException e) {
+                Log.e(TAG, "Error receiving files: " + e.getMessage());
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing socket: " + e.getMessage());
+                }
+            }
+        }
+
+        // Stops accepting and ends the connections being received
         public void stop() {
+            receiveExecutor.shutdown();
             try {
                 if (serverSocket != null && !serverSocket.isClosed()) {
                     serverSocket.close();
@@ -0,0 +1,23 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    implementation(project(":transfer-core"))
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    // Files are read and written on a tmpfs so the numbers measure the code and not the disk
+    jvmArgs.add("-Dbenchmark.dir=" + (findProperty("benchmarkDir") ?: "/dev/shm"))
+}
@@ -0,0 +1,54 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Scratch files for the benchmarks, kept under benchmark.dir (a tmpfs such as /dev/shm by
+ * default) so that the disk does not dominate the numbers
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Creates an empty directory for one benchmark trial
+     */
+    static File createDirectory(String prefix) throws IOException {
+        File base = new File(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+        if (!base.isDirectory()) {
+            base = new File(System.getProperty("java.io.tmpdir"));
+        }
+        return Files.createTempDirectory(base.toPath(), prefix).toFile();
+    }
+
+    /**
+     * Writes a file of random bytes, which like photos and videos do not compress
+     */
+    static File createFile(File directory, String name, int size, long seed) throws IOException {
+        File file = new File(directory, name);
+        byte[] block = new byte[64 * 1024];
+        Random random = new Random(seed);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                fos.write(block, 0, Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,27 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copy buffer of the stream and NIO loops. transferTo has none, so its benchmarks do not
+ * take this state and are not repeated for every size.
+ */
+@State(Scope.Thread)
+public class CopyBuffer {
+    @Param({"8192", "65536", "262144"})
+    int size;
+
+    byte[] heap;
+    ByteBuffer direct;
+
+    @Setup
+    public void setUp() {
+        heap = new byte[size];
+        direct = ByteBuffer.allocateDirect(size);
+    }
+}
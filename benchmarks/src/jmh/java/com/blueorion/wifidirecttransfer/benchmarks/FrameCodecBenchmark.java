@@ -0,0 +1,109 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import com.blueorion.wifidirecttransfer.Compression;
+import com.blueorion.wifidirecttransfer.ContentHash;
+import com.blueorion.wifidirecttransfer.Frame;
+import com.blueorion.wifidirecttransfer.FrameCodec;
+import com.blueorion.wifidirecttransfer.FrameWriter;
+import com.blueorion.wifidirecttransfer.ManifestEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding and decoding the control frames: the per-file header every transfer
+ * pays, and the manifest exchanged once per session, which grows with the camera roll
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+    private static final String FILE_NAME = "IMG_20240612_184512_123.jpg";
+
+    private Frame headerFrame;
+    private Frame helloFrame;
+    private FrameWriter writer;
+
+    /**
+     * A manifest of the given number of photos
+     */
+    @State(Scope.Thread)
+    public static class Manifest {
+        @Param({"100", "5000"})
+        int size;
+
+        ManifestEntry[] entries;
+        Frame frame;
+
+        @Setup
+        public void setUp() throws IOException {
+            Random random = new Random(1);
+            entries = new ManifestEntry[size];
+            for (int i = 0; i < size; i++) {
+                byte[] hash = new byte[ContentHash.LENGTH];
+                random.nextBytes(hash);
+                entries[i] = new ManifestEntry(String.format("IMG_20240612_%06d.jpg", i),
+                        1_000_000 + random.nextInt(8_000_000), 1_718_000_000_000L + i * 1000L, hash);
+            }
+            frame = new Frame(Frame.MANIFEST, FrameCodec.manifest(entries));
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        headerFrame = new Frame(Frame.FILE_HEADER, encodeFileHeader());
+        helloFrame = new Frame(Frame.HELLO, encodeHello());
+        writer = new FrameWriter(OutputStream.nullOutputStream(), null);
+    }
+
+    @Benchmark
+    public byte[] encodeFileHeader() throws IOException {
+        return FrameCodec.fileHeader(42, FILE_NAME, 0, 4_718_592L, Compression.STORE);
+    }
+
+    @Benchmark
+    public FrameCodec.FileHeader decodeFileHeader() throws IOException {
+        return FrameCodec.readFileHeader(headerFrame);
+    }
+
+    @Benchmark
+    public byte[] encodeHello() throws IOException {
+        return FrameCodec.hello(0x1234_5678_9abc_def0L, 1, 0);
+    }
+
+    @Benchmark
+    public FrameCodec.Hello decodeHello() throws IOException {
+        return FrameCodec.readHello(helloFrame);
+    }
+
+    /**
+     * Header encoding plus the write into the coalescing buffer, as done for every file
+     */
+    @Benchmark
+    public void writeFileHeader() throws IOException {
+        writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(42, FILE_NAME, 0, 4_718_592L, Compression.STORE));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] encodeManifest(Manifest manifest) throws IOException {
+        return FrameCodec.manifest(manifest.entries);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ManifestEntry[] decodeManifest(Manifest manifest) throws IOException {
+        return FrameCodec.readManifest(manifest.frame);
+    }
+}
@@ -0,0 +1,38 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connected pair of blocking socket channels over the loopback interface
+ */
+final class Loopback implements Closeable {
+    final SocketChannel client;
+    final SocketChannel server;
+
+    private Loopback(SocketChannel client, SocketChannel server) {
+        this.client = client;
+        this.server = server;
+    }
+
+    static Loopback open() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+            SocketChannel server = listener.accept();
+            client.socket().setTcpNoDelay(true);
+            server.socket().setTcpNoDelay(true);
+            return new Loopback(client, server);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        server.close();
+    }
+}
@@ -0,0 +1,128 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import com.blueorion.wifidirecttransfer.FileReceiver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives one file from a loopback socket into a file, the way {@link FileReceiver} does:
+ * from the socket stream through a heap buffer, from the socket channel through a direct
+ * buffer, or with transferFrom. A source thread sends the bytes of each operation from memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReceiveLoopBenchmark {
+    @Param({"33554432"})
+    int fileSize;
+
+    private File directory;
+    private RandomAccessFile raf;
+    private FileChannel file;
+    private Loopback loopback;
+    private InputStream in;
+    private Thread source;
+    private final Semaphore requests = new Semaphore(0);
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = BenchmarkFiles.createDirectory("receive");
+        raf = new RandomAccessFile(new File(directory, "video.mp4"), "rw");
+        file = raf.getChannel();
+        loopback = Loopback.open();
+        in = loopback.server.socket().getInputStream();
+        source = new Thread(this::source, "source");
+        source.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        source.interrupt();
+        source.join();
+        loopback.close();
+        raf.close();
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public long stream(CopyBuffer buffer) throws IOException {
+        requests.release();
+        return FileReceiver.copy(file, 0, fileSize, in, buffer.heap, null);
+    }
+
+    @Benchmark
+    public long nio(CopyBuffer buffer) throws IOException {
+        requests.release();
+        ByteBuffer bb = buffer.direct;
+        long received = 0;
+        while (received < fileSize) {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), fileSize - received));
+            if (loopback.server.read(bb) == -1) {
+                break;
+            }
+            bb.flip();
+            while (bb.hasRemaining()) {
+                received += file.write(bb, received);
+            }
+        }
+        return received;
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        requests.release();
+        long received = 0;
+        while (received < fileSize) {
+            long chunk = FileReceiver.transferFrom(file, received, fileSize - received, loopback.server);
+            if (chunk <= 0) {
+                break;
+            }
+            received += chunk;
+        }
+        return received;
+    }
+
+    /**
+     * Sends fileSize bytes for each request
+     */
+    private void source() {
+        ByteBuffer data = ByteBuffer.allocateDirect(1024 * 1024);
+        byte[] random = new byte[data.capacity()];
+        new Random(1).nextBytes(random);
+        data.put(random);
+        try {
+            while (true) {
+                requests.acquire();
+                long sent = 0;
+                while (sent < fileSize) {
+                    data.clear();
+                    data.limit((int) Math.min(data.capacity(), fileSize - sent));
+                    while (data.hasRemaining()) {
+                        sent += loopback.client.write(data);
+                    }
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            // Stopped at tear down
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import com.blueorion.wifidirecttransfer.FileSender;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends one file over a loopback socket, the way {@link FileSender} does: through a heap
+ * buffer into the socket stream, through a direct buffer into the socket channel, or with
+ * transferTo. An operation ends once the other side has read every byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SendLoopBenchmark {
+    @Param({"33554432"})
+    int fileSize;
+
+    private File directory;
+    private FileInputStream fileStream;
+    private FileChannel file;
+    private Loopback loopback;
+    private OutputStream out;
+    private Thread sink;
+    // Guarded by this
+    private long received;
+    private long expected;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = BenchmarkFiles.createDirectory("send");
+        fileStream = new FileInputStream(BenchmarkFiles.createFile(directory, "video.mp4", fileSize, 1));
+        file = fileStream.getChannel();
+        loopback = Loopback.open();
+        out = loopback.client.socket().getOutputStream();
+        sink = new Thread(this::sink, "sink");
+        sink.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        loopback.close();
+        sink.join();
+        fileStream.close();
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public long stream(CopyBuffer buffer) throws IOException {
+        return received(FileSender.copy(file, 0, fileSize, out, buffer.heap));
+    }
+
+    @Benchmark
+    public long nio(CopyBuffer buffer) throws IOException {
+        ByteBuffer bb = buffer.direct;
+        long sent = 0;
+        while (sent < fileSize) {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), fileSize - sent));
+            int bytesRead = file.read(bb, sent);
+            if (bytesRead == -1) {
+                break;
+            }
+            bb.flip();
+            while (bb.hasRemaining()) {
+                loopback.client.write(bb);
+            }
+            sent += bytesRead;
+        }
+        return received(sent);
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        return received(FileSender.transferTo(file, 0, fileSize, loopback.client));
+    }
+
+    /**
+     * Waits until the sink has read the bytes sent
+     */
+    private synchronized long received(long sent) throws IOException {
+        expected += sent;
+        while (received < expected) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return sent;
+    }
+
+    private void sink() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try {
+            int bytesRead;
+            while ((bytesRead = loopback.server.read(buffer)) != -1) {
+                buffer.clear();
+                synchronized (this) {
+                    received += bytesRead;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // Closed at tear down
+        }
+    }
+}
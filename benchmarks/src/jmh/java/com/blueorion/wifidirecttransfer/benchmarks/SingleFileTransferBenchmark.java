@@ -0,0 +1,101 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import com.blueorion.wifidirecttransfer.SingleFileTransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The send-a-file path of FileTransferService and WiFiDirectFileTransferService against
+ * a loopback receiver running {@link SingleFileTransfer#receive}: a new connection for every
+ * file, as before the connection pool, or one connection carrying all of them, as the pool
+ * keeps it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SingleFileTransferBenchmark {
+    @Param({"65536", "4194304"})
+    int fileSize;
+
+    private File sourceDir;
+    private File destinationDir;
+    private File file;
+    private ServerSocket serverSocket;
+    private ExecutorService receivers;
+    private SingleFileTransfer.Sender pooled;
+
+    @Setup
+    public void setUp() throws IOException {
+        sourceDir = BenchmarkFiles.createDirectory("single-source");
+        destinationDir = BenchmarkFiles.createDirectory("single-destination");
+        file = BenchmarkFiles.createFile(sourceDir, "IMG_0001.jpg", fileSize, 1);
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        receivers = Executors.newCachedThreadPool();
+        receivers.execute(this::accept);
+        pooled = new SingleFileTransfer.Sender(connect());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pooled.close();
+        serverSocket.close();
+        receivers.shutdownNow();
+        BenchmarkFiles.delete(sourceDir);
+        BenchmarkFiles.delete(destinationDir);
+    }
+
+    @Benchmark
+    public boolean newConnection() throws IOException {
+        try (SingleFileTransfer.Sender sender = new SingleFileTransfer.Sender(connect())) {
+            return sender.send(file);
+        }
+    }
+
+    @Benchmark
+    public boolean pooledConnection() throws IOException {
+        return pooled.send(file);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+        return socket;
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                receivers.execute(() -> {
+                    try (Socket client = socket) {
+                        SingleFileTransfer.receive(client, destinationDir);
+                    } catch (IOException e) {
+                        // The sender went away
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Closed at tear down
+        }
+    }
+}
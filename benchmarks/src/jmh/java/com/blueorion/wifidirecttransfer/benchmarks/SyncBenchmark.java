@@ -0,0 +1,165 @@
+package com.blueorion.wifidirecttransfer.benchmarks;
+
+import com.blueorion.wifidirecttransfer.Compression;
+import com.blueorion.wifidirecttransfer.ContentHash;
+import com.blueorion.wifidirecttransfer.FilePack;
+import com.blueorion.wifidirecttransfer.Frame;
+import com.blueorion.wifidirecttransfer.FrameCodec;
+import com.blueorion.wifidirecttransfer.FrameReader;
+import com.blueorion.wifidirecttransfer.FrameWriter;
+import com.blueorion.wifidirecttransfer.ReceivePipeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One round of the sync data path over a loopback connection: the sender's
+ * {@link FrameWriter} on one end, the host's {@link FrameReader} writing into a staging
+ * directory on the other. The small file workload is a burst of thumbnail sized files that
+ * travel in PACK frames; the large file workload is one video sent as DATA frames, received
+ * with or without the {@link ReceivePipeline}, which
+ * the packed files do not use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SyncBenchmark {
+
+    public enum Workload {
+        SMALL_FILES(256, 48 * 1024),
+        LARGE_FILE(1, 64 * 1024 * 1024);
+
+        final int fileCount;
+        final int fileSize;
+
+        Workload(int fileCount, int fileSize) {
+            this.fileCount = fileCount;
+            this.fileSize = fileSize;
+        }
+    }
+
+    @Param
+    Workload workload;
+
+    @Param({"true", "false"})
+    boolean pipelined;
+
+    private File sourceDir;
+    private File destinationDir;
+    private File[] files;
+    private byte[][] hashes;
+    private Loopback loopback;
+    private FrameWriter writer;
+    private FrameReader reader;
+    private ReceivePipeline pipeline;
+    private ExecutorService sender;
+    private ExecutorService diskWriter;
+
+    @Setup
+    public void setUp() throws IOException {
+        sourceDir = BenchmarkFiles.createDirectory("sync-source");
+        destinationDir = BenchmarkFiles.createDirectory("sync-destination");
+        files = new File[workload.fileCount];
+        hashes = new byte[workload.fileCount][];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = BenchmarkFiles.createFile(sourceDir, "IMG_" + i + ".jpg", workload.fileSize, i);
+            hashes[i] = ContentHash.hash(files[i]);
+        }
+        loopback = Loopback.open();
+        writer = new FrameWriter(loopback.client.socket().getOutputStream(), loopback.client);
+        reader = new FrameReader(loopback.server.socket().getInputStream(), loopback.server);
+        sender = Executors.newSingleThreadExecutor();
+        if (pipelined) {
+            diskWriter = Executors.newCachedThreadPool();
+            pipeline = new ReceivePipeline(diskWriter, null);
+            reader.setPipeline(pipeline);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (pipeline != null) {
+            pipeline.close();
+            diskWriter.shutdown();
+        }
+        sender.shutdownNow();
+        loopback.close();
+        BenchmarkFiles.delete(sourceDir);
+        BenchmarkFiles.delete(destinationDir);
+    }
+
+    @Benchmark
+    public int round() throws IOException, InterruptedException, ExecutionException {
+        Future<?> sent = sender.submit(() -> {
+            send();
+            return null;
+        });
+        int received = receive();
+        sent.get();
+        return received;
+    }
+
+    private void send() throws IOException {
+        FilePack pack = new FilePack();
+        for (int i = 0; i < files.length; i++) {
+            int length = (int) files[i].length();
+            if (length < FilePack.FILE_THRESHOLD) {
+                pack.add(i, files[i], 0, length, hashes[i]);
+                if (pack.size() >= FilePack.TARGET_SIZE) {
+                    writer.write(Frame.PACK, pack.drain());
+                }
+                continue;
+            }
+            writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(i, files[i].getName(), 0, length, Compression.STORE));
+            try (FileInputStream fis = new FileInputStream(files[i])) {
+                writer.writeData(fis.getChannel(), 0, length);
+            }
+            writer.write(Frame.TRAILER, hashes[i]);
+        }
+        if (!pack.isEmpty()) {
+            writer.write(Frame.PACK, pack.drain());
+        }
+        writer.write(Frame.END, FrameCodec.end(false));
+        writer.flush();
+    }
+
+    private int receive() throws IOException {
+        int received = 0;
+        Frame frame;
+        while ((frame = reader.read()).type != Frame.END) {
+            if (frame.type == Frame.PACK) {
+                for (FilePack.Entry entry : FilePack.read(frame)) {
+                    try (RandomAccessFile raf = new RandomAccessFile(new File(destinationDir, "IMG_" + entry.index + ".jpg"), "rw")) {
+                        raf.write(entry.data, entry.dataOffset, entry.length);
+                    }
+                    received++;
+                }
+                continue;
+            }
+            FrameCodec.FileHeader header = FrameCodec.readFileHeader(frame);
+            try (RandomAccessFile raf = new RandomAccessFile(new File(destinationDir, header.fileName), "rw")) {
+                reader.readData(raf.getChannel(), header.offset, header.length, header.codec, null);
+            }
+            FrameCodec.readTrailer(reader.expect(Frame.TRAILER));
+            received++;
+        }
+        return received;
+    }
+}
@@ -0,0 +1,41 @@
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    implementation(project(":transfer-core"))
+}
+
+application {
+    mainClass.set("com.blueorion.wifidirecttransfer.loadgen.LoadGenerator")
+    // A fixed heap makes heap growth over a soak run comparable between runs
+    applicationDefaultJvmArgs = listOf("-Xms512m", "-Xmx512m")
+}
+
+// A short soak run per host mode, failing on a missing or incomplete file or on heap or
+// open files left over after stopping
+val soakTest by tasks.registering {
+    group = "verification"
+    description = "Runs a short soak test of both host modes over loopback."
+}
+mapOf("Blocking" to "BLOCKING", "Selector" to "SELECTOR").forEach { (name, mode) ->
+    val modeTask = tasks.register<JavaExec>("soakTest$name") {
+        group = "verification"
+        description = "Runs a short soak test of the $mode host over loopback."
+        classpath = sourceSets["main"].runtimeClasspath
+        mainClass.set(application.mainClass)
+        jvmArgs = application.applicationDefaultJvmArgs.toList()
+        args = listOf(
+            "--clients=8", "--files=25", "--duration=40", "--rate=30", "--disconnect-every=5",
+            "--server-mode=$mode", "--gc", "--report-every=20",
+            "--max-heap-growth=16m", "--max-fd-growth=0",
+            "--work-dir=${layout.buildDirectory.dir("soak-$name").get().asFile}"
+        )
+    }
+    soakTest { dependsOn(modeTask) }
+}
@@ -0,0 +1,189 @@
+package com.blueorion.wifidirecttransfer.loadgen;
+
+import com.blueorion.wifidirecttransfer.SyncEngine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays the connections of one client to the host, so that the link can be cut or slowed
+ * down. It listens on its own loopback address at the sync port and connects out from the
+ * same address, so the host sees every client at an address of its own.
+ *
+ * A throttled proxy limits what the client sends to the given rate per connection; for
+ * the host this is a slow peer holding a connection and its buffers for a long time.
+ */
+final class FaultProxy implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Throttled connections move smaller pieces so the rate stays even
+    private static final int THROTTLED_BUFFER_SIZE = 8 * 1024;
+
+    private final String address;
+    private final InetSocketAddress host;
+    private final long bytesPerSecond;
+    private final ThreadGroup threads;
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * @param address Loopback address the client connects to, such as 127.0.1.1
+     * @param host Address of the host's server
+     * @param bytesPerSecond Rate limit of each connection from client to host, or 0 for none
+     * @param threads Group the relay threads are created in
+     */
+    FaultProxy(String address, InetSocketAddress host, long bytesPerSecond, ThreadGroup threads) {
+        this.address = address;
+        this.host = host;
+        this.bytesPerSecond = bytesPerSecond;
+        this.threads = threads;
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(address, SyncEngine.PORT));
+        newThread("accept", this::acceptLoop).start();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            try {
+                Socket upstream = new Socket();
+                upstream.bind(new InetSocketAddress(address, 0));
+                upstream.connect(host, 10000);
+                Connection connection = new Connection(client, upstream);
+                connections.add(connection);
+                connection.start();
+            } catch (IOException e) {
+                closeQuietly(client);
+            }
+        }
+    }
+
+    /**
+     * Cuts one of the open connections at random, as a peer walking out of range would
+     * @return Whether there was a connection to cut
+     */
+    boolean dropConnection(Random random) {
+        List<Connection> open = new ArrayList<>(connections);
+        if (open.isEmpty()) {
+            return false;
+        }
+        open.get(random.nextInt(open.size())).close();
+        dropped.incrementAndGet();
+        return true;
+    }
+
+    long droppedConnections() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (serverSocket != null) {
+            closeQuietly(serverSocket);
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private Thread newThread(String name, Runnable task) {
+        Thread thread = new Thread(threads, task, "proxy-" + address + "-" + name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+    }
+
+    /**
+     * One relayed connection, a thread per direction
+     */
+    private class Connection {
+        private final Socket client;
+        private final Socket upstream;
+        private int openDirections = 2;
+
+        Connection(Socket client, Socket upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+
+        void start() {
+            newThread("up", () -> relay(client, upstream, bytesPerSecond)).start();
+            newThread("down", () -> relay(upstream, client, 0)).start();
+        }
+
+        private void relay(Socket from, Socket to, long rate) {
+            byte[] buffer = new byte[rate > 0 ? THROTTLED_BUFFER_SIZE : BUFFER_SIZE];
+            long started = System.nanoTime();
+            long relayed = 0;
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    relayed += read;
+                    if (rate > 0) {
+                        long due = started + (long) (relayed * 1e9 / rate);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                    }
+                }
+                // Pass the end of stream on and keep the other direction open until it ends too
+                to.shutdownOutput();
+                directionDone();
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void directionDone() {
+            if (--openDirections == 0) {
+                close();
+            }
+        }
+
+        void close() {
+            closeQuietly(client);
+            closeQuietly(upstream);
+            connections.remove(this);
+        }
+    }
+}
@@ -0,0 +1,601 @@
+package com.blueorion.wifidirecttransfer.loadgen;
+
+import com.blueorion.wifidirecttransfer.CallbackExecutor;
+import com.blueorion.wifidirecttransfer.ProgressReporter;
+import com.blueorion.wifidirecttransfer.SyncEngine;
+import com.blueorion.wifidirecttransfer.TransferLog;
+import com.blueorion.wifidirecttransfer.TransferMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Headless load generator and soak test for the host. It runs one host and any number of
+ * clients as {@link SyncEngine}s in this JVM, connected over loopback, each client with
+ * a source directory of generated files. Clients sync continuously, so a run can go on
+ * for hours with new files written at a steady rate, and connections can be cut or
+ * throttled on the way through a {@link FaultProxy}.
+ *
+ * Every few seconds a line reports the host's throughput and per file latency and the
+ * JVM's heap and thread count, the numbers to watch for leaks over a long run. At the end
+ * every file is checked on the host side and the host metrics are printed as JSON.
+ *
+ * With --max-heap-growth and --max-fd-growth the run also fails when the heap or the
+ * open files after stopping exceed what they were at the start, so a short run can gate a
+ * build: {@code ./gradlew :load-generator:soakTest} does that.
+ *
+ * Run with {@code ./gradlew :load-generator:run --args="--clients=10 --files=5000"},
+ * see {@link Options#USAGE} for all options. Cutting and throttling connections needs the
+ * whole 127.0.0.0/8 range on the loopback interface, as Linux has.
+ */
+public final class LoadGenerator {
+    private static final String HOST_ADDRESS = "127.0.0.1";
+    private static final int POOL_SIZE = 8 * 1024 * 1024;
+    private static final int WRITE_SIZE = 1024 * 1024;
+    private static final long STOP_TIMEOUT_MILLIS = 15000;
+
+    private final Options options;
+    private final ThreadGroup harnessThreads = new ThreadGroup("loadgen");
+    private final CallbackExecutor callbacks = CallbackExecutor.newSingleThread("loadgen-callbacks");
+    // Every file written by a client and its size
+    private final Map<String, Long> expected = new ConcurrentHashMap<>();
+    private final Set<String> delivered = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hostErrors = new AtomicLong();
+    private final AtomicLong warnings = new AtomicLong();
+    private final List<Client> clients = new ArrayList<>();
+    private final List<ScheduledFuture<?>> writers = new ArrayList<>();
+    // Random data the file contents are cut from, so generating them costs little CPU
+    private final byte[] pool = new byte[POOL_SIZE];
+    private SyncEngine host;
+    private ScheduledExecutorService scheduler;
+    private long startNanos;
+    private long deliveredNanos;
+    private Sample baseline;
+    private long peakHeap;
+    private int peakThreads;
+    private int lastDelivered;
+
+    private LoadGenerator(Options options) {
+        this.options = options;
+        new Random(options.seed).nextBytes(pool);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        System.exit(new LoadGenerator(options).run());
+    }
+
+    /**
+     * @return The exit status, 0 if every file arrived intact
+     */
+    private int run() throws Exception {
+        TransferLog.setSink(this::log);
+        prepareDirectories();
+        generateInitialFiles();
+
+        // The JDK opens /dev/random and /dev/urandom once on first use and keeps them open;
+        // opening them before the baseline keeps them from counting as growth
+        new SecureRandom().nextInt();
+        baseline = sample(true);
+        print("Baseline: heap %s, %d threads", megabytes(baseline.heapUsed), baseline.threads);
+        startNanos = System.nanoTime();
+        startHost();
+        startClients();
+        scheduler = Executors.newScheduledThreadPool(options.clients + 2, harnessThread("scheduler"));
+        scheduleWork();
+
+        boolean drained = awaitDelivery();
+        deliveredNanos = System.nanoTime();
+        scheduler.shutdownNow();
+        report();
+        stopAll();
+
+        Sample after = sample(true);
+        int missing = verify();
+        printSummary(drained, missing, after);
+        boolean flat = checkGrowth(after);
+        if (!options.keepFiles) {
+            deleteRecursively(options.workDir.toPath());
+        }
+        return drained && missing == 0 && flat ? 0 : 1;
+    }
+
+    private void log(int priority, String tag, String message, Throwable error) {
+        if (priority < TransferLog.WARN) {
+            return;
+        }
+        warnings.incrementAndGet();
+        if (options.verbose) {
+            System.err.println(tag + ": " + message + (error != null ? " (" + error + ")" : ""));
+        }
+    }
+
+    private void prepareDirectories() throws IOException {
+        deleteRecursively(options.workDir.toPath());
+        for (int i = 0; i < options.clients; i++) {
+            Client client = new Client(i, new File(options.workDir, "client-" + i));
+            Files.createDirectories(client.sourceDir());
+            Files.createDirectories(client.stateDir());
+            clients.add(client);
+        }
+        Files.createDirectories(hostDir("source"));
+        Files.createDirectories(hostDir("destination"));
+        Files.createDirectories(hostDir("state"));
+    }
+
+    private Path hostDir(String name) {
+        return new File(options.workDir, "host/" + name).toPath();
+    }
+
+    private void generateInitialFiles() throws Exception {
+        long started = System.nanoTime();
+        int threads = Math.min(options.clients, Runtime.getRuntime().availableProcessors());
+        ExecutorService generators = Executors.newFixedThreadPool(threads, harnessThread("writer"));
+        List<Future<?>> done = new ArrayList<>();
+        for (Client client : clients) {
+            done.add(generators.submit(() -> {
+                for (int i = 0; i < options.files; i++) {
+                    client.writeFile(false);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        generators.shutdown();
+        long bytes = expected.values().stream().mapToLong(Long::longValue).sum();
+        print("Wrote %d files of %s (%s) in %d s", expected.size(), megabytes(bytes), options.sizesSpec,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+    }
+
+    private void startHost() throws InterruptedException {
+        host = new SyncEngine(hostDir("source"), hostDir("destination"), hostDir("state"), callbacks);
+        host.setServerMode(options.serverMode);
+        if (options.maxConnections > 0) {
+            host.setMaxConnections(options.maxConnections);
+        }
+        host.setCompressionEnabled(options.compression);
+        host.setDedupEnabled(options.dedup);
+        host.setListener(new ListenerAdapter() {
+            @Override
+            public void onFileTransferred(String fileName) {
+                delivered.add(fileName);
+            }
+
+            @Override
+            public void onClientError(String clientAddress, String errorMessage) {
+                hostErrors.incrementAndGet();
+            }
+        });
+        host.startServer(HOST_ADDRESS);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!host.isServerRunning()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Host did not start on " + HOST_ADDRESS + ":" + SyncEngine.PORT);
+            }
+            Thread.sleep(20);
+        }
+        print("Host listening on %s:%d, %s mode", HOST_ADDRESS, SyncEngine.PORT, options.serverMode);
+    }
+
+    private void startClients() throws IOException {
+        InetSocketAddress hostSocket = new InetSocketAddress(HOST_ADDRESS, SyncEngine.PORT);
+        for (Client client : clients) {
+            String serverAddress = HOST_ADDRESS;
+            if (options.needsProxy()) {
+                long rate = client.index < options.slowClients ? options.slowBytesPerSecond : 0;
+                // 127.0.1.1 and up, one address per client
+                String address = "127.0." + (1 + client.index / 250) + "." + (1 + client.index % 250);
+                client.proxy = new FaultProxy(address, hostSocket, rate, harnessThreads);
+                client.proxy.start();
+                serverAddress = address;
+            }
+            client.engine = new SyncEngine(client.sourceDir(), client.sourceDir(), client.stateDir(), callbacks);
+            client.engine.setStreamCount(options.streams);
+            client.engine.setCompressionEnabled(options.compression);
+            client.engine.setDedupEnabled(options.dedup);
+            client.engine.setListener(new ListenerAdapter() {
+                @Override
+                public void onTransferComplete(int fileCount) {
+                    client.stopped.countDown();
+                }
+
+                @Override
+                public void onTransferError(String errorMessage) {
+                    client.stopped.countDown();
+                }
+            });
+            client.engine.startContinuousSync(serverAddress, "loadgen-client-" + client.index);
+        }
+        print("Started %d clients with %d streams each%s", options.clients, options.streams,
+                options.needsProxy() ? ", " + options.slowClients + " throttled to "
+                        + megabytes(options.slowBytesPerSecond) + "/s" : "");
+    }
+
+    private void scheduleWork() {
+        if (options.durationSeconds > 0 && options.filesPerMinute > 0) {
+            long periodMillis = (long) (60000 / options.filesPerMinute);
+            for (Client client : clients) {
+                // Spread the clients over the period so they do not all write at once
+                long delay = periodMillis * client.index / options.clients;
+                writers.add(scheduler.scheduleAtFixedRate(() -> {
+                    try {
+                        client.engine.onFilesWritten(Collections.singleton(client.writeFile(true)));
+                    } catch (IOException e) {
+                        print("Client %d could not write a file: %s", client.index, e.getMessage());
+                    }
+                }, delay, periodMillis, TimeUnit.MILLISECONDS));
+            }
+        }
+        if (options.disconnectEverySeconds > 0) {
+            Random random = new Random(options.seed);
+            scheduler.scheduleAtFixedRate(() -> {
+                Client client = clients.get(random.nextInt(clients.size()));
+                client.proxy.dropConnection(random);
+            }, options.disconnectEverySeconds, options.disconnectEverySeconds, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleAtFixedRate(this::report, options.reportEverySeconds, options.reportEverySeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits out the duration and then for the host to have every file written until then
+     * @return Whether every file arrived within the drain timeout
+     */
+    private boolean awaitDelivery() throws InterruptedException {
+        if (options.durationSeconds > 0) {
+            long end = startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+            long remaining;
+            while ((remaining = end - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.SECONDS.toNanos(1)));
+            }
+            // A file being written is finished and waited for as well
+            for (ScheduledFuture<?> writer : writers) {
+                writer.cancel(false);
+            }
+            print("Duration over, waiting for the last files");
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.drainTimeoutSeconds);
+        while (!allDelivered()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(200);
+        }
+        return true;
+    }
+
+    private boolean allDelivered() {
+        for (String name : expected.keySet()) {
+            if (!delivered.contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stopAll() throws InterruptedException {
+        for (Client client : clients) {
+            client.engine.stopContinuousSync();
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        for (Client client : clients) {
+            // A client waiting to reconnect stops without a result
+            client.stopped.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (client.proxy != null) {
+                client.proxy.close();
+            }
+        }
+        host.stopServer();
+    }
+
+    /**
+     * Compares the host's copy of every file with the client's
+     * @return Files missing or of the wrong size
+     */
+    private int verify() {
+        File destination = hostDir("destination").toFile();
+        int missing = 0;
+        for (Map.Entry<String, Long> file : expected.entrySet()) {
+            File copy = new File(destination, file.getKey());
+            if (!copy.isFile() || copy.length() != file.getValue()) {
+                if (missing < 10) {
+                    print("Missing or incomplete on the host: %s", file.getKey());
+                }
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    private void report() {
+        Sample now = sample(options.gcBeforeSample);
+        peakHeap = Math.max(peakHeap, now.heapUsed);
+        peakThreads = Math.max(peakThreads, now.threads);
+        TransferMetrics.Snapshot metrics = host.getHostMetrics().snapshot();
+        int count = delivered.size();
+        long drops = 0;
+        for (Client client : clients) {
+            drops += client.proxy != null ? client.proxy.droppedConnections() : 0;
+        }
+        print("%5d s  files %d/%d (+%d)  %s/s  file p50 %s p99 %s  first byte p99 %s  heap %s (%s)  "
+                        + "threads %d (%d harness)%s  drops %d  errors %d  warnings %d",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos), count, expected.size(),
+                count - lastDelivered, megabytes(host.getHostMetrics().rollingBytesPerSecond()),
+                millis(metrics.fileLatency.percentileMicros(0.5)), millis(metrics.fileLatency.percentileMicros(0.99)),
+                millis(metrics.firstByteLatency.percentileMicros(0.99)), megabytes(now.heapUsed),
+                signedMegabytes(now.heapUsed - baseline.heapUsed), now.threads, now.harnessThreads,
+                now.openFiles >= 0 ? "  fds " + now.openFiles : "", drops, hostErrors.get(), warnings.get());
+        lastDelivered = count;
+    }
+
+    private void printSummary(boolean drained, int missing, Sample after) {
+        TransferMetrics.Snapshot metrics = host.getHostMetrics().snapshot();
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(deliveredNanos - startNanos));
+        print("");
+        print("Files:      %d of %d delivered, %d missing or incomplete%s", delivered.size(), expected.size(),
+                missing, drained ? "" : ", drain timed out");
+        print("Throughput: %s in %d s, %s/s on average", megabytes(metrics.totalBytes), seconds,
+                megabytes(metrics.totalBytes / seconds));
+        print("Latency:    file p50 %s p99 %s max %s, first byte p50 %s p99 %s",
+                millis(metrics.fileLatency.percentileMicros(0.5)), millis(metrics.fileLatency.percentileMicros(0.99)),
+                millis(metrics.fileLatency.maxMicros), millis(metrics.firstByteLatency.percentileMicros(0.5)),
+                millis(metrics.firstByteLatency.percentileMicros(0.99)));
+        print("Heap:       %s at the start, %s peak, %s after stopping (%s)", megabytes(baseline.heapUsed),
+                megabytes(peakHeap), megabytes(after.heapUsed), signedMegabytes(after.heapUsed - baseline.heapUsed));
+        print("Threads:    %d at the start, %d peak, %d after stopping", baseline.threads, peakThreads,
+                after.threads);
+        if (after.openFiles >= 0) {
+            print("Open files: %d at the start, %d after stopping", baseline.openFiles, after.openFiles);
+        }
+        print("Errors:     %d client sessions failed on the host, %d warnings", hostErrors.get(), warnings.get());
+        print("Metrics:    %s", metrics.toJson());
+    }
+
+    /**
+     * Compares the resources left after stopping with the baseline, against the limits
+     * given on the command line
+     * @return Whether they stayed within the limits
+     */
+    private boolean checkGrowth(Sample after) {
+        boolean flat = true;
+        long heapGrowth = after.heapUsed - baseline.heapUsed;
+        if (options.maxHeapGrowth >= 0 && heapGrowth > options.maxHeapGrowth) {
+            print("Heap grew by %s, more than the allowed %s", megabytes(heapGrowth),
+                    megabytes(options.maxHeapGrowth));
+            flat = false;
+        }
+        if (options.maxOpenFilesGrowth >= 0) {
+            if (after.openFiles < 0) {
+                print("Open files are not counted on this platform, not checking their growth");
+            } else if (after.openFiles - baseline.openFiles > options.maxOpenFilesGrowth) {
+                print("Open files grew from %d to %d, more than the allowed %d", baseline.openFiles,
+                        after.openFiles, options.maxOpenFilesGrowth);
+                flat = false;
+            }
+        }
+        return flat;
+    }
+
+    private Sample sample(boolean collectGarbage) {
+        if (collectGarbage) {
+            System.gc();
+        }
+        Sample sample = new Sample();
+        sample.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        sample.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        sample.harnessThreads = harnessThreads.activeCount();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        sample.openFiles = os instanceof com.sun.management.UnixOperatingSystemMXBean
+                ? ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : -1;
+        return sample;
+    }
+
+    private ThreadFactory harnessThread(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(harnessThreads, task, "loadgen-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static void print(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String signedMegabytes(long bytes) {
+        return (bytes >= 0 ? "+" : "") + megabytes(bytes);
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.1f ms", micros / 1000.0);
+    }
+
+    /**
+     * JVM resources at one point in time
+     */
+    private static class Sample {
+        long heapUsed;
+        int threads;
+        int harnessThreads;
+        long openFiles;
+    }
+
+    /**
+     * One simulated phone
+     */
+    private class Client {
+        final int index;
+        final File dir;
+        final Random random;
+        final AtomicInteger nextFile = new AtomicInteger();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        SyncEngine engine;
+        FaultProxy proxy;
+
+        Client(int index, File dir) {
+            this.index = index;
+            this.dir = dir;
+            this.random = new Random(options.seed * 31 + index);
+        }
+
+        Path sourceDir() {
+            return new File(dir, "DCIM/Camera").toPath();
+        }
+
+        Path stateDir() {
+            return new File(dir, "state").toPath();
+        }
+
+        /**
+         * Writes the next file of the size distribution. A file written while the clients
+         * run is written under a hidden name and renamed when complete, as cameras do, so
+         * a sync never picks up half of it.
+         * @return Its name
+         */
+        String writeFile(boolean hidden) throws IOException {
+            String name = String.format(Locale.US, "c%03d_IMG_%06d.jpg", index, nextFile.getAndIncrement());
+            long size;
+            synchronized (random) {
+                size = options.sizes.next(random);
+            }
+            File target = sourceDir().resolve(name).toFile();
+            File file = hidden ? sourceDir().resolve("." + name).toFile() : target;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (options.randomContent) {
+                    writeRandom(raf, size);
+                } else {
+                    // Sparse, so even a 50 GB video is written at once
+                    raf.setLength(size);
+                }
+            }
+            if (hidden) {
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            expected.put(name, size);
+            return name;
+        }
+
+        private void writeRandom(RandomAccessFile raf, long size) throws IOException {
+            Random positions;
+            synchronized (random) {
+                positions = new Random(random.nextLong());
+            }
+            // A unique start keeps files of the same size from having the same content
+            byte[] header = new byte[16];
+            positions.nextBytes(header);
+            raf.write(header, 0, (int) Math.min(header.length, size));
+            for (long written = header.length; written < size; ) {
+                int length = (int) Math.min(WRITE_SIZE, size - written);
+                raf.write(pool, positions.nextInt(POOL_SIZE - length + 1), length);
+                written += length;
+            }
+        }
+    }
+
+    /**
+     * Listener ignoring every callback, for overriding the few the generator counts
+     */
+    private static class ListenerAdapter implements SyncEngine.Listener {
+        @Override
+        public void onTransferProgress(int progress, int total) {
+        }
+
+        @Override
+        public void onFileTransferred(String fileName) {
+        }
+
+        @Override
+        public void onFileSkipped(String fileName) {
+        }
+
+        @Override
+        public void onFileProgress(List<ProgressReporter.Update> updates) {
+        }
+
+        @Override
+        public void onTransferComplete(int fileCount) {
+        }
+
+        @Override
+        public void onTransferError(String errorMessage) {
+        }
+
+        @Override
+        public void onClientProgress(String clientAddress, int progress, int total) {
+        }
+
+        @Override
+        public void onClientComplete(String clientAddress, int fileCount) {
+        }
+
+        @Override
+        public void onClientError(String clientAddress, String errorMessage) {
+        }
+
+        @Override
+        public void onFileSyncStarted() {
+        }
+
+        @Override
+        public void onFileSyncProgress(int progress) {
+        }
+
+        @Override
+        public void onFileSyncCompleted() {
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.blueorion.wifidirecttransfer.loadgen;
+
+import com.blueorion.wifidirecttransfer.SyncEngine;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Command line of the load generator, given as --name=value
+ */
+final class Options {
+    static final String USAGE = String.join("\n",
+            "Usage: LoadGenerator [--name=value ...]",
+            "  --clients=N             Simulated phones syncing at once (4)",
+            "  --files=N               Files each client starts with (200)",
+            "  --sizes=SPEC            File size distribution, see SizeDistribution (photos)",
+            "  --content=random|zero   Incompressible data, or sparse files of zeros (random)",
+            "  --streams=N             Parallel streams per client (4)",
+            "  --server-mode=MODE      BLOCKING or SELECTOR host (BLOCKING)",
+            "  --max-connections=N     Connections the blocking host serves at once (engine default)",
+            "  --compression=BOOL      Offer compression (true)",
+            "  --dedup=BOOL            Offer chunk deduplication (false)",
+            "  --duration=SECONDS      Keep writing new files for this long; 0 syncs the initial files only (0)",
+            "  --rate=N                New files per minute per client while the duration runs (6)",
+            "  --disconnect-every=SEC  Cut a random client connection this often; 0 never (0)",
+            "  --slow-clients=N        Clients whose uploads are throttled (0)",
+            "  --slow-rate=SIZE        Upload rate of each slow client connection per second (1m)",
+            "  --report-every=SECONDS  Interval of the progress lines (10)",
+            "  --drain-timeout=SEC     Time allowed for the last files to arrive (600)",
+            "  --max-heap-growth=SIZE  Fail if the heap after stopping exceeds the baseline by more (unchecked)",
+            "  --max-fd-growth=N       Fail if the open files after stopping exceed the baseline by more (unchecked)",
+            "  --work-dir=PATH         Scratch directory, emptied at the start (java.io.tmpdir/loadgen)",
+            "  --keep                  Leave the files in the work directory",
+            "  --gc                    Collect garbage before each sample, so heap is the live set",
+            "  --verbose               Print the engine's warnings and errors",
+            "  --seed=N                Seed of the file sizes and contents (1)");
+
+    int clients = 4;
+    int files = 200;
+    SizeDistribution sizes = SizeDistribution.parse("photos");
+    String sizesSpec = "photos";
+    boolean randomContent = true;
+    int streams = 4;
+    SyncEngine.ServerMode serverMode = SyncEngine.ServerMode.BLOCKING;
+    int maxConnections;
+    boolean compression = true;
+    boolean dedup;
+    long durationSeconds;
+    double filesPerMinute = 6;
+    long disconnectEverySeconds;
+    int slowClients;
+    long slowBytesPerSecond = 1 << 20;
+    long reportEverySeconds = 10;
+    long drainTimeoutSeconds = 600;
+    // Negative for no limit
+    long maxHeapGrowth = -1;
+    long maxOpenFilesGrowth = -1;
+    File workDir = new File(System.getProperty("java.io.tmpdir"), "loadgen");
+    boolean keepFiles;
+    boolean gcBeforeSample;
+    boolean verbose;
+    long seed = 1;
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "true" : arg.substring(equals + 1);
+            options.set(name, value);
+        }
+        if (options.clients < 1 || options.clients > 250) {
+            throw new IllegalArgumentException("--clients must be between 1 and 250");
+        }
+        if (options.slowClients > options.clients) {
+            throw new IllegalArgumentException("--slow-clients exceeds --clients");
+        }
+        return options;
+    }
+
+    /**
+     * Whether client connections go through a {@link FaultProxy}
+     */
+    boolean needsProxy() {
+        return disconnectEverySeconds > 0 || slowClients > 0;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "clients":
+                clients = Integer.parseInt(value);
+                break;
+            case "files":
+                files = Integer.parseInt(value);
+                break;
+            case "sizes":
+                sizes = SizeDistribution.parse(value);
+                sizesSpec = value;
+                break;
+            case "content":
+                if (!value.equals("random") && !value.equals("zero")) {
+                    throw new IllegalArgumentException("--content must be random or zero");
+                }
+                randomContent = value.equals("random");
+                break;
+            case "streams":
+                streams = Integer.parseInt(value);
+                break;
+            case "server-mode":
+                serverMode = SyncEngine.ServerMode.valueOf(value.toUpperCase(Locale.US));
+                break;
+            case "max-connections":
+                maxConnections = Integer.parseInt(value);
+                break;
+            case "compression":
+                compression = Boolean.parseBoolean(value);
+                break;
+            case "dedup":
+                dedup = Boolean.parseBoolean(value);
+                break;
+            case "duration":
+                durationSeconds = Long.parseLong(value);
+                break;
+            case "rate":
+                filesPerMinute = Double.parseDouble(value);
+                break;
+            case "disconnect-every":
+                disconnectEverySeconds = Long.parseLong(value);
+                break;
+            case "slow-clients":
+                slowClients = Integer.parseInt(value);
+                break;
+            case "slow-rate":
+                slowBytesPerSecond = SizeDistribution.parseSize(value);
+                break;
+            case "report-every":
+                reportEverySeconds = Math.max(1, Long.parseLong(value));
+                break;
+            case "drain-timeout":
+                drainTimeoutSeconds = Long.parseLong(value);
+                break;
+            case "max-heap-growth":
+                maxHeapGrowth = SizeDistribution.parseSize(value);
+                break;
+            case "max-fd-growth":
+                maxOpenFilesGrowth = Long.parseLong(value);
+                break;
+            case "work-dir":
+                workDir = new File(value);
+                break;
+            case "keep":
+                keepFiles = Boolean.parseBoolean(value);
+                break;
+            case "gc":
+                gcBeforeSample = Boolean.parseBoolean(value);
+                break;
+            case "verbose":
+                verbose = Boolean.parseBoolean(value);
+                break;
+            case "seed":
+                seed = Long.parseLong(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+}
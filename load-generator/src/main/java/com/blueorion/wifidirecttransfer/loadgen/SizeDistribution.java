@@ -0,0 +1,146 @@
+package com.blueorion.wifidirecttransfer.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Sizes of the generated files. Parsed from a spec such as
+ * <ul>
+ *     <li>{@code fixed:4m}, every file the same size</li>
+ *     <li>{@code uniform:100k:8m}, evenly spread between two sizes</li>
+ *     <li>{@code lognormal:3m:0.5}, around a median size with the given spread, as photos are</li>
+ *     <li>{@code mix:95@lognormal:3m:0.4;5@lognormal:150m:0.7}, weighted choice of the above</li>
+ *     <li>{@code photos}, {@code camera} (photos with some videos) or {@code video} (one 50 GB file)</li>
+ * </ul>
+ * Sizes take a k, m or g suffix for binary kilo, mega and gigabytes.
+ */
+abstract class SizeDistribution {
+
+    abstract long next(Random random);
+
+    static SizeDistribution parse(String spec) {
+        switch (spec) {
+            case "photos":
+                return parse("lognormal:3m:0.4");
+            case "camera":
+                return parse("mix:95@lognormal:3m:0.4;5@lognormal:150m:0.7");
+            case "video":
+                return parse("fixed:50g");
+            default:
+                break;
+        }
+
+        String[] parts = spec.split(":", 2);
+        String kind = parts[0];
+        String args = parts.length > 1 ? parts[1] : "";
+        switch (kind) {
+            case "fixed":
+                return fixed(parseSize(args));
+            case "uniform": {
+                String[] bounds = args.split(":");
+                require(bounds.length == 2, spec);
+                return uniform(parseSize(bounds[0]), parseSize(bounds[1]));
+            }
+            case "lognormal": {
+                String[] values = args.split(":");
+                require(values.length == 2, spec);
+                return logNormal(parseSize(values[0]), Double.parseDouble(values[1]));
+            }
+            case "mix":
+                return mix(args);
+            default:
+                throw new IllegalArgumentException("Unknown size distribution: " + spec);
+        }
+    }
+
+    /**
+     * Parses a size such as 512, 200k, 3m or 50g
+     */
+    static long parseSize(String value) {
+        String size = value.trim().toLowerCase(Locale.US);
+        require(!size.isEmpty(), value);
+        long unit = 1;
+        switch (size.charAt(size.length() - 1)) {
+            case 'k':
+                unit = 1L << 10;
+                break;
+            case 'm':
+                unit = 1L << 20;
+                break;
+            case 'g':
+                unit = 1L << 30;
+                break;
+            default:
+                break;
+        }
+        if (unit != 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return (long) (Double.parseDouble(size) * unit);
+    }
+
+    private static SizeDistribution fixed(long size) {
+        return new SizeDistribution() {
+            @Override
+            long next(Random random) {
+                return size;
+            }
+        };
+    }
+
+    private static SizeDistribution uniform(long min, long max) {
+        require(min <= max, min + " > " + max);
+        return new SizeDistribution() {
+            @Override
+            long next(Random random) {
+                return min + (long) (random.nextDouble() * (max - min + 1));
+            }
+        };
+    }
+
+    private static SizeDistribution logNormal(long median, double sigma) {
+        double mu = Math.log(median);
+        return new SizeDistribution() {
+            @Override
+            long next(Random random) {
+                return Math.max(1, (long) Math.exp(mu + sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    private static SizeDistribution mix(String args) {
+        List<SizeDistribution> choices = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        double total = 0;
+        for (String part : args.split(";")) {
+            String[] weighted = part.split("@", 2);
+            require(weighted.length == 2, part);
+            double weight = Double.parseDouble(weighted[0]);
+            choices.add(parse(weighted[1]));
+            weights.add(weight);
+            total += weight;
+        }
+        double sum = total;
+        return new SizeDistribution() {
+            @Override
+            long next(Random random) {
+                double pick = random.nextDouble() * sum;
+                for (int i = 0; i < choices.size() - 1; i++) {
+                    pick -= weights.get(i);
+                    if (pick < 0) {
+                        return choices.get(i).next(random);
+                    }
+                }
+                return choices.get(choices.size() - 1).next(random);
+            }
+        };
+    }
+
+    private static void require(boolean condition, String spec) {
+        if (!condition) {
+            throw new IllegalArgumentException("Bad size distribution: " + spec);
+        }
+    }
+}
@@ -21,4 +21,7 @@ dependencyResolutionManagement {
 
 rootProject.name = "WifiDirectTransfer"
 include(":app")
+include(":transfer-core")
+include(":benchmarks")
+include(":load-generator")
  
\ No newline at end of file
@@ -0,0 +1,40 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs listener callbacks on the thread the listener expects them on, such as the main
+ * thread of an Android app. Callbacks run one at a time, in the order they were posted.
+ */
+public interface CallbackExecutor extends Executor {
+
+    /**
+     * Runs the task once delayMillis have passed
+     */
+    void executeDelayed(Runnable task, long delayMillis);
+
+    /**
+     * Returns an executor that runs callbacks on a daemon thread of its own, for use off Android
+     */
+    static CallbackExecutor newSingleThread(String name) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new CallbackExecutor() {
+            @Override
+            public void execute(Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public void executeDelayed(Runnable task, long delayMillis) {
+                executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancels one transfer. Blocking socket I/O does not notice a flag, so whatever the
+ * transfer blocks on registers an action with {@link #onCancel}, typically closing its
+ * socket, and cancelling runs those actions right away.
+ */
+public final class CancellationToken {
+    private static final String TAG = "CancellationToken";
+
+    private final List<Runnable> actions = new ArrayList<>();
+    private boolean cancelled;
+
+    /**
+     * Cancels the transfer and runs the registered actions. Cancelling again does nothing.
+     */
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(actions);
+            actions.clear();
+        }
+        for (Runnable action : toRun) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                TransferLog.e(TAG, "Cancel action failed", e);
+            }
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs the action when the transfer is cancelled, or at once if it already is
+     */
+    public void onCancel(Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                actions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Closes the socket, channel or file when the transfer is cancelled
+     */
+    public void closeOnCancel(Closeable closeable) {
+        onCancel(() -> {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Closing is all cancelling asks for
+            }
+        });
+    }
+
+    /**
+     * Ends a transfer between two steps once it is cancelled
+     */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("Transfer cancelled");
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Host side index of the chunks held in the destination directory, for deduplication.
+ * The committed files themselves are the chunk store: the index maps a chunk hash to the
+ * file and range it can be read from, so deduplicated data is never kept twice. Chunks are
+ * keyed by the first eight bytes of their hash; a local chunk is hashed in full again when
+ * it is copied, so a key collision or a file changed behind the index's back only costs a
+ * retransfer. The index is kept in the staging directory so it survives restarts.
+ */
+public class ChunkIndex {
+    private static final String TAG = "ChunkIndex";
+    private static final int FORMAT_VERSION = 1;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    private final File directory;
+    private final File indexFile;
+    private final Map<Long, Location> chunks = new HashMap<>();
+    // Chunk keys per indexed file, so a replaced file's chunks can be dropped
+    private final Map<String, long[]> fileKeys = new HashMap<>();
+    private boolean dirty;
+
+    /**
+     * Where the content of one chunk can be read
+     */
+    private static class Location {
+        final String fileName;
+        final long offset;
+        final int length;
+
+        Location(String fileName, long offset, int length) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param directory Directory whose files are indexed
+     * @param indexFile Where the index is stored between runs
+     */
+    public ChunkIndex(File directory, File indexFile) {
+        this.directory = directory;
+        this.indexFile = indexFile;
+        load();
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return chunks.containsKey(key(hash));
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    /**
+     * Records the chunks of a file, replacing whatever was indexed under its name before
+     */
+    public synchronized void addFile(String fileName, List<Chunker.Chunk> fileChunks) {
+        removeFile(fileName);
+        long[] keys = new long[fileChunks.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Chunker.Chunk chunk = fileChunks.get(i);
+            keys[i] = key(chunk.hash);
+            chunks.put(keys[i], new Location(fileName, chunk.offset, chunk.length));
+        }
+        fileKeys.put(fileName, keys);
+        dirty = true;
+    }
+
+    public synchronized void removeFile(String fileName) {
+        long[] keys = fileKeys.remove(fileName);
+        if (keys == null) {
+            return;
+        }
+        for (long key : keys) {
+            Location location = chunks.get(key);
+            // Another file may have taken over a chunk both of them hold
+            if (location != null && location.fileName.equals(fileName)) {
+                chunks.remove(key);
+            }
+        }
+        dirty = true;
+    }
+
+    /**
+     * Chunks and indexes one file of the directory. Files too small for deduplication are skipped.
+     */
+    public void indexFile(File file) throws IOException {
+        long size = file.length();
+        if (size < Chunker.MIN_FILE_SIZE) {
+            return;
+        }
+        List<Chunker.Chunk> fileChunks;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            fileChunks = Chunker.chunk(channel, size);
+        }
+        addFile(file.getName(), fileChunks);
+    }
+
+    /**
+     * Indexes the files of the directory that are not indexed yet, such as files that were
+     * there before deduplication was enabled, and saves the index
+     */
+    public void indexMissing() {
+        File[] files = directory.listFiles(file -> file.isFile() && !file.isHidden()
+                && file.length() >= Chunker.MIN_FILE_SIZE);
+        if (files == null) {
+            return;
+        }
+        int indexed = 0;
+        for (File file : files) {
+            synchronized (this) {
+                if (fileKeys.containsKey(file.getName())) {
+                    continue;
+                }
+            }
+            try {
+                indexFile(file);
+                indexed++;
+            } catch (IOException e) {
+                TransferLog.w(TAG, "Could not index " + file + ": " + e.getMessage());
+            }
+        }
+        TransferLog.d(TAG, "Indexed " + indexed + " more files, " + size() + " chunks in " + directory);
+        save();
+    }
+
+    /**
+     * Copies a chunk the directory already holds into a file being received. The local
+     * copy is hashed on the way; exactly chunk.length bytes are always written so the
+     * received file keeps its layout.
+     * @return false if the chunk is no longer available with the expected content
+     */
+    public boolean copyChunk(Chunker.Chunk chunk, FileChannel target) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = chunks.get(key(chunk.hash));
+        }
+        MessageDigest digest = ContentHash.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(COPY_BUFFER_SIZE, chunk.length));
+        long copied = 0;
+        if (location != null && location.length == chunk.length) {
+            try (FileChannel source = FileChannel.open(new File(directory, location.fileName).toPath(),
+                    StandardOpenOption.READ)) {
+                while (copied < chunk.length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), chunk.length - copied));
+                    if (source.read(buffer, location.offset + copied) <= 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    copied += write(buffer, target, chunk.offset + copied);
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted since it was indexed
+            }
+        }
+
+        boolean matches = copied == chunk.length && ContentHash.equals(digest.digest(), chunk.hash);
+        if (!matches) {
+            if (location != null) {
+                TransferLog.w(TAG, "Dropping stale chunks of " + location.fileName);
+                removeFile(location.fileName);
+            }
+            // Keep the layout; the file fails verification and is sent again in full
+            while (copied < chunk.length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), chunk.length - copied));
+                copied += write(buffer, target, chunk.offset + copied);
+            }
+        }
+        return matches;
+    }
+
+    private static int write(ByteBuffer buffer, FileChannel target, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static long key(byte[] hash) {
+        return ByteBuffer.wrap(hash, 0, 8).getLong();
+    }
+
+    private void load() {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (dis.readInt() != FORMAT_VERSION) {
+                TransferLog.d(TAG, "Ignoring chunk index written for another version");
+                return;
+            }
+            int fileCount = dis.readInt();
+            Map<Long, Location> storedChunks = new HashMap<>();
+            Map<String, long[]> storedKeys = new HashMap<>();
+            for (int i = 0; i < fileCount; i++) {
+                String fileName = dis.readUTF();
+                long[] keys = new long[dis.readInt()];
+                for (int j = 0; j < keys.length; j++) {
+                    keys[j] = dis.readLong();
+                    long offset = dis.readLong();
+                    int length = dis.readInt();
+                    if (offset >= 0) {
+                        storedChunks.put(keys[j], new Location(fileName, offset, length));
+                    }
+                }
+                storedKeys.put(fileName, keys);
+            }
+            chunks.putAll(storedChunks);
+            fileKeys.putAll(storedKeys);
+        } catch (FileNotFoundException e) {
+            // Nothing indexed yet
+        } catch (IOException e) {
+            // A damaged index is rebuilt from the files by indexMissing
+            TransferLog.w(TAG, "Discarding unreadable chunk index " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the index if it changed, through a temporary file so a crash never leaves a torn index
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeInt(fileKeys.size());
+                for (Map.Entry<String, long[]> file : fileKeys.entrySet()) {
+                    dos.writeUTF(file.getKey());
+                    long[] keys = file.getValue();
+                    dos.writeInt(keys.length);
+                    for (long key : keys) {
+                        // A chunk held by several files is stored under whichever indexed it last
+                        Location location = chunks.get(key);
+                        boolean own = location != null && location.fileName.equals(file.getKey());
+                        dos.writeLong(key);
+                        dos.writeLong(own ? location.offset : -1);
+                        dos.writeInt(own ? location.length : 0);
+                    }
+                }
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Cannot replace " + indexFile);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            // The in-memory index stays valid; the next save tries again
+            TransferLog.w(TAG, "Could not save chunk index " + indexFile + ": " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits files into content-defined chunks for deduplication. Boundaries are placed where
+ * a gear rolling hash over the last 64 bytes hits a fixed pattern, so they follow the
+ * content rather than fixed offsets: identical data yields identical chunks no matter
+ * which file it is in or where in the file it starts.
+ *
+ * Chunks average about 1 MB. That is coarse for backup systems but matches what repeats on
+ * a phone (forwarded videos, renamed or copied files) and keeps the host's chunk index small.
+ */
+public final class Chunker {
+    /** Capability bit announced in the handshake by peers that take part in deduplication */
+    public static final int CAPABILITY_DEDUP = 2;
+
+    /** Files smaller than this are not worth a chunk list round trip */
+    public static final long MIN_FILE_SIZE = 4 * 1024 * 1024;
+
+    public static final int MIN_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    // Top 20 bits zero: one boundary every 1 MB on average past the minimum size
+    private static final long BOUNDARY_MASK = 0xFFFFF00000000000L;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: both sides must place boundaries identically
+        Random random = new Random(0x5EEDC4D3L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private Chunker() {
+    }
+
+    /**
+     * One chunk of a file
+     */
+    public static class Chunk {
+        public final long offset;
+        public final int length;
+        public final byte[] hash;
+
+        public Chunk(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Called between reads while a file is chunked
+     */
+    public interface ReadListener {
+        /**
+         * @param position Bytes of the file read so far
+         */
+        void onRead(long position) throws IOException;
+    }
+
+    /**
+     * Splits the first size bytes of a file into chunks and hashes each of them
+     */
+    public static List<Chunk> chunk(FileChannel file, long size) throws IOException {
+        return chunk(file, size, null);
+    }
+
+    /**
+     * Splits the first size bytes of a file into chunks and hashes each of them
+     * @param listener Called after each read, or null
+     */
+    public static List<Chunk> chunk(FileChannel file, long size, ReadListener listener) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = ContentHash.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+
+        long position = 0;
+        long chunkStart = 0;
+        long rolling = 0;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            int bytesRead = file.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new IOException("File shorter than expected");
+            }
+
+            int segmentStart = 0;
+            for (int i = 0; i < bytesRead; i++) {
+                rolling = (rolling << 1) + GEAR[bytes[i] & 0xFF];
+                long chunkLength = position + i + 1 - chunkStart;
+                if (chunkLength >= MIN_CHUNK_SIZE && (rolling & BOUNDARY_MASK) == 0
+                        || chunkLength >= MAX_CHUNK_SIZE) {
+                    digest.update(bytes, segmentStart, i + 1 - segmentStart);
+                    chunks.add(new Chunk(chunkStart, (int) chunkLength, digest.digest()));
+                    chunkStart = position + i + 1;
+                    segmentStart = i + 1;
+                    rolling = 0;
+                }
+            }
+            digest.update(bytes, segmentStart, bytesRead - segmentStart);
+            position += bytesRead;
+            if (listener != null) {
+                listener.onRead(position);
+            }
+        }
+        if (chunkStart < size) {
+            chunks.add(new Chunk(chunkStart, (int) (size - chunkStart), digest.digest()));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,204 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of file data on the wire. The codec is chosen per file: media that
+ * is already compressed is recognised by its extension and stored without touching its
+ * content, anything else is sampled by compressing a few of its blocks, and only files that
+ * shrink enough are deflated. Compressed files are sent as independent blocks, one per
+ * DATA frame, so a block can be inflated as soon as its frame has arrived and a broken
+ * transfer resumes at a block boundary.
+ */
+public final class Compression {
+    /** File data is sent as it is */
+    public static final byte STORE = 0;
+    /** File data is sent as deflated blocks */
+    public static final byte DEFLATE = 1;
+
+    /** Capability bit announced in the handshake by peers that accept deflated files */
+    public static final int CAPABILITY_DEFLATE = 1;
+
+    /** Uncompressed size of one block; a deflated block always fits a DATA frame */
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    // Selection: a file must shrink at least this much to be worth deflating
+    private static final double MAX_USEFUL_RATIO = 0.9;
+    // Below this ratio the data is compressible enough for a slower, stronger level
+    private static final double STRONG_RATIO = 0.5;
+    // Deflater's default level; its DEFAULT_COMPRESSION constant is -1, which means store here
+    private static final int STRONG_LEVEL = 6;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLE_COUNT = 2;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "heic", "heif", "png", "webp", "gif", "avif",
+            "mp4", "m4v", "mov", "3gp", "mkv", "webm", "ts",
+            "mp3", "m4a", "aac", "ogg", "opus", "amr",
+            "zip", "gz", "7z", "rar", "xz", "bz2", "zst"));
+
+    private Compression() {
+    }
+
+    public static boolean isKnownCodec(byte codec) {
+        return codec == STORE || codec == DEFLATE;
+    }
+
+    /**
+     * Picks the deflate level for a file, or -1 to store it
+     */
+    public static int selectLevel(File file) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return -1;
+        }
+
+        long length = file.length();
+        if (length < SAMPLE_SIZE) {
+            // Too small for the savings to outweigh a block of framing
+            return -1;
+        }
+
+        // Sample the start and the middle so a text header in front of binary data does not mislead
+        byte[] sample = new byte[SAMPLE_SIZE];
+        long sampled = 0;
+        long compressed = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                long position = i * (length / SAMPLE_COUNT);
+                raf.seek(position);
+                int bytesRead = raf.read(sample, 0, (int) Math.min(sample.length, length - position));
+                if (bytesRead <= 0) {
+                    break;
+                }
+                deflater.reset();
+                deflater.setInput(sample, 0, bytesRead);
+                deflater.finish();
+                byte[] out = new byte[SAMPLE_SIZE];
+                while (!deflater.finished()) {
+                    compressed += deflater.deflate(out);
+                }
+                sampled += bytesRead;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        double ratio = sampled == 0 ? 1 : (double) compressed / sampled;
+        if (ratio > MAX_USEFUL_RATIO) {
+            return -1;
+        }
+        return ratio < STRONG_RATIO ? STRONG_LEVEL : Deflater.BEST_SPEED;
+    }
+
+    /**
+     * Deflates blocks of one file for sending
+     */
+    public static class BlockDeflater {
+        private final Deflater deflater;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private byte[] output = new byte[BLOCK_SIZE + BLOCK_SIZE / 8];
+        private int outputLength;
+
+        public BlockDeflater(int level) {
+            deflater = new Deflater(level);
+        }
+
+        /**
+         * Reads and deflates the next block of the file
+         * @return Number of file bytes consumed, 0 at the end of the file
+         */
+        public int deflate(FileChannel file, long position, int length) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(block, 0, Math.min(length, BLOCK_SIZE));
+            while (bb.hasRemaining()) {
+                int bytesRead = file.read(bb, position + bb.position());
+                if (bytesRead == -1) {
+                    break;
+                }
+            }
+            int blockLength = bb.position();
+            if (blockLength == 0) {
+                return 0;
+            }
+
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            outputLength = 0;
+            while (!deflater.finished()) {
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+            }
+            return blockLength;
+        }
+
+        public byte[] getOutput() {
+            return output;
+        }
+
+        public int getOutputLength() {
+            return outputLength;
+        }
+
+        public void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates received blocks of one file into the file
+     */
+    public static class BlockInflater {
+        private final Inflater inflater = new Inflater();
+        private final byte[] output = new byte[BLOCK_SIZE];
+
+        /**
+         * @param limit Number of file bytes still expected; a block may not inflate past it
+         * @return Number of file bytes written
+         */
+        public int inflate(byte[] payload, int length, FileChannel file, long position, long limit) throws IOException {
+            inflater.reset();
+            inflater.setInput(payload, 0, length);
+            int written = 0;
+            try {
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(output);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new ProtocolException("Truncated compressed block");
+                    }
+                    if (written + inflated > Math.min(limit, BLOCK_SIZE)) {
+                        throw new ProtocolException("Compressed block larger than expected");
+                    }
+                    ByteBuffer src = ByteBuffer.wrap(output, 0, inflated);
+                    while (src.hasRemaining()) {
+                        file.write(src, position + written + src.position());
+                    }
+                    written += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Corrupt compressed block: " + e.getMessage());
+            }
+            return written;
+        }
+
+        public void end() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections of the simple send-a-file paths, kept open between files so that a file
+ * does not pay for a TCP connect and a slow start of its own. Up to
+ * {@link #MAX_CONNECTIONS_PER_HOST} connections to each receiver carry transfers in
+ * parallel, one file at a time each, and further transfers wait for one to become free.
+ * Idle connections are pinged every {@link Frame#HEARTBEAT_MILLIS}, so a dead link is
+ * noticed before a file is sent on it and the receiver does not drop them, and are closed
+ * once they have not carried a file for {@link #IDLE_CLOSE_MILLIS}. The pool is shared by
+ * all senders of the app, so a sender that stops closes only the connections it used last,
+ * see {@link #closeIdle(Object)}.
+ */
+public class ConnectionPool {
+    private static final String TAG = "ConnectionPool";
+    static final int MAX_CONNECTIONS_PER_HOST = 2;
+    static final long IDLE_CLOSE_MILLIS = 2 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final long HEARTBEAT_CHECK_MILLIS = Frame.HEARTBEAT_MILLIS / 3;
+
+    private static ConnectionPool shared;
+
+    private final Map<InetSocketAddress, Host> hosts = new HashMap<>();
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor();
+
+    private ConnectionPool() {
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_CHECK_MILLIS, HEARTBEAT_CHECK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the pool shared by all senders of the app
+     */
+    public static synchronized ConnectionPool get() {
+        if (shared == null) {
+            shared = new ConnectionPool();
+        }
+        return shared;
+    }
+
+    /**
+     * Sends a file over a pooled connection to the receiver, opening one if none is free.
+     * A pooled connection the receiver closed meanwhile is replaced once.
+     * @return true if the receiver verified the file
+     */
+    public boolean send(InetSocketAddress address, File file) throws IOException {
+        return send(null, address, file);
+    }
+
+    /**
+     * Sends a file like {@link #send(InetSocketAddress, File)} on behalf of an owner, which
+     * can close the connections it used with {@link #closeIdle(Object)}
+     * @param owner Sender the connection is left to, or null for none
+     */
+    public boolean send(Object owner, InetSocketAddress address, File file) throws IOException {
+        Host host = host(address);
+        while (true) {
+            Connection connection = host.acquire();
+            try {
+                boolean verified = connection.sender.send(file);
+                host.release(connection, owner);
+                return verified;
+            } catch (IOException e) {
+                host.discard(connection);
+                // A cancelled send interrupts its thread, which closes the channel; that is no stale connection
+                if (!connection.reused || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                TransferLog.d(TAG, "Pooled connection to " + address + " broke, reconnecting: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the idle connections whose last file was sent for the owner, ending them with
+     * END. Connections another sender used last stay open for it.
+     */
+    public void closeIdle(Object owner) {
+        for (Host host : hosts()) {
+            for (Connection connection : host.takeIdle(0, owner)) {
+                host.close(connection);
+            }
+        }
+    }
+
+    private synchronized Host host(InetSocketAddress address) {
+        Host host = hosts.get(address);
+        if (host == null) {
+            host = new Host(address);
+            hosts.put(address, host);
+        }
+        return host;
+    }
+
+    private synchronized List<Host> hosts() {
+        return new ArrayList<>(hosts.values());
+    }
+
+    /**
+     * Pings the connections that have been idle for a heartbeat interval and closes those
+     * idle for too long. A connection is out of the pool while it is pinged.
+     */
+    private void heartbeat() {
+        long now = System.nanoTime();
+        for (Host host : hosts()) {
+            for (Connection connection : host.takeIdle(Frame.HEARTBEAT_MILLIS, null)) {
+                if (now - connection.usedNanos >= TimeUnit.MILLISECONDS.toNanos(IDLE_CLOSE_MILLIS)) {
+                    TransferLog.d(TAG, "Closing idle connection to " + host.address);
+                    host.close(connection);
+                    continue;
+                }
+                try {
+                    connection.sender.ping();
+                    connection.activeNanos = System.nanoTime();
+                    host.giveBack(connection);
+                } catch (IOException e) {
+                    TransferLog.w(TAG, "Connection to " + host.address + " lost: " + e.getMessage());
+                    host.discard(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pooled connections to one receiver
+     */
+    private static class Host {
+        final InetSocketAddress address;
+        // Most recently used first, so busy periods keep reusing the warmest connection
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        private int open;
+
+        Host(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        Connection acquire() throws IOException {
+            synchronized (this) {
+                while (idle.isEmpty() && open >= MAX_CONNECTIONS_PER_HOST) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for a connection");
+                    }
+                }
+                if (!idle.isEmpty()) {
+                    return idle.pop();
+                }
+                open++;
+            }
+            try {
+                return connect();
+            } catch (IOException e) {
+                synchronized (this) {
+                    open--;
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+
+        private Connection connect() throws IOException {
+            // Open through a channel so the file data can be sent with transferTo
+            Socket socket = SocketChannel.open().socket();
+            try {
+                // The per-file verdict is a small frame the sender waits for
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                TransferLog.d(TAG, "Opening connection to " + address);
+                socket.connect(address, CONNECT_TIMEOUT);
+                return new Connection(new SingleFileTransfer.Sender(socket));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        synchronized void release(Connection connection, Object owner) {
+            connection.reused = true;
+            connection.owner = owner;
+            connection.usedNanos = System.nanoTime();
+            connection.activeNanos = connection.usedNanos;
+            idle.push(connection);
+            notifyAll();
+        }
+
+        /**
+         * Returns a connection taken out by {@link #takeIdle} without counting it as used
+         */
+        synchronized void giveBack(Connection connection) {
+            idle.addLast(connection);
+            notifyAll();
+        }
+
+        /**
+         * Takes the idle connections without a frame for at least quietMillis out of the pool
+         * @param owner Takes only the connections left to this owner, or null to take any
+         */
+        synchronized List<Connection> takeIdle(long quietMillis, Object owner) {
+            long now = System.nanoTime();
+            List<Connection> taken = new ArrayList<>();
+            for (Iterator<Connection> it = idle.iterator(); it.hasNext(); ) {
+                Connection connection = it.next();
+                if ((owner == null || connection.owner == owner)
+                        && now - connection.activeNanos >= TimeUnit.MILLISECONDS.toNanos(quietMillis)) {
+                    it.remove();
+                    taken.add(connection);
+                }
+            }
+            return taken;
+        }
+
+        /**
+         * Ends a connection that is out of the pool
+         */
+        void close(Connection connection) {
+            try {
+                connection.sender.close();
+            } catch (IOException e) {
+                // The receiver may have closed it already
+            }
+            closed();
+        }
+
+        /**
+         * Drops a broken connection that is out of the pool
+         */
+        void discard(Connection connection) {
+            connection.sender.abort();
+            closed();
+        }
+
+        private synchronized void closed() {
+            open--;
+            notifyAll();
+        }
+    }
+
+    private static class Connection {
+        final SingleFileTransfer.Sender sender;
+        // Whether the connection carried a file before, so a failure may be a stale connection
+        boolean reused;
+        // Sender of the last file, or null
+        Object owner;
+        // Last file, and last file or heartbeat
+        long usedNanos = System.nanoTime();
+        long activeNanos = usedNanos;
+
+        Connection(SingleFileTransfer.Sender sender) {
+            this.sender = sender;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashing helpers shared by the sync client and host
+ */
+public final class ContentHash {
+    public static final String ALGORITHM = "SHA-256";
+    public static final int LENGTH = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ContentHash() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Hashes the whole content of a file
+     */
+    public static byte[] hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        return digest.digest();
+    }
+
+    public static boolean equals(byte[] a, byte[] b) {
+        return a != null && b != null && MessageDigest.isEqual(a, b);
+    }
+
+    public static String toHex(byte[] hash) {
+        if (hash == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Hashes a file while it is being written. The writer reports every range it has written
+ * and a pipeline thread reads those ranges back, still hot in the page cache, and feeds
+ * them to the digest in order. Hashing thus overlaps the network I/O instead of costing a
+ * second pass over the file once it is complete, and it also works for data that was
+ * written with transferFrom and never passed through the Java heap.
+ */
+public class DigestPipeline {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel file;
+    private final Executor executor;
+    private final MessageDigest digest = ContentHash.newDigest();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param file Channel the data is written through; must stay open until {@link #finish()}
+     * @param executor Pipeline threads; ranges of one file are always hashed in order
+     */
+    public DigestPipeline(FileChannel file, Executor executor) {
+        this.file = file;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a range that has been written to the file. Ranges must be reported in file order.
+     */
+    public synchronized void update(long position, long length) {
+        if (length > 0) {
+            tail = tail.thenRunAsync(() -> hashRange(position, length), executor);
+        }
+    }
+
+    /**
+     * Waits until every queued range is hashed
+     * @return Digest of all reported ranges
+     */
+    public byte[] finish() throws IOException {
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            last = tail;
+        }
+        try {
+            last.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Hashing failed", cause);
+        }
+        return digest.digest();
+    }
+
+    private void hashRange(long position, long length) {
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long end = position + length;
+        try {
+            while (position < end) {
+                bb.clear();
+                bb.limit((int) Math.min(buffer.length, end - position));
+                int bytesRead = file.read(bb, position);
+                if (bytesRead == -1) {
+                    throw new IOException("File shorter than written range");
+                }
+                digest.update(buffer, 0, bytesRead);
+                position += bytesRead;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Reports files written to a directory while a sync runs, see {@link SyncEngine#setWatcherFactory}
+ */
+public interface DirectoryWatcher {
+
+    /**
+     * Receives the names of files written to the directory, in batches
+     */
+    interface Listener {
+        void onFilesWritten(Set<String> fileNames);
+    }
+
+    interface Factory {
+        DirectoryWatcher create(File directory, Listener listener);
+    }
+
+    void start();
+
+    void stop();
+}
@@ -0,0 +1,254 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index of the files in a source directory with their size, modification time
+ * and content hash. A refresh only stats and hashes what changed since the last one: if
+ * the directory itself has not been modified the stored entries are used as they are,
+ * otherwise known files are checked by size and modification time and only new or
+ * changed files are hashed. Camera files are written once, so a file edited in place
+ * without touching the directory is only picked up after {@link #invalidate()}. The
+ * index is kept in a state directory of the app so it survives restarts.
+ */
+public class FileIndex {
+    private static final String TAG = "FileIndex";
+    private static final String INDEX_FILE_NAME = "file_index.bin";
+    private static final int FORMAT_VERSION = 1;
+    private static final long MODIFIED_GRANULARITY_MS = 2000;
+
+    private static final Map<Path, FileIndex> openIndexes = new HashMap<>();
+
+    private final File sourceDir;
+    private final File indexFile;
+    private final Map<String, ManifestEntry> entries = new HashMap<>();
+    private long directoryModified = -1;
+    private boolean loaded;
+
+    /**
+     * @param sourceDir Directory whose files are indexed
+     * @param indexFile Where the index is stored between refreshes
+     */
+    public FileIndex(File sourceDir, File indexFile) {
+        this.sourceDir = sourceDir;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the index of a source directory kept in the given state directory. Everyone
+     * opening the same index shares one instance, such as the file count shown to the user
+     * and the sync manifest.
+     */
+    public static synchronized FileIndex open(Path sourceDir, Path stateDir) {
+        Path indexFile = stateDir.resolve(INDEX_FILE_NAME).toAbsolutePath();
+        FileIndex index = openIndexes.get(indexFile);
+        if (index == null) {
+            index = new FileIndex(sourceDir.toFile(), indexFile.toFile());
+            openIndexes.put(indexFile, index);
+        }
+        return index;
+    }
+
+    public File getSourceDir() {
+        return sourceDir;
+    }
+
+    /**
+     * One indexed file with its manifest entry
+     */
+    public static class Entry {
+        public final File file;
+        public final ManifestEntry manifest;
+
+        Entry(File file, ManifestEntry manifest) {
+            this.file = file;
+            this.manifest = manifest;
+        }
+    }
+
+    /**
+     * Brings the index up to date with the source directory and saves it if anything changed
+     * @return The indexed files, sorted by name
+     */
+    public synchronized List<Entry> refresh() throws IOException {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+
+        if (!sourceDir.isDirectory()) {
+            if (!entries.isEmpty()) {
+                entries.clear();
+                directoryModified = -1;
+                save();
+            }
+            return new ArrayList<>();
+        }
+
+        // Adding, removing or renaming a file updates the directory's modification time
+        long modified = sourceDir.lastModified();
+        if (modified == 0 || modified != directoryModified) {
+            boolean changed = rescan();
+            // A directory time this recent may still change within its granularity
+            long trusted = System.currentTimeMillis() - modified < MODIFIED_GRANULARITY_MS ? -1 : modified;
+            if (changed || trusted != directoryModified) {
+                directoryModified = trusted;
+                save();
+            }
+        }
+
+        List<String> names = new ArrayList<>(entries.keySet());
+        names.sort(null);
+        List<Entry> files = new ArrayList<>(names.size());
+        for (String name : names) {
+            files.add(new Entry(new File(sourceDir, name), entries.get(name)));
+        }
+        return files;
+    }
+
+    /**
+     * Brings the entries of the given files up to date without listing the directory, for
+     * files a watcher saw being written. A file is hashed again if its size or modification
+     * time changed; files that no longer exist are dropped.
+     * @return Entries of those of the files that exist
+     */
+    public synchronized List<Entry> update(Collection<String> fileNames) throws IOException {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+
+        boolean changed = false;
+        List<Entry> files = new ArrayList<>(fileNames.size());
+        for (String name : fileNames) {
+            File file = new File(sourceDir, name);
+            if (!file.isFile() || file.isHidden()) {
+                changed |= entries.remove(name) != null;
+                continue;
+            }
+            long size = file.length();
+            long lastModified = file.lastModified();
+            ManifestEntry known = entries.get(name);
+            if (known == null || known.fileSize != size || known.lastModified != lastModified) {
+                known = new ManifestEntry(name, size, lastModified, ContentHash.hash(file));
+                entries.put(name, known);
+                changed = true;
+            }
+            files.add(new Entry(file, known));
+        }
+        if (changed) {
+            save();
+        }
+        return files;
+    }
+
+    /**
+     * Drops the stored index so the next refresh hashes every file again
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+        directoryModified = -1;
+        loaded = true;
+        if (indexFile.exists() && !indexFile.delete()) {
+            TransferLog.w(TAG, "Could not delete index file " + indexFile);
+        }
+    }
+
+    /**
+     * Lists the directory, hashing new or changed files and dropping removed ones
+     * @return true if any entry changed
+     */
+    private boolean rescan() throws IOException {
+        File[] files = sourceDir.listFiles(file -> file.isFile() && !file.isHidden());
+        if (files == null) {
+            throw new IOException("Cannot list " + sourceDir);
+        }
+
+        boolean changed = false;
+        Map<String, ManifestEntry> current = new HashMap<>(files.length * 2);
+        int hashed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            ManifestEntry known = entries.get(name);
+            long size = file.length();
+            long lastModified = file.lastModified();
+            if (known != null && known.fileSize == size && known.lastModified == lastModified) {
+                current.put(name, known);
+                continue;
+            }
+            current.put(name, new ManifestEntry(name, size, lastModified, ContentHash.hash(file)));
+            hashed++;
+            changed = true;
+        }
+
+        if (!current.keySet().equals(entries.keySet())) {
+            changed = true;
+        }
+        entries.clear();
+        entries.putAll(current);
+        TransferLog.d(TAG, "Indexed " + entries.size() + " files in " + sourceDir + ", hashed " + hashed);
+        return changed;
+    }
+
+    private void load() {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (dis.readInt() != FORMAT_VERSION || !sourceDir.getAbsolutePath().equals(dis.readUTF())) {
+                TransferLog.d(TAG, "Ignoring index written for another version or directory");
+                return;
+            }
+            long modified = dis.readLong();
+            int count = dis.readInt();
+            Map<String, ManifestEntry> stored = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                ManifestEntry entry = ManifestEntry.read(dis);
+                stored.put(entry.fileName, entry);
+            }
+            entries.putAll(stored);
+            directoryModified = modified;
+        } catch (FileNotFoundException e) {
+            // First run, nothing indexed yet
+        } catch (IOException e) {
+            // A damaged index only costs a full rescan
+            TransferLog.w(TAG, "Discarding unreadable index " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file first so a crash never leaves a torn index
+     */
+    private void save() {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeUTF(sourceDir.getAbsolutePath());
+                dos.writeLong(directoryModified);
+                dos.writeInt(entries.size());
+                for (ManifestEntry entry : entries.values()) {
+                    entry.write(dos);
+                }
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("Cannot replace " + indexFile);
+            }
+        } catch (IOException e) {
+            // The in-memory index stays valid; the next refresh tries to save again
+            TransferLog.w(TAG, "Could not save index " + indexFile + ": " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs many small files into one PACK frame, much like a streaming tar, so they share a
+ * frame header, a flush and a progress callback instead of paying for each on their own.
+ * Every packed file carries its manifest index, the offset its data starts at, the data
+ * itself and its content hash, so the host can stage and verify it without further frames.
+ */
+public class FilePack {
+    /** Files with fewer bytes left to send than this are packed */
+    public static final int FILE_THRESHOLD = 256 * 1024;
+    /** A pack is sent once it holds this many bytes */
+    public static final int TARGET_SIZE = 1024 * 1024;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(TARGET_SIZE + FILE_THRESHOLD);
+    private final DataOutputStream dos = new DataOutputStream(bytes);
+    private int fileCount;
+
+    /**
+     * One file unpacked from a PACK frame; its data stays in the frame payload
+     */
+    public static class Entry {
+        public final int index;
+        public final long offset;
+        public final byte[] data;
+        public final int dataOffset;
+        public final int length;
+        public final byte[] hash;
+
+        Entry(int index, long offset, byte[] data, int dataOffset, int length, byte[] hash) {
+            this.index = index;
+            this.offset = offset;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Adds the rest of a file from offset on
+     */
+    public void add(int index, File file, long offset, int length, byte[] hash) throws IOException {
+        byte[] data = new byte[length];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, offset + bb.position()) == -1) {
+                    throw new IOException("File changed while sending: " + file.getName());
+                }
+            }
+        }
+        dos.writeInt(index);
+        dos.writeLong(offset);
+        dos.writeInt(length);
+        dos.write(data);
+        dos.write(hash);
+        fileCount++;
+    }
+
+    public int size() {
+        return bytes.size();
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public boolean isEmpty() {
+        return fileCount == 0;
+    }
+
+    /**
+     * Returns the PACK frame payload and empties the pack for the next batch
+     */
+    public byte[] drain() {
+        byte[] payload = bytes.toByteArray();
+        bytes.reset();
+        fileCount = 0;
+        return payload;
+    }
+
+    /**
+     * Splits a PACK frame into its files
+     */
+    public static List<Entry> read(Frame frame) throws IOException {
+        FrameCodec.expect(frame, Frame.PACK);
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        List<Entry> entries = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            if (payload.remaining() < 16 + ContentHash.LENGTH) {
+                throw new ProtocolException("Truncated packed file");
+            }
+            int index = payload.getInt();
+            long offset = payload.getLong();
+            int length = payload.getInt();
+            if (offset < 0 || length < 0 || length > payload.remaining() - ContentHash.LENGTH) {
+                throw new ProtocolException("Invalid packed file length " + length);
+            }
+            int dataOffset = payload.position();
+            payload.position(dataOffset + length);
+            byte[] hash = new byte[ContentHash.LENGTH];
+            payload.get(hash);
+            entries.add(new Entry(index, offset, frame.payload, dataOffset, length, hash));
+        }
+        return entries;
+    }
+}
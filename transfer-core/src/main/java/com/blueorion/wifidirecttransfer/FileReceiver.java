@@ -0,0 +1,155 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Copies incoming socket data into a file. When the socket has a channel the bytes are
+ * moved with {@link FileChannel#transferFrom}, which writes straight from the socket
+ * channel into the file without passing them through a Java heap buffer. Otherwise the
+ * data is copied through a heap buffer.
+ */
+public final class FileReceiver {
+    // Upper bound per transferFrom call so written ranges are reported as the file fills
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+
+    private FileReceiver() {
+    }
+
+    /**
+     * Buffered socket input that can tell how many bytes it has read ahead. Those bytes
+     * have already left the socket and must be written out before reading from the channel.
+     */
+    public static class SocketInput extends BufferedInputStream {
+        public SocketInput(InputStream in) {
+            super(in);
+        }
+
+        public SocketInput(InputStream in, int size) {
+            super(in, size);
+        }
+
+        public synchronized int buffered() {
+            return count - pos;
+        }
+    }
+
+    /**
+     * Told about every range of the file once it has been written
+     */
+    public interface WriteListener {
+        void onWritten(long position, long length);
+    }
+
+    /**
+     * Thrown when the connection fails part way through a file, carrying how many bytes
+     * were written before the failure so the caller can keep them for a resume
+     */
+    public static class PartialTransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final long bytesTransferred;
+
+        PartialTransferException(long bytesTransferred, IOException cause) {
+            super(cause.getMessage(), cause);
+            this.bytesTransferred = bytesTransferred;
+        }
+    }
+
+    /**
+     * Receives count bytes into the file starting at position
+     * @param in Buffered socket input the stream headers were read from
+     * @param channel Socket channel to use for the zero-copy path, or null to use the stream
+     * @param buffer Heap buffer for bytes already read ahead and for the stream path
+     * @param listener Told about each written range in order, or null
+     * @param metrics Records the received bytes and the time of each heap buffer write, or null.
+     *                transferFrom has no separate disk write to time.
+     * @return Number of bytes received, less than count if the connection ended early
+     * @throws PartialTransferException if the connection fails part way through
+     */
+    public static long receive(FileChannel file, long position, long count, SocketInput in,
+                               ReadableByteChannel channel, byte[] buffer, WriteListener listener,
+                               TransferMetrics.Stream metrics) throws IOException {
+        long received = 0;
+        try {
+            // Bytes already read ahead into the stream buffer come first
+            int readAhead = channel == null ? 0 : (int) Math.min(in.buffered(), count);
+            while (received < readAhead) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, readAhead - received));
+                if (bytesRead == -1) {
+                    return received;
+                }
+                writeFully(file, ByteBuffer.wrap(buffer, 0, bytesRead), position + received, metrics);
+                if (listener != null) {
+                    listener.onWritten(position + received, bytesRead);
+                }
+                if (metrics != null) {
+                    metrics.onBytes(bytesRead);
+                }
+                received += bytesRead;
+            }
+
+            while (received < count) {
+                long chunk = channel != null
+                        ? transferFrom(file, position + received, Math.min(count - received, TRANSFER_CHUNK), channel)
+                        : copy(file, position + received, Math.min(count - received, buffer.length), in, buffer,
+                        metrics);
+                if (chunk <= 0) {
+                    break;
+                }
+                if (listener != null) {
+                    listener.onWritten(position + received, chunk);
+                }
+                if (metrics != null) {
+                    metrics.onBytes(chunk);
+                }
+                received += chunk;
+            }
+            return received;
+        } catch (IOException e) {
+            throw new PartialTransferException(received, e);
+        }
+    }
+
+    /**
+     * Zero-copy receive path; returns after one transfer, which may be short
+     */
+    public static long transferFrom(FileChannel file, long position, long count,
+                                    ReadableByteChannel channel) throws IOException {
+        // A blocking socket channel only delivers nothing at end of stream
+        return file.transferFrom(channel, position, count);
+    }
+
+    /**
+     * Buffered copy through the heap, kept as the fallback when there is no socket channel
+     * @param metrics Times each file write, or null
+     */
+    public static long copy(FileChannel file, long position, long count,
+                            InputStream in, byte[] buffer, TransferMetrics.Stream metrics) throws IOException {
+        long received = 0;
+        while (received < count) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count - received));
+            if (bytesRead == -1) {
+                break;
+            }
+            writeFully(file, ByteBuffer.wrap(buffer, 0, bytesRead), position + received, metrics);
+            received += bytesRead;
+        }
+        return received;
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer src, long position,
+                                   TransferMetrics.Stream metrics) throws IOException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        while (src.hasRemaining()) {
+            position += file.write(src, position);
+        }
+        if (metrics != null) {
+            metrics.onDiskWrite(System.nanoTime() - start);
+        }
+    }
+}
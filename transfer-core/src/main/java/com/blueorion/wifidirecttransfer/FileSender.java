@@ -0,0 +1,75 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies file content to a socket. When the socket has a channel the bytes go through
+ * {@link FileChannel#transferTo}, which lets the kernel move them straight from the page
+ * cache to the socket without passing through the Java heap. Otherwise the content is
+ * copied through a heap buffer into the socket's output stream.
+ */
+public final class FileSender {
+
+    private FileSender() {
+    }
+
+    /**
+     * Sends count bytes of the file starting at position
+     * @param channel Socket channel to use for the zero-copy path, or null to use the stream
+     * @param out Socket output stream used when no channel is given; must be flushed by the caller
+     *            before calling this method if it buffers earlier writes
+     * @param buffer Heap buffer for the stream path
+     * @return Number of bytes sent, less than count if the file ended early
+     */
+    public static long send(FileChannel file, long position, long count,
+                            WritableByteChannel channel, OutputStream out, byte[] buffer) throws IOException {
+        if (channel != null) {
+            return transferTo(file, position, count, channel);
+        }
+        return copy(file, position, count, out, buffer);
+    }
+
+    /**
+     * Zero-copy send path
+     */
+    public static long transferTo(FileChannel file, long position, long count,
+                                  WritableByteChannel channel) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long transferred = file.transferTo(position + sent, count - sent, channel);
+            if (transferred <= 0) {
+                // A blocking transfer only stops short at the end of the file
+                if (position + sent >= file.size()) {
+                    break;
+                }
+                continue;
+            }
+            sent += transferred;
+        }
+        return sent;
+    }
+
+    /**
+     * Buffered copy through the heap, kept as the fallback when there is no socket channel
+     */
+    public static long copy(FileChannel file, long position, long count,
+                            OutputStream out, byte[] buffer) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long sent = 0;
+        while (sent < count) {
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, count - sent));
+            int bytesRead = file.read(bb, position + sent);
+            if (bytesRead == -1) {
+                break;
+            }
+            out.write(buffer, 0, bytesRead);
+            sent += bytesRead;
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,119 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.net.ProtocolException;
+
+/**
+ * One frame of the version 2 wire protocol shared by all transfer paths. Every frame
+ * starts with a one byte type and a four byte payload length, so a reader always knows
+ * how much to consume before the next frame, whether it reads from a blocking stream or
+ * parses bytes as they arrive on a selector. A connection opens with a HELLO frame that
+ * carries the protocol magic and version.
+ *
+ * Control frames are read into memory whole. DATA frames carry raw file bytes and are
+ * streamed straight into the destination file instead.
+ *
+ * A file offered for deduplication starts with a CHUNKS frame instead of a FILE_HEADER.
+ * The receiver answers with the chunks it does not hold, and the sender follows with
+ * DATA frames for just those chunks, in file order, and the usual TRAILER.
+ *
+ * Between two files a sync client may send another MANIFEST with files it found after the
+ * sync started. The receiver numbers them after the files it knows and answers with the
+ * first new index and those of the new files it wants, which then go out like any other.
+ * A stream that ends its round with END marked for more rounds stays open after the
+ * round reply, so a continuous sync can keep sending new captures on it.
+ *
+ * A sender that keeps a connection open without sending files pings it at least every
+ * {@link #HEARTBEAT_MILLIS} between files; the receiver echoes each PING. That tells the
+ * sender its link is still alive and lets a receiver drop connections that went silent.
+ */
+public final class Frame {
+    public static final int MAGIC = 0x57444654; // "WDFT"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_CONTROL_PAYLOAD = 16 * 1024 * 1024;
+    public static final int MAX_DATA_PAYLOAD = 1024 * 1024;
+    /** Longest a sender leaves an open connection without a frame */
+    public static final int HEARTBEAT_MILLIS = 15000;
+    /** How long a sender waits for the echo of a PING */
+    public static final int HEARTBEAT_TIMEOUT_MILLIS = 10000;
+    /** A receiver may close a connection that has been silent this long */
+    public static final int IDLE_TIMEOUT_MILLIS = 4 * HEARTBEAT_MILLIS;
+
+    /** Opens a connection: magic, version, session id and stream index */
+    public static final byte HELLO = 1;
+    /** The sender's file list, see {@link ManifestEntry} */
+    public static final byte MANIFEST = 2;
+    /** Announces a file: index, name, offset and number of bytes that follow */
+    public static final byte FILE_HEADER = 3;
+    /** Raw file bytes of the announced file */
+    public static final byte DATA = 4;
+    /** Content hash of the whole file, following its data */
+    public static final byte TRAILER = 5;
+    /** Reply to a MANIFEST, END or TRAILER frame; the payload depends on what it answers */
+    public static final byte ACK = 6;
+    /** Ends a round of files on a stream, optionally announcing another round */
+    public static final byte END = 7;
+    /** Several small files sent whole in one frame, see {@link FilePack} */
+    public static final byte PACK = 8;
+    /** Chunk list of a file offered for deduplication, see {@link Chunker}; answered with the chunks to send */
+    public static final byte CHUNKS = 9;
+    /** Heartbeat between files, echoed by the receiver; no payload */
+    public static final byte PING = 10;
+
+    public final byte type;
+    public final byte[] payload;
+
+    public Frame(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    /**
+     * Returns a reader over the payload
+     */
+    public DataInputStream payload() {
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Checks a frame header before its payload is consumed
+     */
+    public static void checkHeader(byte type, int length) throws ProtocolException {
+        if (type < HELLO || type > PING) {
+            throw new ProtocolException("Unknown frame type " + type);
+        }
+        int max = type == DATA ? MAX_DATA_PAYLOAD : MAX_CONTROL_PAYLOAD;
+        if (length < 0 || length > max) {
+            throw new ProtocolException("Invalid " + typeName(type) + " frame length " + length);
+        }
+    }
+
+    public static String typeName(byte type) {
+        switch (type) {
+            case HELLO:
+                return "HELLO";
+            case MANIFEST:
+                return "MANIFEST";
+            case FILE_HEADER:
+                return "FILE_HEADER";
+            case DATA:
+                return "DATA";
+            case TRAILER:
+                return "TRAILER";
+            case ACK:
+                return "ACK";
+            case END:
+                return "END";
+            case PACK:
+                return "PACK";
+            case CHUNKS:
+                return "CHUNKS";
+            case PING:
+                return "PING";
+            default:
+                return "type " + type;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes the payloads of protocol frames, see {@link Frame}
+ */
+public final class FrameCodec {
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Writes the fields of one payload
+     */
+    public interface PayloadWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    /**
+     * Stream header sent in the HELLO frame
+     */
+    public static class Hello {
+        public final long sessionId;
+        public final int streamIndex;
+        // Optional features the sender supports, such as Compression.CAPABILITY_DEFLATE
+        public final int capabilities;
+
+        public Hello(long sessionId, int streamIndex, int capabilities) {
+            this.sessionId = sessionId;
+            this.streamIndex = streamIndex;
+            this.capabilities = capabilities;
+        }
+    }
+
+    /**
+     * File announcement sent in the FILE_HEADER frame
+     */
+    public static class FileHeader {
+        public final int index;
+        public final String fileName;
+        public final long offset;
+        public final long length;
+        // How the DATA frames of the file are encoded, see Compression
+        public final byte codec;
+
+        public FileHeader(int index, String fileName, long offset, long length, byte codec) {
+            this.index = index;
+            this.fileName = fileName;
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * Chunk list of one file sent in the CHUNKS frame
+     */
+    public static class ChunkList {
+        public final int index;
+        public final List<Chunker.Chunk> chunks;
+
+        public ChunkList(int index, List<Chunker.Chunk> chunks) {
+            this.index = index;
+            this.chunks = chunks;
+        }
+
+        public long length() {
+            if (chunks.isEmpty()) {
+                return 0;
+            }
+            Chunker.Chunk last = chunks.get(chunks.size() - 1);
+            return last.offset + last.length;
+        }
+    }
+
+    /**
+     * Builds a payload from the fields the writer puts into it
+     */
+    public static byte[] encode(PayloadWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream dos = new DataOutputStream(bytes);
+        writer.write(dos);
+        dos.flush();
+        return bytes.toByteArray();
+    }
+
+    public static byte[] hello(long sessionId, int streamIndex, int capabilities) throws IOException {
+        return encode(dos -> {
+            dos.writeInt(Frame.MAGIC);
+            dos.writeByte(Frame.VERSION);
+            dos.writeLong(sessionId);
+            dos.writeInt(streamIndex);
+            dos.writeInt(capabilities);
+        });
+    }
+
+    public static Hello readHello(Frame frame) throws IOException {
+        expect(frame, Frame.HELLO);
+        DataInputStream dis = frame.payload();
+        if (dis.readInt() != Frame.MAGIC) {
+            throw new ProtocolException("Not a transfer connection");
+        }
+        int version = dis.readUnsignedByte();
+        if (version != Frame.VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        return new Hello(dis.readLong(), dis.readInt(), dis.readInt());
+    }
+
+    public static byte[] manifest(ManifestEntry[] manifest) throws IOException {
+        return encode(dos -> {
+            dos.writeInt(manifest.length);
+            for (ManifestEntry entry : manifest) {
+                entry.write(dos);
+            }
+        });
+    }
+
+    public static ManifestEntry[] readManifest(Frame frame) throws IOException {
+        expect(frame, Frame.MANIFEST);
+        DataInputStream dis = frame.payload();
+        int size = dis.readInt();
+        // Every entry takes more than one byte, so the payload length bounds the count
+        if (size < 0 || size > frame.payload.length) {
+            throw new ProtocolException("Invalid manifest size " + size);
+        }
+        ManifestEntry[] manifest = new ManifestEntry[size];
+        for (int i = 0; i < size; i++) {
+            manifest[i] = ManifestEntry.read(dis);
+        }
+        return manifest;
+    }
+
+    public static byte[] fileHeader(int index, String fileName, long offset, long length, byte codec)
+            throws IOException {
+        return encode(dos -> {
+            dos.writeInt(index);
+            dos.writeUTF(fileName);
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            dos.writeByte(codec);
+        });
+    }
+
+    public static FileHeader readFileHeader(Frame frame) throws IOException {
+        expect(frame, Frame.FILE_HEADER);
+        DataInputStream dis = frame.payload();
+        FileHeader header = new FileHeader(dis.readInt(), dis.readUTF(), dis.readLong(), dis.readLong(), dis.readByte());
+        if (header.offset < 0 || header.length < 0) {
+            throw new ProtocolException("Invalid range for " + header.fileName);
+        }
+        if (!Compression.isKnownCodec(header.codec)) {
+            throw new ProtocolException("Unknown codec " + header.codec + " for " + header.fileName);
+        }
+        return header;
+    }
+
+    /**
+     * Encodes a file's chunks in order; offsets follow from the lengths
+     */
+    public static byte[] chunkList(int index, List<Chunker.Chunk> chunks) throws IOException {
+        return encode(dos -> {
+            dos.writeInt(index);
+            dos.writeInt(chunks.size());
+            for (Chunker.Chunk chunk : chunks) {
+                dos.writeInt(chunk.length);
+                dos.write(chunk.hash);
+            }
+        });
+    }
+
+    public static ChunkList readChunkList(Frame frame) throws IOException {
+        expect(frame, Frame.CHUNKS);
+        DataInputStream dis = frame.payload();
+        int index = dis.readInt();
+        int count = dis.readInt();
+        if (count < 0 || count > frame.payload.length / (4 + ContentHash.LENGTH)) {
+            throw new ProtocolException("Invalid chunk count " + count);
+        }
+        List<Chunker.Chunk> chunks = new ArrayList<>(count);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            int length = dis.readInt();
+            if (length <= 0 || length > Chunker.MAX_CHUNK_SIZE) {
+                throw new ProtocolException("Invalid chunk length " + length);
+            }
+            byte[] hash = new byte[ContentHash.LENGTH];
+            dis.readFully(hash);
+            chunks.add(new Chunker.Chunk(offset, length, hash));
+            offset += length;
+        }
+        return new ChunkList(index, chunks);
+    }
+
+    /**
+     * Encodes the reply to a CHUNKS frame: the positions of the chunks the receiver needs
+     * @param local Which chunks the receiver already holds
+     */
+    public static byte[] chunkReply(boolean[] local) throws IOException {
+        return encode(dos -> {
+            int needed = 0;
+            for (boolean held : local) {
+                if (!held) {
+                    needed++;
+                }
+            }
+            dos.writeInt(needed);
+            for (int i = 0; i < local.length; i++) {
+                if (!local[i]) {
+                    dos.writeInt(i);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Which of the chunkCount chunks the receiver asks for
+     */
+    public static boolean[] readChunkReply(Frame frame, int chunkCount) throws IOException {
+        expect(frame, Frame.ACK);
+        DataInputStream dis = frame.payload();
+        int count = dis.readInt();
+        if (count < 0 || count > chunkCount) {
+            throw new ProtocolException("Invalid chunk reply");
+        }
+        boolean[] needed = new boolean[chunkCount];
+        for (int i = 0; i < count; i++) {
+            int position = dis.readInt();
+            if (position < 0 || position >= chunkCount) {
+                throw new ProtocolException("Invalid chunk reply");
+            }
+            needed[position] = true;
+        }
+        return needed;
+    }
+
+    /**
+     * END payload. An empty one closes the stream once the round is settled; a stream that
+     * stays open for further rounds says so, which older receivers read as a plain END.
+     */
+    public static byte[] end(boolean moreRounds) {
+        return moreRounds ? new byte[] {1} : new byte[0];
+    }
+
+    /**
+     * @return true if the sender keeps the stream open for another round
+     */
+    public static boolean readEnd(Frame frame) throws IOException {
+        expect(frame, Frame.END);
+        return frame.payload.length > 0 && frame.payload[0] != 0;
+    }
+
+    public static byte[] readTrailer(Frame frame) throws IOException {
+        expect(frame, Frame.TRAILER);
+        if (frame.payload.length != ContentHash.LENGTH) {
+            throw new ProtocolException("Invalid trailer length " + frame.payload.length);
+        }
+        return frame.payload;
+    }
+
+    /**
+     * Checks that a frame is of the type the protocol expects at this point
+     */
+    public static void expect(Frame frame, byte type) throws ProtocolException {
+        if (frame.type != type) {
+            throw new ProtocolException("Expected " + Frame.typeName(type) + " frame but got "
+                    + Frame.typeName(frame.type));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads protocol frames from a blocking socket. Control frames are returned whole; the
+ * payload of DATA frames is received into a file with {@link FileReceiver}, so it keeps
+ * using transferFrom when the socket has a channel, or handed to a disk writer thread
+ * through a {@link ReceivePipeline} if one is set. Reads from the channel are held to the
+ * socket's read timeout as well, see {@link IdleTimeoutChannel}.
+ */
+public class FrameReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final FileReceiver.SocketInput in;
+    private final DataInputStream dis;
+    private final ReadableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] blockBuffer;
+    private TransferMetrics.Stream metrics;
+    private ReceivePipeline pipeline;
+
+    /**
+     * @param in Socket input stream; it is buffered here
+     * @param channel Socket channel for the zero-copy data path, or null to copy through the heap
+     */
+    public FrameReader(InputStream in, ReadableByteChannel channel) {
+        this.in = new FileReceiver.SocketInput(in, BUFFER_SIZE);
+        this.dis = new DataInputStream(this.in);
+        this.channel = IdleTimeoutChannel.wrap(channel);
+    }
+
+    /**
+     * Records received file data into the given connection counters from now on
+     */
+    public void setMetrics(TransferMetrics.Stream metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes uncompressed file data on the pipeline's disk writer from now on. The caller
+     * keeps closing the pipeline.
+     */
+    public void setPipeline(ReceivePipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Reads the next control frame
+     */
+    public Frame read() throws IOException {
+        byte type = dis.readByte();
+        int length = dis.readInt();
+        Frame.checkHeader(type, length);
+        if (type == Frame.DATA) {
+            throw new ProtocolException("Unexpected DATA frame");
+        }
+        byte[] payload = new byte[length];
+        dis.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Reads the next control frame, which must be of the given type
+     */
+    public Frame expect(byte type) throws IOException {
+        Frame frame = read();
+        FrameCodec.expect(frame, type);
+        return frame;
+    }
+
+    /**
+     * Receives count bytes of DATA frames into the file starting at position
+     * @param codec Encoding of the DATA frames announced in the file header
+     * @param listener Told about each written range in order, or null
+     * @return Number of bytes received, less than count if the connection ended early
+     * @throws FileReceiver.PartialTransferException if the connection fails part way through
+     */
+    public long readData(FileChannel file, long position, long count, byte codec,
+                         FileReceiver.WriteListener listener) throws IOException {
+        if (codec == Compression.DEFLATE) {
+            return readCompressedData(file, position, count, listener);
+        }
+        if (pipeline != null) {
+            return readPipelinedData(file, position, count, listener);
+        }
+        long received = 0;
+        try {
+            while (received < count) {
+                byte type = dis.readByte();
+                int length = dis.readInt();
+                Frame.checkHeader(type, length);
+                if (type != Frame.DATA || length > count - received) {
+                    throw new ProtocolException("Expected " + (count - received) + " more bytes of file data");
+                }
+                long chunk = FileReceiver.receive(file, position + received, length, in, channel, buffer, listener,
+                        metrics);
+                received += chunk;
+                if (chunk < length) {
+                    break;
+                }
+            }
+            return received;
+        } catch (FileReceiver.PartialTransferException e) {
+            throw new FileReceiver.PartialTransferException(received + e.bytesTransferred, e);
+        } catch (IOException e) {
+            throw new FileReceiver.PartialTransferException(received, e);
+        }
+    }
+
+    /**
+     * Receives DATA frames through the pipeline and returns once all of them are written
+     */
+    private long readPipelinedData(FileChannel file, long position, long count,
+                                   FileReceiver.WriteListener listener) throws IOException {
+        long received = 0;
+        try {
+            while (received < count) {
+                byte type = dis.readByte();
+                int length = dis.readInt();
+                Frame.checkHeader(type, length);
+                if (type != Frame.DATA || length > count - received) {
+                    throw new ProtocolException("Expected " + (count - received) + " more bytes of file data");
+                }
+                long chunk = pipeline.receive(file, position + received, length, in, channel, listener);
+                received += chunk;
+                if (chunk < length) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // What was queued still lands in the file before the caller trims it
+            throw new FileReceiver.PartialTransferException(pipeline.drain(), e);
+        }
+        return pipeline.drain();
+    }
+
+    /**
+     * Receives deflated blocks, each in its own DATA frame, and inflates them into the file.
+     * Only whole blocks are written, so a broken transfer leaves the file at a block boundary.
+     */
+    private long readCompressedData(FileChannel file, long position, long count,
+                                    FileReceiver.WriteListener listener) throws IOException {
+        if (blockBuffer == null) {
+            blockBuffer = new byte[Frame.MAX_DATA_PAYLOAD];
+        }
+        Compression.BlockInflater inflater = new Compression.BlockInflater();
+        long received = 0;
+        try {
+            while (received < count) {
+                byte type = dis.readByte();
+                int length = dis.readInt();
+                Frame.checkHeader(type, length);
+                if (type != Frame.DATA) {
+                    throw new ProtocolException("Expected " + (count - received) + " more bytes of file data");
+                }
+                dis.readFully(blockBuffer, 0, length);
+                int written = inflater.inflate(blockBuffer, length, file, position + received, count - received);
+                if (listener != null) {
+                    listener.onWritten(position + received, written);
+                }
+                if (metrics != null) {
+                    metrics.onBytes(length);
+                }
+                received += written;
+            }
+            return received;
+        } catch (IOException e) {
+            throw new FileReceiver.PartialTransferException(received, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes protocol frames to a socket. File data goes out as DATA frames whose payload is
+ * sent with {@link FileSender}, so it keeps using transferTo when the socket has a channel.
+ */
+public class FrameWriter {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream socketOut;
+    private final WritableByteChannel channel;
+    private DataOutputStream out;
+    private byte[] buffer;
+    private TransferMetrics.Stream metrics;
+    private ProgressReporter.Tracker progress;
+
+    /**
+     * @param out Socket output stream; it is buffered here
+     * @param channel Socket channel for the zero-copy data path, or null to copy through the heap
+     */
+    public FrameWriter(OutputStream out, WritableByteChannel channel) {
+        this.socketOut = out;
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.channel = channel;
+        this.buffer = channel == null ? new byte[BUFFER_SIZE] : null;
+    }
+
+    /**
+     * Resizes the buffers between frames; anything buffered is flushed first
+     * @param copyBufferSize Heap buffer for file data when there is no channel
+     * @param coalesceSize Bytes of frames gathered before they are written to the socket
+     */
+    public void setBufferSizes(int copyBufferSize, int coalesceSize) throws IOException {
+        out.flush();
+        out = new DataOutputStream(new BufferedOutputStream(socketOut, coalesceSize));
+        if (channel == null && buffer.length != copyBufferSize) {
+            buffer = new byte[copyBufferSize];
+        }
+    }
+
+    /**
+     * Records sent file data into the given connection counters from now on
+     */
+    public void setMetrics(TransferMetrics.Stream metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reports the file bytes sent from now on to the given tracker, or to none if null
+     */
+    public void setProgress(ProgressReporter.Tracker progress) {
+        this.progress = progress;
+    }
+
+    public void write(byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Sends count bytes of the file starting at position as a series of DATA frames
+     * @return Number of bytes sent, less than count if the file ended early
+     */
+    public long writeData(FileChannel file, long position, long count) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            int length = (int) Math.min(count - sent, Frame.MAX_DATA_PAYLOAD);
+            out.writeByte(Frame.DATA);
+            out.writeInt(length);
+            // The frame header must reach the socket before the channel writes behind the stream
+            if (channel != null) {
+                out.flush();
+            }
+            long chunk = FileSender.send(file, position + sent, length, channel, out, buffer);
+            if (metrics != null) {
+                metrics.onBytes(chunk);
+            }
+            if (progress != null) {
+                progress.add(chunk);
+            }
+            sent += chunk;
+            if (chunk < length) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Sends count bytes of the file starting at position as deflated blocks, one DATA frame each
+     * @param level Deflate level picked by {@link Compression#selectLevel}
+     * @return Number of file bytes sent, less than count if the file ended early
+     */
+    public long writeCompressedData(FileChannel file, long position, long count, int level) throws IOException {
+        Compression.BlockDeflater deflater = new Compression.BlockDeflater(level);
+        try {
+            long sent = 0;
+            while (sent < count) {
+                int consumed = deflater.deflate(file, position + sent, (int) Math.min(count - sent, Compression.BLOCK_SIZE));
+                if (consumed == 0) {
+                    break;
+                }
+                out.writeByte(Frame.DATA);
+                out.writeInt(deflater.getOutputLength());
+                out.write(deflater.getOutput(), 0, deflater.getOutputLength());
+                if (metrics != null) {
+                    metrics.onBytes(deflater.getOutputLength());
+                }
+                if (progress != null) {
+                    progress.add(consumed);
+                }
+                sent += consumed;
+            }
+            return sent;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,480 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Host side registry of client sync sessions, shared by the blocking and the selector
+ * based receive engines. It decides which files of a client's manifest are requested,
+ * tracks the streams of each session and moves completed files out of staging.
+ */
+public class HostSessions {
+    private static final String TAG = "HostSessions";
+    // Attempts per file before a file that keeps failing verification is given up
+    public static final int MAX_FILE_ATTEMPTS = 3;
+    // How long a further stream waits for the first stream to publish its session
+    static final long JOIN_TIMEOUT_MILLIS = 10000;
+
+    private final StagingArea staging;
+    private final Executor hashExecutor;
+    private final int capabilities;
+    private final ChunkIndex chunkIndex;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    // Notified when a session is published
+    private final Object published = new Object();
+
+    /**
+     * @param hashExecutor Pipeline threads that hash incoming files while they are written
+     * @param capabilities Optional protocol features the host supports
+     * @param chunkIndex Chunks of the destination directory for deduplication, or null if
+     *                   the host does not deduplicate
+     */
+    public HostSessions(StagingArea staging, Executor hashExecutor, int capabilities, ChunkIndex chunkIndex) {
+        this.staging = staging;
+        this.hashExecutor = hashExecutor;
+        this.capabilities = chunkIndex != null ? capabilities : capabilities & ~Chunker.CAPABILITY_DEDUP;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public StagingArea getStaging() {
+        return staging;
+    }
+
+    /**
+     * Works out which files of a client's manifest to request and claims them. Files are
+     * not requested if the host already has them, or if another client is sending a file
+     * of that name right now; those are left for a later sync. Files whose name the staging
+     * area refuses are never requested.
+     * @param clientCapabilities Optional features the client announced; the session uses
+     *                           those the host supports as well
+     */
+    public Session open(ManifestEntry[] manifest, int clientCapabilities) throws IOException {
+        Session session = new Session(manifest, clientCapabilities & capabilities);
+        try {
+            for (int i = 0; i < manifest.length; i++) {
+                request(session, i);
+            }
+        } catch (IOException e) {
+            releaseClaims(session);
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Adds files the client found after the session started, such as new captures. They
+     * are requested by the same rules as the files of the manifest and numbered after them.
+     * @return Index of the first added file
+     */
+    public int extend(Session session, ManifestEntry[] added) throws IOException {
+        synchronized (session) {
+            int first = session.manifest.length;
+            session.grow(added);
+            for (int i = first; i < session.manifest.length; i++) {
+                request(session, i);
+            }
+            return first;
+        }
+    }
+
+    private void request(Session session, int index) throws IOException {
+        ManifestEntry entry = session.manifest[index];
+        if (!StagingArea.accepts(entry.fileName)) {
+            TransferLog.w(TAG, "Not requesting " + entry.fileName + ", invalid file name");
+            return;
+        }
+        if (!staging.hasFile(entry) && staging.claim(entry.fileName)) {
+            session.offsets[index] = staging.resumeOffset(entry.fileName, entry.fileSize);
+            session.totalFiles++;
+        }
+    }
+
+    /**
+     * Makes an opened session available to its further streams once the client has
+     * announced how many it will open
+     */
+    public void publish(long sessionId, Session session, int streamCount) throws IOException {
+        if (streamCount < 1) {
+            throw new IOException("Invalid stream count " + streamCount);
+        }
+        session.streamCount = streamCount;
+        synchronized (published) {
+            sessions.put(sessionId, session);
+            published.notifyAll();
+        }
+    }
+
+    /**
+     * Joins a further stream to a session, waiting for it to be published. The client opens
+     * its further streams right after announcing the stream count, so their HELLO may
+     * arrive before the first stream's connection has read that announcement.
+     */
+    public Session join(long sessionId) throws IOException {
+        return join(awaitPublished(sessionId));
+    }
+
+    /**
+     * Joins a further stream to a session returned by {@link #awaitPublished}
+     */
+    public Session join(Session session) {
+        session.streamsOpen.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Waits up to {@link #JOIN_TIMEOUT_MILLIS} for a session to be published
+     */
+    public Session awaitPublished(long sessionId) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_TIMEOUT_MILLIS);
+        synchronized (published) {
+            Session session;
+            while ((session = sessions.get(sessionId)) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Unknown sync session");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(published, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the sync session");
+                }
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Starts hashing a file that is about to be received. Bytes already staged from an
+     * earlier attempt are hashed first, while the rest is still arriving.
+     */
+    public DigestPipeline startDigest(Session session, int index, FileChannel file) {
+        DigestPipeline digest = new DigestPipeline(file, hashExecutor);
+        digest.update(0, session.offsets[index]);
+        return digest;
+    }
+
+    /**
+     * Stages a file that arrived whole in a PACK frame, after the bytes already staged
+     * for it, and hashes the complete file
+     * @return Digest to check with {@link #verifyAndCommit}
+     */
+    public byte[] stagePacked(Session session, FilePack.Entry packed) throws IOException {
+        ManifestEntry entry = session.requestedEntry(packed.index);
+        long offset = session.offsets[packed.index];
+        if (packed.offset != offset || offset + packed.length != entry.fileSize) {
+            throw new ProtocolException("Unexpected range for " + entry.fileName);
+        }
+        try (FileChannel file = FileChannel.open(staging.partFile(entry.fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            file.truncate(offset);
+            ByteBuffer data = ByteBuffer.wrap(packed.data, packed.dataOffset, packed.length);
+            while (data.hasRemaining()) {
+                file.write(data, offset + data.position() - packed.dataOffset);
+            }
+            DigestPipeline digest = startDigest(session, packed.index, file);
+            digest.update(offset, packed.length);
+            return digest.finish();
+        }
+    }
+
+    /**
+     * Takes the chunk list of a file the client offers for deduplication and works out
+     * which of its chunks the host already holds. Such a file is always received from the
+     * start, local chunks copied and the others received in file order.
+     * @return Which chunks are held here and need not be sent
+     */
+    public boolean[] planChunks(Session session, FrameCodec.ChunkList chunkList) throws IOException {
+        ManifestEntry entry = session.requestedEntry(chunkList.index);
+        if ((session.capabilities & Chunker.CAPABILITY_DEDUP) == 0) {
+            throw new ProtocolException("Deduplication not negotiated for " + entry.fileName);
+        }
+        if (session.offsets[chunkList.index] != 0 || chunkList.length() != entry.fileSize) {
+            throw new ProtocolException("Unexpected range for " + entry.fileName);
+        }
+        boolean[] local = new boolean[chunkList.chunks.size()];
+        for (int i = 0; i < local.length; i++) {
+            local[i] = chunkIndex.contains(chunkList.chunks.get(i).hash);
+        }
+        session.chunkLists.put(chunkList.index, chunkList.chunks);
+        return local;
+    }
+
+    /**
+     * Copies a chunk the host holds into the file being received at the chunk's offset
+     * @return false if the local copy turned out stale; the file then fails verification
+     */
+    public boolean copyChunk(Chunker.Chunk chunk, FileChannel file) throws IOException {
+        return chunkIndex.copyChunk(chunk, file);
+    }
+
+    /**
+     * Checks a fully received file against the digest the client sent in its trailer and
+     * moves it into place. A file that does not match is dropped from staging and, unless
+     * it has used up its attempts, requested again from offset zero.
+     * @return true if the file was verified and committed
+     */
+    public boolean verifyAndCommit(Session session, int index, byte[] received, byte[] trailer) throws IOException {
+        ManifestEntry entry = session.manifest[index];
+        List<Chunker.Chunk> chunks = session.chunkLists.remove(index);
+        if (!ContentHash.equals(received, trailer)) {
+            staging.discard(entry.fileName);
+            // Under the session lock so a concurrent extension cannot copy the arrays past the change
+            synchronized (session) {
+                session.offsets[index] = 0;
+                session.attempts[index]++;
+            }
+            return false;
+        }
+        File committed = staging.commit(entry.fileName, entry.lastModified);
+        session.filesReceived.incrementAndGet();
+        if (chunkIndex != null) {
+            indexCommitted(committed, chunks);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a committed file to the chunk index. A deduplicated file came with its chunk
+     * list; any other large file is chunked on a pipeline thread.
+     */
+    private void indexCommitted(File committed, List<Chunker.Chunk> chunks) {
+        if (chunks != null) {
+            chunkIndex.addFile(committed.getName(), chunks);
+            return;
+        }
+        chunkIndex.removeFile(committed.getName());
+        if (committed.length() < Chunker.MIN_FILE_SIZE) {
+            return;
+        }
+        try {
+            hashExecutor.execute(() -> {
+                try {
+                    chunkIndex.indexFile(committed);
+                } catch (IOException e) {
+                    // Picked up by the next indexMissing
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The server is stopping; picked up by the next indexMissing
+        }
+    }
+
+    /**
+     * Whether a file that failed verification may be sent once more
+     */
+    public boolean canRetry(Session session, int index) {
+        if (session.attempts[index] < MAX_FILE_ATTEMPTS) {
+            return true;
+        }
+        session.filesFailed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Marks one stream as cleanly finished
+     * @return true if it was the last stream and the session is complete
+     */
+    public boolean finishStream(long sessionId, Session session) {
+        if (session.streamsFinished.incrementAndGet() == session.streamCount) {
+            sessions.remove(sessionId);
+            if (chunkIndex != null) {
+                chunkIndex.save();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fails a session; one broken stream fails the whole session
+     * @return true if the session was still active, so the failure should be reported
+     */
+    public boolean fail(long sessionId) {
+        return sessions.remove(sessionId) != null;
+    }
+
+    /**
+     * Called when a stream's connection closes. The last stream to leave a finished or
+     * failed session gives its claimed files back.
+     */
+    public void leave(long sessionId, Session session) {
+        if (session.streamsOpen.decrementAndGet() == 0 && !sessions.containsKey(sessionId)) {
+            releaseClaims(session);
+        }
+    }
+
+    /**
+     * Releases the claims of a session that never got published
+     */
+    public void discard(Session session) {
+        releaseClaims(session);
+    }
+
+    public void clear() {
+        sessions.clear();
+        if (chunkIndex != null) {
+            chunkIndex.save();
+        }
+    }
+
+    private void releaseClaims(Session session) {
+        ManifestEntry[] manifest = session.manifest;
+        long[] offsets = session.offsets;
+        for (int i = 0; i < manifest.length; i++) {
+            if (offsets[i] >= 0) {
+                try {
+                    staging.release(manifest[i].fileName);
+                } catch (IOException e) {
+                    // Names that could not be claimed were never requested
+                }
+            }
+        }
+    }
+
+    /**
+     * Receive state shared by all streams of one client sync session
+     */
+    public static class Session {
+        // The arrays grow when the client adds files; they are only replaced under the session lock
+        private volatile ManifestEntry[] manifest;
+        // An offset of -1 marks a file that is not requested
+        private volatile long[] offsets;
+        private volatile int totalFiles;
+        private int streamCount;
+        private final int capabilities;
+        // Failed verification attempts per file
+        private volatile int[] attempts;
+        // Chunk lists of files being received deduplicated, by index
+        private final Map<Integer, List<Chunker.Chunk>> chunkLists = new ConcurrentHashMap<>();
+        private final AtomicInteger filesReceived = new AtomicInteger();
+        private final AtomicInteger filesFailed = new AtomicInteger();
+        private final AtomicInteger streamsFinished = new AtomicInteger();
+        private final AtomicInteger streamsOpen = new AtomicInteger(1);
+
+        Session(ManifestEntry[] manifest, int capabilities) {
+            this.manifest = manifest;
+            this.capabilities = capabilities;
+            this.offsets = new long[manifest.length];
+            this.attempts = new int[manifest.length];
+            Arrays.fill(offsets, -1);
+        }
+
+        private void grow(ManifestEntry[] added) {
+            int size = manifest.length;
+            ManifestEntry[] grownManifest = Arrays.copyOf(manifest, size + added.length);
+            System.arraycopy(added, 0, grownManifest, size, added.length);
+            long[] grownOffsets = Arrays.copyOf(offsets, grownManifest.length);
+            Arrays.fill(grownOffsets, size, grownOffsets.length, -1);
+            // Offsets go last: readers check an index against them before using the other arrays
+            manifest = grownManifest;
+            attempts = Arrays.copyOf(attempts, grownManifest.length);
+            offsets = grownOffsets;
+        }
+
+        public int getManifestSize() {
+            return manifest.length;
+        }
+
+        public int getTotalFiles() {
+            return totalFiles;
+        }
+
+        public int getFilesReceived() {
+            return filesReceived.get();
+        }
+
+        public int getFilesFailed() {
+            return filesFailed.get();
+        }
+
+        /**
+         * Returns the manifest entry of a file the client announces, checking it was requested
+         */
+        public ManifestEntry requestedEntry(int index) throws IOException {
+            long[] offsets = this.offsets;
+            if (index < 0 || index >= offsets.length || offsets[index] < 0) {
+                throw new IOException("Unexpected file index " + index);
+            }
+            return manifest[index];
+        }
+
+        public long offset(int index) {
+            return offsets[index];
+        }
+
+        /**
+         * Whether files may be sent with the given codec in this session
+         */
+        public boolean acceptsCodec(byte codec) {
+            return codec == Compression.STORE
+                    || codec == Compression.DEFLATE && (capabilities & Compression.CAPABILITY_DEFLATE) != 0;
+        }
+
+        /**
+         * Writes the reply that ends a round of files on one stream: the files to send once
+         * more after failing verification, then the files that were given up
+         */
+        public static void writeRoundReply(DataOutputStream dos, List<Integer> retry, List<Integer> failed)
+                throws IOException {
+            dos.writeInt(retry.size());
+            for (int index : retry) {
+                dos.writeInt(index);
+            }
+            dos.writeInt(failed.size());
+            for (int index : failed) {
+                dos.writeInt(index);
+            }
+        }
+
+        /**
+         * Writes the manifest reply: the requested files with the bytes already staged for
+         * each, then the capabilities accepted for the session
+         */
+        public void writeReply(DataOutputStream dos) throws IOException {
+            dos.writeInt(totalFiles);
+            for (int i = 0; i < manifest.length; i++) {
+                if (offsets[i] >= 0) {
+                    dos.writeInt(i);
+                    dos.writeLong(offsets[i]);
+                }
+            }
+            dos.writeInt(capabilities);
+        }
+
+        /**
+         * Writes the reply to files added with {@link HostSessions#extend}: the index of the
+         * first of them, then those requested with the bytes already staged for each
+         */
+        public void writeExtensionReply(DataOutputStream dos, int first, int count) throws IOException {
+            int requested = 0;
+            for (int i = first; i < first + count; i++) {
+                if (offsets[i] >= 0) {
+                    requested++;
+                }
+            }
+            dos.writeInt(first);
+            dos.writeInt(requested);
+            for (int i = first; i < first + count; i++) {
+                if (offsets[i] >= 0) {
+                    dos.writeInt(i);
+                    dos.writeLong(offsets[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the socket's read timeout to reads from a blocking socket channel. Reads and
+ * transferFrom on the channel ignore SO_TIMEOUT and would block forever on a link that
+ * went silent, so a watchdog closes the channel once a single read has waited longer
+ * than the timeout, and the read fails with a {@link SocketTimeoutException} like one
+ * through the socket's stream would.
+ */
+final class IdleTimeoutChannel implements ReadableByteChannel {
+    private static final long CHECK_MILLIS = 500;
+    private static final Set<IdleTimeoutChannel> watched = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "IdleTimeoutChannel");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        watchdog.scheduleWithFixedDelay(IdleTimeoutChannel::closeIdle, CHECK_MILLIS, CHECK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private final SocketChannel channel;
+    private final int timeoutMillis;
+    private final long timeoutNanos;
+    private volatile boolean reading;
+    private volatile long readStartNanos;
+    private volatile boolean timedOut;
+
+    private IdleTimeoutChannel(SocketChannel channel, int timeoutMillis) {
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Wraps a blocking socket channel whose socket has a read timeout. Any other channel
+     * is returned as it is.
+     */
+    static ReadableByteChannel wrap(ReadableByteChannel channel) {
+        if (!(channel instanceof SocketChannel)) {
+            return channel;
+        }
+        SocketChannel socketChannel = (SocketChannel) channel;
+        int timeout;
+        try {
+            timeout = socketChannel.socket().getSoTimeout();
+        } catch (SocketException e) {
+            return channel;
+        }
+        if (timeout <= 0 || !socketChannel.isBlocking()) {
+            return channel;
+        }
+        return new IdleTimeoutChannel(socketChannel, timeout);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readStartNanos = System.nanoTime();
+        reading = true;
+        watched.add(this);
+        try {
+            return channel.read(dst);
+        } catch (AsynchronousCloseException e) {
+            if (timedOut) {
+                throw new SocketTimeoutException("No data for " + timeoutMillis + " ms");
+            }
+            throw e;
+        } finally {
+            reading = false;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watched.remove(this);
+        channel.close();
+    }
+
+    private static void closeIdle() {
+        long now = System.nanoTime();
+        for (IdleTimeoutChannel timed : watched) {
+            if (!timed.channel.isOpen()) {
+                watched.remove(timed);
+            } else if (timed.reading && now - timed.readStartNanos >= timed.timeoutNanos) {
+                timed.timedOut = true;
+                watched.remove(timed);
+                try {
+                    timed.channel.close();
+                } catch (IOException e) {
+                    // The blocked read fails either way
+                }
+            }
+        }
+    }
+}
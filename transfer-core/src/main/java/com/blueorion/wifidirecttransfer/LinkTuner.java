@@ -0,0 +1,234 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buffer and socket settings per peer, derived from the link itself. The client measures
+ * the round trip time while connecting and the throughput of the first seconds of a sync;
+ * from their product, the bandwidth-delay product, it sizes the socket send buffer, the
+ * copy buffer and how many bytes of frames are coalesced into one socket write. The
+ * resulting profile is applied to the running streams and kept per peer device address,
+ * so the next sync with the same device starts tuned.
+ *
+ * The socket send buffer is only set once something was measured: setting it switches
+ * off the kernel's own buffer autotuning, which is the better guess for an unknown link.
+ */
+public class LinkTuner {
+    private static final String TAG = "LinkTuner";
+    private static final String PROFILE_FILE_NAME = "link_profiles.bin";
+    private static final int FORMAT_VERSION = 1;
+
+    /** How long a sync runs before its link is measured */
+    public static final long PROBE_MILLIS = 2000;
+    // Less than this in the probe window says more about the files than about the link
+    private static final long MIN_PROBE_BYTES = 1024 * 1024;
+
+    private static final int MIN_COPY_BUFFER = 8 * 1024;
+    private static final int MAX_COPY_BUFFER = 256 * 1024;
+    private static final int MIN_COALESCE = 8 * 1024;
+    private static final int MAX_COALESCE = 128 * 1024;
+    private static final int MIN_SOCKET_BUFFER = 128 * 1024;
+    private static final int MAX_SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    /** Settings for a peer nothing is known about yet */
+    public static final Profile DEFAULT_PROFILE = new Profile(64 * 1024, 16 * 1024, 0, 0, 0);
+
+    private static final Map<Path, LinkTuner> openTuners = new HashMap<>();
+
+    private final File profileFile;
+    private final Map<String, Profile> profiles = new HashMap<>();
+
+    /**
+     * Buffer sizes for one link, with the measurements they were derived from
+     */
+    public static class Profile {
+        /** Heap buffer file data is copied through when zero-copy is off */
+        public final int copyBufferSize;
+        /** Bytes of frames gathered before they are written to the socket */
+        public final int coalesceSize;
+        /** SO_SNDBUF, or 0 to leave it to the kernel */
+        public final int socketBufferSize;
+        public final long rttMicros;
+        public final long bytesPerSecond;
+
+        Profile(int copyBufferSize, int coalesceSize, int socketBufferSize, long rttMicros, long bytesPerSecond) {
+            this.copyBufferSize = copyBufferSize;
+            this.coalesceSize = coalesceSize;
+            this.socketBufferSize = socketBufferSize;
+            this.rttMicros = rttMicros;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Derives the settings for a link from its measurements
+         * @param streams Parallel streams sharing the measured throughput
+         */
+        static Profile forLink(long rttMicros, long bytesPerSecond, int streams) {
+            long streamRate = bytesPerSecond / Math.max(1, streams);
+            long bandwidthDelay = streamRate * Math.max(1, rttMicros) / 1_000_000;
+            // Twice the bandwidth-delay product keeps the pipe full while ACKs are in flight
+            int socketBuffer = roundedSize(2 * bandwidthDelay, MIN_SOCKET_BUFFER, MAX_SOCKET_BUFFER);
+            // Roughly 10 ms of data per copy, so the copy loop costs few system calls
+            int copyBuffer = roundedSize(streamRate / 100, MIN_COPY_BUFFER, MAX_COPY_BUFFER);
+            // Half a window per write: fewer writes without holding data back for long
+            int coalesce = roundedSize(bandwidthDelay / 2, MIN_COALESCE, MAX_COALESCE);
+            return new Profile(copyBuffer, coalesce, socketBuffer, rttMicros, bytesPerSecond);
+        }
+
+        /**
+         * Applies the socket options; the send buffer is best set before connecting
+         */
+        public void applyTo(Socket socket) throws IOException {
+            // Frames are coalesced in the writer, so Nagle would only delay the small control frames
+            socket.setTcpNoDelay(true);
+            if (socketBufferSize > 0) {
+                socket.setSendBufferSize(socketBufferSize);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "copy " + copyBufferSize + " B, coalesce " + coalesceSize + " B, sndbuf "
+                    + (socketBufferSize > 0 ? socketBufferSize + " B" : "auto") + " (rtt " + rttMicros
+                    + " us, " + bytesPerSecond + " B/s)";
+        }
+
+        void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(copyBufferSize);
+            dos.writeInt(coalesceSize);
+            dos.writeInt(socketBufferSize);
+            dos.writeLong(rttMicros);
+            dos.writeLong(bytesPerSecond);
+        }
+
+        static Profile read(DataInputStream dis) throws IOException {
+            return new Profile(dis.readInt(), dis.readInt(), dis.readInt(), dis.readLong(), dis.readLong());
+        }
+    }
+
+    /**
+     * @param profileFile Where the profiles are stored between runs, or null to keep them in memory only
+     */
+    public LinkTuner(File profileFile) {
+        this.profileFile = profileFile;
+        load();
+    }
+
+    /**
+     * Returns the tuner that keeps its profiles in the given state directory, shared by
+     * everyone opening the same directory
+     */
+    public static synchronized LinkTuner open(Path stateDir) {
+        Path profileFile = stateDir.resolve(PROFILE_FILE_NAME).toAbsolutePath();
+        LinkTuner tuner = openTuners.get(profileFile);
+        if (tuner == null) {
+            tuner = new LinkTuner(profileFile.toFile());
+            openTuners.put(profileFile, tuner);
+        }
+        return tuner;
+    }
+
+    /**
+     * The profile recorded for a peer, or the default one
+     */
+    public synchronized Profile profileFor(String peer) {
+        Profile profile = peer != null ? profiles.get(peer) : null;
+        return profile != null ? profile : DEFAULT_PROFILE;
+    }
+
+    /**
+     * Derives and records the profile of a peer from a probe of its link
+     * @param bytes File data sent in the probe
+     * @param nanos Duration of the probe
+     * @return The new profile, or null if the probe moved too little data to judge the link
+     */
+    public Profile record(String peer, long rttMicros, long bytes, long nanos, int streams) {
+        if (bytes < MIN_PROBE_BYTES || nanos <= 0) {
+            return null;
+        }
+        Profile profile = Profile.forLink(rttMicros, bytes * 1_000_000_000L / nanos, streams);
+        TransferLog.d(TAG, "Link to " + peer + ": " + profile);
+        if (peer != null) {
+            synchronized (this) {
+                profiles.put(peer, profile);
+                save();
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Power of two at or above value, within the given bounds
+     */
+    private static int roundedSize(long value, int min, int max) {
+        if (value <= min) {
+            return min;
+        }
+        if (value >= max) {
+            return max;
+        }
+        return (int) Math.min(max, Long.highestOneBit(value - 1) << 1);
+    }
+
+    private void load() {
+        if (profileFile == null) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(profileFile)))) {
+            if (dis.readInt() != FORMAT_VERSION) {
+                TransferLog.d(TAG, "Ignoring link profiles written for another version");
+                return;
+            }
+            int count = dis.readInt();
+            Map<String, Profile> stored = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String peer = dis.readUTF();
+                stored.put(peer, Profile.read(dis));
+            }
+            profiles.putAll(stored);
+        } catch (FileNotFoundException e) {
+            // No peer measured yet
+        } catch (IOException e) {
+            // Profiles are only a head start, the next sync measures again
+            TransferLog.w(TAG, "Discarding unreadable link profiles " + profileFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the profiles to a temporary file first so a crash never leaves a torn file
+     */
+    private void save() {
+        if (profileFile == null) {
+            return;
+        }
+        File tempFile = new File(profileFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeInt(profiles.size());
+                for (Map.Entry<String, Profile> entry : profiles.entrySet()) {
+                    dos.writeUTF(entry.getKey());
+                    entry.getValue().write(dos);
+                }
+            }
+            if (!tempFile.renameTo(profileFile)) {
+                throw new IOException("Cannot replace " + profileFile);
+            }
+        } catch (IOException e) {
+            TransferLog.w(TAG, "Could not save link profiles " + profileFile + ": " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+}
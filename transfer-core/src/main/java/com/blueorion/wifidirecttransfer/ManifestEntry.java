@@ -0,0 +1,49 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One file in a sync manifest, as exchanged between client and host before any data is sent
+ */
+public class ManifestEntry {
+    public final String fileName;
+    public final long fileSize;
+    public final long lastModified;
+    public final byte[] hash;
+
+    public ManifestEntry(String fileName, long fileSize, long lastModified, byte[] hash) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * Builds the manifest entry for a local file, hashing its content
+     */
+    public static ManifestEntry of(File file) throws IOException {
+        return new ManifestEntry(file.getName(), file.length(), file.lastModified(), ContentHash.hash(file));
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeUTF(fileName);
+        dos.writeLong(fileSize);
+        dos.writeLong(lastModified);
+        dos.write(hash);
+    }
+
+    public static ManifestEntry read(DataInputStream dis) throws IOException {
+        String fileName = dis.readUTF();
+        long fileSize = dis.readLong();
+        long lastModified = dis.readLong();
+        byte[] hash = new byte[ContentHash.LENGTH];
+        dis.readFully(hash);
+        if (fileSize < 0) {
+            throw new IOException("Invalid size " + fileSize + " for " + fileName);
+        }
+        return new ManifestEntry(fileName, fileSize, lastModified, hash);
+    }
+}
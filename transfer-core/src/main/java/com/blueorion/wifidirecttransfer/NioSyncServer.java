@@ -0,0 +1,997 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event driven receive engine for the sync protocol. A small fixed set of selector threads
+ * multiplexes all client streams: the first thread also accepts connections and hands them
+ * out round-robin, and every thread parses the streams it owns incrementally as bytes
+ * arrive. Idle or slow clients therefore cost a few bytes of parser state instead of a
+ * thread each. Session handling is shared with the blocking server through {@link HostSessions}.
+ * A stream that stays silent for the idle timeout is closed; live clients
+ * send heartbeats while they have nothing else to send.
+ *
+ * File data is read into a direct buffer owned by the selector thread and written to the
+ * part file from there, so it never passes through the Java heap. Work that can take much
+ * longer than a write, such as hashing files or copying deduplicated chunks, runs on a few
+ * work threads instead. The stream is parked without read interest meanwhile and picked
+ * up again by its selector thread, so it never holds up the other streams of that thread.
+ */
+public class NioSyncServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_BUFFER_SIZE = 1024;
+    private static final int WORK_THREADS = 4;
+
+    /**
+     * Session events, called on the selector threads
+     */
+    public interface Callback {
+        void onSessionStarted(String clientAddress, int totalFiles);
+        void onFileReceived(String clientAddress, String fileName, int filesReceived, int totalFiles);
+        void onSessionComplete(String clientAddress, int fileCount);
+        void onSessionError(String clientAddress, String errorMessage);
+    }
+
+    /**
+     * Blocking part of handling a frame, run on a work thread
+     */
+    private interface Work<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Rest of handling a frame, run on the selector thread with the result of its work
+     */
+    private interface Continuation<T> {
+        void accept(T result) throws IOException;
+    }
+
+    /**
+     * Where the parser is within the current frame
+     */
+    private enum State {
+        FRAME_HEADER,
+        CONTROL_PAYLOAD,
+        DATA_PAYLOAD,
+        COMPRESSED_PAYLOAD
+    }
+
+    /**
+     * Which frame the protocol expects next on a stream
+     */
+    private enum Phase {
+        HELLO,
+        MANIFEST,
+        STREAM_COUNT,
+        FILES,
+        FILE_DATA,
+        TRAILER,
+        DONE
+    }
+
+    private final HostSessions sessions;
+    private final Callback callback;
+    private final int threadCount;
+    private final TransferMetrics metrics;
+    private final ProgressReporter progressReporter;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private Worker[] workers;
+    private ExecutorService workExecutor;
+    private volatile boolean running;
+    private int nextWorker;
+    private volatile int idleTimeoutMillis = Frame.IDLE_TIMEOUT_MILLIS;
+
+    /**
+     * @param metrics Counters every stream records its received data into
+     * @param progressReporter Told about the byte progress of every received file
+     */
+    public NioSyncServer(HostSessions sessions, Callback callback, int threadCount, TransferMetrics metrics,
+                         ProgressReporter progressReporter) {
+        this.sessions = sessions;
+        this.callback = callback;
+        this.threadCount = Math.max(1, threadCount);
+        this.metrics = metrics;
+        this.progressReporter = progressReporter;
+    }
+
+    /**
+     * Sets how long a stream may stay silent before it is closed. Defaults to
+     * {@link Frame#IDLE_TIMEOUT_MILLIS}; takes effect the next time the server starts.
+     */
+    public void setIdleTimeout(int millis) {
+        this.idleTimeoutMillis = millis;
+    }
+
+    /**
+     * Binds the server and starts the selector threads
+     * @param address Address to listen on; port 0 picks a free port
+     * @return The bound address
+     */
+    public synchronized InetSocketAddress start(InetSocketAddress address) throws IOException {
+        if (running) {
+            throw new IllegalStateException("Server is already running");
+        }
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(address);
+
+            AtomicInteger workThreads = new AtomicInteger();
+            workExecutor = Executors.newFixedThreadPool(WORK_THREADS, task -> {
+                Thread thread = new Thread(task, "NioSyncServer-work-" + workThreads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            workers = new Worker[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                workers[i] = new Worker(Selector.open());
+            }
+            serverChannel.register(workers[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        running = true;
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(workers[i], "NioSyncServer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Stops accepting and closes every open stream. Interrupted files stay staged for a resume.
+     */
+    public synchronized void stop() {
+        running = false;
+        close();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    private void close() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+        if (workers != null) {
+            for (Worker worker : workers) {
+                if (worker != null) {
+                    worker.selector.wakeup();
+                }
+            }
+        }
+        // Work in flight still finishes and hands its stream back for cleanup
+        if (workExecutor != null) {
+            workExecutor.shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            // The round and chunk replies are small frames the client waits for
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            workers[nextWorker].assign(channel);
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+    }
+
+    /**
+     * One selector thread and the streams it owns
+     */
+    private class Worker implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> assigned = new ConcurrentLinkedQueue<>();
+        final Queue<Runnable> completed = new ConcurrentLinkedQueue<>();
+        private boolean stopped;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        long lastIdleCheck = System.nanoTime();
+        final int idleTimeout = idleTimeoutMillis;
+        final long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        final long idleCheckMillis = Math.max(1, Math.min(Frame.HEARTBEAT_MILLIS, idleTimeout) / 3);
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        void assign(SocketChannel channel) {
+            assigned.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Hands a stream back from a work thread. Once the selector thread has stopped the
+         * stream is closed, and the continuation only cleans up, so it runs right here.
+         */
+        void complete(Runnable continuation) {
+            synchronized (this) {
+                if (!stopped) {
+                    completed.add(continuation);
+                    selector.wakeup();
+                    return;
+                }
+            }
+            continuation.run();
+        }
+
+        private void runCompleted() {
+            Runnable continuation;
+            while ((continuation = completed.poll()) != null) {
+                continuation.run();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(idleCheckMillis);
+                    registerAssigned();
+                    runCompleted();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.fail(e);
+                        }
+                    }
+                    closeIdle();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    callback.onSessionError("", "Server error: " + e.getMessage());
+                }
+            } finally {
+                List<SelectionKey> keys = new ArrayList<>(selector.keys());
+                for (SelectionKey key : keys) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).fail(new IOException("Server stopped"));
+                    }
+                }
+                SocketChannel channel;
+                while ((channel = assigned.poll()) != null) {
+                    closeQuietly(channel);
+                }
+                synchronized (this) {
+                    stopped = true;
+                }
+                runCompleted();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing left to clean up
+                }
+            }
+        }
+
+        /**
+         * Closes the streams that have not sent anything for the idle timeout
+         */
+        private void closeIdle() {
+            long now = System.nanoTime();
+            if (now - lastIdleCheck < TimeUnit.MILLISECONDS.toNanos(idleCheckMillis)) {
+                return;
+            }
+            lastIdleCheck = now;
+            List<SelectionKey> keys = new ArrayList<>(selector.keys());
+            for (SelectionKey key : keys) {
+                if (key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+                    // A parked stream waits for the host, not the client
+                    if (!connection.parked && now - connection.lastReadNanos >= idleTimeoutNanos) {
+                        connection.fail(new SocketTimeoutException(
+                                "No frames for " + idleTimeout + " ms"));
+                    }
+                }
+            }
+        }
+
+        private void registerAssigned() {
+            SocketChannel channel;
+            while ((channel = assigned.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                    connectionCount.incrementAndGet();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parser state of one client stream. Frame headers and control payloads are gathered
+     * in a heap buffer until complete; DATA payloads are written straight from the
+     * selector's read buffer.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Worker worker;
+        final String clientAddress;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+        State state = State.FRAME_HEADER;
+        Phase phase = Phase.HELLO;
+        byte frameType;
+        int frameLength;
+        int dataRemaining;
+        // Replies the socket has not taken yet, oldest first
+        final Deque<ByteBuffer> outgoing = new ArrayDeque<>();
+        boolean closed;
+        long lastReadNanos = System.nanoTime();
+        // Set while work runs for the stream; the work thread owns the stream state until it hands it back
+        boolean parked;
+        // Input read before the stream was parked that still has to be parsed
+        ByteBuffer pending;
+
+        long sessionId;
+        int clientCapabilities;
+        TransferMetrics.Stream streamMetrics;
+        HostSessions.Session session;
+        HostSessions.Session unpublished;
+
+        int fileIndex;
+        ManifestEntry entry;
+        FileChannel file;
+        long filePosition;
+        // End of the range the next DATA frames fill: the file's end, or the end of the current chunk
+        long dataLimit;
+        byte fileCodec;
+        DigestPipeline digest;
+        ProgressReporter.Tracker progress;
+        ByteBuffer block;
+        Compression.BlockInflater inflater;
+        List<Chunker.Chunk> chunks;
+        boolean[] localChunks;
+        int nextChunk;
+        final List<Integer> retry = new ArrayList<>();
+        final List<Integer> failed = new ArrayList<>();
+
+        Connection(SocketChannel channel, SelectionKey key, Worker worker) {
+            this.channel = channel;
+            this.key = key;
+            this.worker = worker;
+            this.clientAddress = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        void onReadable(ByteBuffer in) throws IOException {
+            in.clear();
+            int bytesRead = channel.read(in);
+            if (bytesRead == -1) {
+                if (phase != Phase.DONE) {
+                    throw new IOException("Connection closed");
+                }
+                close();
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            in.flip();
+            consume(in);
+        }
+
+        /**
+         * Parses input until more bytes are needed or the stream is parked. The read buffer
+         * is shared by the selector's streams, so input left at parking is kept in pending.
+         */
+        private void consume(ByteBuffer in) throws IOException {
+            // Runs until more bytes are needed; an empty payload completes without any
+            while (!closed && !parked && process(in)) {
+                // Keep parsing
+            }
+            if (in == pending) {
+                if (!pending.hasRemaining()) {
+                    pending = null;
+                }
+            } else if (parked && in.hasRemaining()) {
+                pending = ByteBuffer.allocate(in.remaining());
+                pending.put(in);
+                pending.flip();
+            }
+        }
+
+        /**
+         * Parks the stream and runs blocking work for it on a work thread. Until the work is
+         * done nothing is read from the client; queued replies still go out. The selector
+         * thread then runs the continuation with the work's result and parses on.
+         */
+        private <T> void offload(Work<T> work, Continuation<T> continuation) throws IOException {
+            try {
+                workExecutor.execute(() -> {
+                    T result = null;
+                    IOException error = null;
+                    try {
+                        result = work.run();
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        error = new IOException(e);
+                    }
+                    T finalResult = result;
+                    IOException finalError = error;
+                    worker.complete(() -> resume(finalResult, finalError, continuation));
+                });
+            } catch (RejectedExecutionException e) {
+                throw new IOException("Server stopped", e);
+            }
+            // Set after the submit: the continuation runs on this thread, so it cannot come first
+            parked = true;
+            updateInterest();
+        }
+
+        private <T> void resume(T result, IOException error, Continuation<T> continuation) {
+            parked = false;
+            if (closed) {
+                release();
+                return;
+            }
+            // The client was waiting for the host meanwhile
+            lastReadNanos = System.nanoTime();
+            try {
+                if (error != null) {
+                    throw error;
+                }
+                continuation.accept(result);
+                if (pending != null) {
+                    consume(pending);
+                }
+                if (!closed) {
+                    updateInterest();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onWritable() throws IOException {
+            while (!outgoing.isEmpty()) {
+                ByteBuffer data = outgoing.peek();
+                channel.write(data);
+                if (data.hasRemaining()) {
+                    return;
+                }
+                outgoing.poll();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Reads while every reply went out and the stream is not parked. A client that does
+         * not take its replies is not read from until it does, so they cannot pile up here.
+         */
+        private void updateInterest() {
+            if (!outgoing.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(parked ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Consumes bytes for the current state
+         * @return false if more bytes are needed
+         */
+        private boolean process(ByteBuffer in) throws IOException {
+            switch (state) {
+                case FRAME_HEADER:
+                    if (!fill(in, Frame.HEADER_SIZE)) {
+                        return false;
+                    }
+                    frameType = header.get();
+                    frameLength = header.getInt();
+                    Frame.checkHeader(frameType, frameLength);
+                    header.clear();
+                    if (frameType == Frame.DATA && fileCodec == Compression.DEFLATE) {
+                        if (phase != Phase.FILE_DATA) {
+                            throw new ProtocolException("Unexpected DATA frame");
+                        }
+                        if (block == null) {
+                            block = ByteBuffer.allocate(Frame.MAX_DATA_PAYLOAD);
+                            inflater = new Compression.BlockInflater();
+                        }
+                        block.clear();
+                        block.limit(frameLength);
+                        state = State.COMPRESSED_PAYLOAD;
+                    } else if (frameType == Frame.DATA) {
+                        if (phase != Phase.FILE_DATA || frameLength > dataLimit - filePosition) {
+                            throw new ProtocolException("Unexpected DATA frame");
+                        }
+                        dataRemaining = frameLength;
+                        state = State.DATA_PAYLOAD;
+                    } else {
+                        state = State.CONTROL_PAYLOAD;
+                    }
+                    return true;
+
+                case CONTROL_PAYLOAD:
+                    if (!fill(in, frameLength)) {
+                        return false;
+                    }
+                    byte[] payload = new byte[frameLength];
+                    header.get(payload);
+                    nextFrame();
+                    onFrame(new Frame(frameType, payload));
+                    return true;
+
+                case DATA_PAYLOAD:
+                    if (!in.hasRemaining() && dataRemaining > 0) {
+                        return false;
+                    }
+                    receiveData(in);
+                    return true;
+
+                case COMPRESSED_PAYLOAD:
+                    return receiveBlock(in);
+
+                default:
+                    throw new IllegalStateException("Unknown state " + state);
+            }
+        }
+
+        /**
+         * Handles a complete control frame according to where the stream is in the protocol
+         */
+        private void onFrame(Frame frame) throws IOException {
+            switch (phase) {
+                case HELLO:
+                    FrameCodec.Hello hello = FrameCodec.readHello(frame);
+                    sessionId = hello.sessionId;
+                    clientCapabilities = hello.capabilities;
+                    streamMetrics = metrics.openStream(clientAddress + " stream " + hello.streamIndex);
+                    if (hello.streamIndex == 0) {
+                        phase = Phase.MANIFEST;
+                    } else {
+                        // The first stream may not have announced the stream count yet
+                        offload(() -> sessions.awaitPublished(sessionId), published -> {
+                            session = sessions.join(published);
+                            phase = Phase.FILES;
+                        });
+                    }
+                    break;
+
+                case MANIFEST:
+                    openSession(FrameCodec.readManifest(frame));
+                    break;
+
+                case STREAM_COUNT:
+                    FrameCodec.expect(frame, Frame.ACK);
+                    sessions.publish(sessionId, unpublished, frame.payload().readInt());
+                    session = unpublished;
+                    unpublished = null;
+                    phase = Phase.FILES;
+                    callback.onSessionStarted(clientAddress, session.getTotalFiles());
+                    break;
+
+                case FILES:
+                    if (frame.type == Frame.END) {
+                        endRound(FrameCodec.readEnd(frame));
+                    } else if (frame.type == Frame.PACK) {
+                        receivePack(FilePack.read(frame));
+                    } else if (frame.type == Frame.CHUNKS) {
+                        openChunkedFile(FrameCodec.readChunkList(frame));
+                    } else if (frame.type == Frame.MANIFEST) {
+                        extendSession(FrameCodec.readManifest(frame));
+                    } else if (frame.type == Frame.PING) {
+                        sendFrame(Frame.PING, new byte[0]);
+                    } else {
+                        openFile(FrameCodec.readFileHeader(frame));
+                    }
+                    break;
+
+                case TRAILER:
+                    completeFile(FrameCodec.readTrailer(frame));
+                    break;
+
+                default:
+                    throw new ProtocolException("Unexpected " + Frame.typeName(frame.type) + " frame");
+            }
+        }
+
+        /**
+         * Gathers bytes until need bytes are available, then flips the buffer for reading
+         */
+        private boolean fill(ByteBuffer in, int need) {
+            if (header.capacity() < need) {
+                ByteBuffer bigger = ByteBuffer.allocate(need);
+                header.flip();
+                bigger.put(header);
+                header = bigger;
+            }
+            header.limit(need);
+            int count = Math.min(in.remaining(), header.remaining());
+            ByteBuffer chunk = in.duplicate();
+            chunk.limit(chunk.position() + count);
+            header.put(chunk);
+            in.position(in.position() + count);
+            if (header.hasRemaining()) {
+                return false;
+            }
+            header.flip();
+            return true;
+        }
+
+        private void nextFrame() {
+            // A large manifest may have grown the buffer
+            if (header.capacity() > HEADER_BUFFER_SIZE) {
+                header = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+            }
+            header.clear();
+            state = State.FRAME_HEADER;
+        }
+
+        /**
+         * Works out the files to request, which hashes those the host may have already
+         */
+        private void openSession(ManifestEntry[] manifest) throws IOException {
+            offload(() -> {
+                unpublished = sessions.open(manifest, clientCapabilities);
+                return FrameCodec.encode(unpublished::writeReply);
+            }, reply -> {
+                sendFrame(Frame.ACK, reply);
+                phase = Phase.STREAM_COUNT;
+            });
+        }
+
+        /**
+         * Takes files the client found after the session started and replies with those wanted
+         */
+        private void extendSession(ManifestEntry[] added) throws IOException {
+            offload(() -> {
+                int first = sessions.extend(session, added);
+                return FrameCodec.encode(dos -> session.writeExtensionReply(dos, first, added.length));
+            }, reply -> sendFrame(Frame.ACK, reply));
+        }
+
+        /**
+         * Writes a reply at once if the socket takes it, otherwise queues it behind the
+         * replies still waiting so frames go out whole and in order
+         */
+        private void sendFrame(byte type, byte[] payload) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(Frame.HEADER_SIZE + payload.length);
+            data.put(type).putInt(payload.length).put(payload);
+            data.flip();
+            if (outgoing.isEmpty()) {
+                channel.write(data);
+                if (!data.hasRemaining()) {
+                    return;
+                }
+            }
+            outgoing.add(data);
+            updateInterest();
+        }
+
+        private void openFile(FrameCodec.FileHeader fileHeader) throws IOException {
+            int index = fileHeader.index;
+            entry = session.requestedEntry(index);
+            fileIndex = index;
+            filePosition = session.offset(index);
+            if (fileHeader.offset != filePosition || fileHeader.length != entry.fileSize - filePosition) {
+                throw new ProtocolException("Unexpected range for " + entry.fileName);
+            }
+            if (!session.acceptsCodec(fileHeader.codec)) {
+                throw new ProtocolException("Codec " + fileHeader.codec + " not negotiated for " + entry.fileName);
+            }
+            fileCodec = fileHeader.codec;
+            dataLimit = entry.fileSize;
+            streamMetrics.fileStarted();
+            progress = progressReporter.start(clientAddress, entry.fileName, entry.fileSize, filePosition);
+            file = FileChannel.open(sessions.getStaging().partFile(entry.fileName).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            file.truncate(filePosition);
+            digest = sessions.startDigest(session, index, file);
+            phase = filePosition == entry.fileSize ? Phase.TRAILER : Phase.FILE_DATA;
+        }
+
+        /**
+         * Starts a file offered for deduplication: replies with the chunks missing here and
+         * rebuilds the file in order, copying local chunks and waiting for DATA frames for
+         * the others
+         */
+        private void openChunkedFile(FrameCodec.ChunkList chunkList) throws IOException {
+            localChunks = sessions.planChunks(session, chunkList);
+            sendFrame(Frame.ACK, FrameCodec.chunkReply(localChunks));
+            chunks = chunkList.chunks;
+            nextChunk = 0;
+            fileIndex = chunkList.index;
+            entry = session.requestedEntry(fileIndex);
+            filePosition = 0;
+            fileCodec = Compression.STORE;
+            streamMetrics.fileStarted();
+            progress = progressReporter.start(clientAddress, entry.fileName, entry.fileSize, 0);
+            file = FileChannel.open(sessions.getStaging().partFile(entry.fileName).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            file.truncate(0);
+            digest = sessions.startDigest(session, fileIndex, file);
+            phase = Phase.FILE_DATA;
+            nextChunks();
+        }
+
+        /**
+         * Copies local chunks until one has to come from the client, or the file is complete.
+         * A run of local chunks is copied on a work thread.
+         */
+        private void nextChunks() throws IOException {
+            int end = nextChunk;
+            while (end < chunks.size() && localChunks[end]) {
+                end++;
+            }
+            if (end > nextChunk) {
+                List<Chunker.Chunk> local = chunks.subList(nextChunk, end);
+                nextChunk = end;
+                offload(() -> {
+                    for (Chunker.Chunk chunk : local) {
+                        sessions.copyChunk(chunk, file);
+                        digest.update(chunk.offset, chunk.length);
+                        progress.add(chunk.length);
+                        filePosition += chunk.length;
+                    }
+                    return null;
+                }, copied -> nextChunks());
+                return;
+            }
+            if (nextChunk < chunks.size()) {
+                Chunker.Chunk chunk = chunks.get(nextChunk++);
+                dataLimit = chunk.offset + chunk.length;
+                return;
+            }
+            chunks = null;
+            localChunks = null;
+            phase = Phase.TRAILER;
+        }
+
+        /**
+         * Moves on once the DATA frames of the current range are complete
+         */
+        private void rangeComplete() throws IOException {
+            if (chunks != null) {
+                nextChunks();
+            } else if (filePosition == entry.fileSize) {
+                phase = Phase.TRAILER;
+            }
+        }
+
+        private void receiveData(ByteBuffer in) throws IOException {
+            int count = Math.min(in.remaining(), dataRemaining);
+            ByteBuffer chunk = in.duplicate();
+            chunk.limit(chunk.position() + count);
+            long position = filePosition;
+            long start = System.nanoTime();
+            while (chunk.hasRemaining()) {
+                filePosition += file.write(chunk, filePosition);
+            }
+            streamMetrics.onDiskWrite(System.nanoTime() - start);
+            streamMetrics.onBytes(count);
+            progress.add(count);
+            digest.update(position, count);
+            in.position(in.position() + count);
+            dataRemaining -= count;
+            if (dataRemaining == 0) {
+                nextFrame();
+                if (filePosition == dataLimit) {
+                    rangeComplete();
+                }
+            }
+        }
+
+        /**
+         * Gathers a deflated block until its frame is complete, then inflates it into the file
+         * @return false if more bytes are needed
+         */
+        private boolean receiveBlock(ByteBuffer in) throws IOException {
+            int count = Math.min(in.remaining(), block.remaining());
+            ByteBuffer chunk = in.duplicate();
+            chunk.limit(chunk.position() + count);
+            block.put(chunk);
+            in.position(in.position() + count);
+            if (block.hasRemaining()) {
+                return false;
+            }
+
+            streamMetrics.onBytes(block.position());
+            long position = filePosition;
+            filePosition += inflater.inflate(block.array(), block.position(), file, filePosition,
+                    entry.fileSize - filePosition);
+            digest.update(position, filePosition - position);
+            progress.add(filePosition - position);
+            nextFrame();
+            if (filePosition == entry.fileSize) {
+                phase = Phase.TRAILER;
+            }
+            return true;
+        }
+
+        private void completeFile(byte[] trailer) throws IOException {
+            offload(() -> {
+                // Hashing runs alongside the writes, so this wait is only for the last range
+                byte[] received = digest.finish();
+                digest = null;
+                file.close();
+                file = null;
+                return sessions.verifyAndCommit(session, fileIndex, received, trailer);
+            }, verified -> {
+                streamMetrics.fileFinished();
+                settleFile(fileIndex, verified);
+                entry = null;
+                progress = null;
+                phase = Phase.FILES;
+            });
+        }
+
+        /**
+         * Stages, hashes and commits the files of a PACK frame on a work thread
+         */
+        private void receivePack(List<FilePack.Entry> pack) throws IOException {
+            offload(() -> {
+                boolean[] verified = new boolean[pack.size()];
+                for (int i = 0; i < verified.length; i++) {
+                    FilePack.Entry packed = pack.get(i);
+                    byte[] received = sessions.stagePacked(session, packed);
+                    verified[i] = sessions.verifyAndCommit(session, packed.index, received, packed.hash);
+                }
+                return verified;
+            }, verified -> {
+                for (int i = 0; i < verified.length; i++) {
+                    FilePack.Entry packed = pack.get(i);
+                    entry = session.requestedEntry(packed.index);
+                    streamMetrics.onBytes(packed.length);
+                    settleFile(packed.index, verified[i]);
+                }
+                entry = null;
+            });
+        }
+
+        /**
+         * Reports a committed file, or queues a file that failed verification for another
+         * attempt or gives it up
+         */
+        private void settleFile(int index, boolean verified) {
+            if (verified) {
+                if (progress != null) {
+                    progress.finish();
+                }
+                callback.onFileReceived(clientAddress, entry.fileName, session.getFilesReceived(), session.getTotalFiles());
+            } else if (sessions.canRetry(session, index)) {
+                retry.add(index);
+            } else {
+                failed.add(index);
+            }
+        }
+
+        /**
+         * Answers the end of a round with the files to send again. The stream is done once
+         * there is nothing left to retry and the client announced no further rounds.
+         */
+        private void endRound(boolean moreRounds) throws IOException {
+            sendFrame(Frame.ACK, FrameCodec.encode(dos -> HostSessions.Session.writeRoundReply(dos, retry, failed)));
+            if (!retry.isEmpty() || moreRounds) {
+                retry.clear();
+                failed.clear();
+                return;
+            }
+
+            phase = Phase.DONE;
+            // The last stream saves the chunk index
+            offload(() -> sessions.finishStream(sessionId, session), complete -> {
+                if (!complete) {
+                    return;
+                }
+                if (session.getFilesFailed() > 0) {
+                    callback.onSessionError(clientAddress, session.getFilesFailed() + " files failed verification");
+                } else {
+                    callback.onSessionComplete(clientAddress, session.getFilesReceived());
+                }
+            });
+        }
+
+        void fail(IOException e) {
+            if (closed) {
+                return;
+            }
+            if (session == null || sessions.fail(sessionId)) {
+                callback.onSessionError(clientAddress, "Error receiving files: " + e.getMessage());
+            }
+            close();
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connectionCount.decrementAndGet();
+            key.cancel();
+            closeQuietly(channel);
+            // Work in flight still uses the file and the session; they are released once it is done
+            if (!parked) {
+                release();
+            }
+        }
+
+        private void release() {
+            if (unpublished != null) {
+                sessions.discard(unpublished);
+                unpublished = null;
+            }
+            // The part file keeps exactly the bytes written so far for a resume
+            if (file != null) {
+                closeQuietly(file);
+                file = null;
+            }
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+            if (session != null) {
+                sessions.leave(sessionId, session);
+            }
+            if (streamMetrics != null) {
+                streamMetrics.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to clean up
+        }
+    }
+}
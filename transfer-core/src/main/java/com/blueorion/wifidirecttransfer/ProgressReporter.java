@@ -0,0 +1,147 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte level progress of the files in flight, coalesced for the UI. The transfer loops
+ * add bytes to a {@link Tracker} as often as they like; that only bumps a counter and,
+ * the first time since the last delivery, queues the tracker. One task posted to the
+ * executor then delivers the latest state of every queued file as a single batch, and
+ * the next batch is not posted before the update interval has passed. A file therefore
+ * appears at most updatesPerSecond times a second, and the executor sees no more posts
+ * than that however many files and streams are active.
+ */
+public class ProgressReporter {
+    public static final int DEFAULT_UPDATES_PER_SECOND = 4;
+
+    /**
+     * Receives batches of updates on the executor's thread
+     */
+    public interface Callback {
+        void onProgress(List<Update> updates);
+    }
+
+    private final CallbackExecutor executor;
+    private final Callback callback;
+    private final long intervalMs;
+    private final Queue<Tracker> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable deliver = this::deliver;
+
+    public ProgressReporter(CallbackExecutor executor, Callback callback, int updatesPerSecond) {
+        this.executor = executor;
+        this.callback = callback;
+        this.intervalMs = 1000 / Math.max(1, Math.min(updatesPerSecond, 1000));
+    }
+
+    /**
+     * Starts tracking a file
+     * @param peer Address of the other device
+     * @param bytesDone Bytes the other side already holds, such as a resume offset
+     */
+    public Tracker start(String peer, String fileName, long fileSize, long bytesDone) {
+        Tracker tracker = new Tracker(peer, fileName, fileSize, bytesDone);
+        tracker.queue();
+        return tracker;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.executeDelayed(deliver, intervalMs);
+        }
+    }
+
+    private void deliver() {
+        scheduled.set(false);
+        List<Update> updates = new ArrayList<>();
+        Tracker tracker;
+        while ((tracker = queued.poll()) != null) {
+            // Cleared before reading so bytes added from here on queue the file again
+            tracker.isQueued.set(false);
+            updates.add(new Update(tracker.peer, tracker.fileName, tracker.bytes.get(), tracker.fileSize,
+                    tracker.finished));
+        }
+        if (!updates.isEmpty()) {
+            callback.onProgress(updates);
+        }
+    }
+
+    /**
+     * Progress of one file, fed by the thread that transfers it
+     */
+    public class Tracker {
+        private final String peer;
+        private final String fileName;
+        private final long fileSize;
+        private final AtomicLong bytes;
+        private final AtomicBoolean isQueued = new AtomicBoolean();
+        private volatile boolean finished;
+
+        Tracker(String peer, String fileName, long fileSize, long bytesDone) {
+            this.peer = peer;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.bytes = new AtomicLong(bytesDone);
+        }
+
+        /**
+         * Adds transferred bytes; cheap enough to call for every buffer
+         */
+        public void add(long count) {
+            bytes.addAndGet(count);
+            queue();
+        }
+
+        /**
+         * Marks the file as done; this state is always delivered
+         */
+        public void finish() {
+            bytes.set(fileSize);
+            finished = true;
+            queue();
+        }
+
+        private void queue() {
+            if (isQueued.compareAndSet(false, true)) {
+                queued.add(this);
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * State of one file at the time a batch was delivered
+     */
+    public static class Update {
+        public final String peer;
+        public final String fileName;
+        public final long bytesTransferred;
+        public final long fileSize;
+        public final boolean finished;
+
+        Update(String peer, String fileName, long bytesTransferred, long fileSize, boolean finished) {
+            this.peer = peer;
+            this.fileName = fileName;
+            this.bytesTransferred = bytesTransferred;
+            this.fileSize = fileSize;
+            this.finished = finished;
+        }
+
+        /**
+         * Progress from 0 to 100
+         */
+        public int percent() {
+            return fileSize <= 0 ? 100 : (int) (bytesTransferred * 100 / fileSize);
+        }
+
+        @Override
+        public String toString() {
+            return fileName + " " + bytesTransferred + "/" + fileSize + (finished ? " done" : "");
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Two stage receive path for one connection. The connection's thread reads file data from
+ * the socket into direct buffers and queues them on a bounded ring; a disk writer thread
+ * drains the ring into the file. A slow write or fsync then only holds up the socket once
+ * the ring is full, instead of on every write, so the TCP receive window stays open
+ * through short hiccups of the flash. Each stage records how long it waits for the other:
+ * the reader while the ring is full, the writer while it is empty in the middle of a file.
+ *
+ * The buffers come from a pool shared by all connections and go back to it when the
+ * pipeline is closed.
+ */
+public class ReceivePipeline implements Closeable {
+    static final int BUFFER_SIZE = 128 * 1024;
+    static final int RING_SLOTS = 8;
+    private static final int MAX_POOLED_BUFFERS = 8 * RING_SLOTS;
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    // Tells the writer to stop
+    private static final Slot CLOSE = new Slot(null, 0, null, null);
+
+    private final TransferMetrics.Stream metrics;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(RING_SLOTS);
+    private final BlockingQueue<Slot> filled = new ArrayBlockingQueue<>(RING_SLOTS + 1);
+    // Guarded by this: buffers queued and written for the current file, and the first write error
+    private long queued;
+    private long written;
+    private long bytesWritten;
+    private IOException writeError;
+    private volatile boolean inFile;
+    private final byte[] scratch = new byte[8192];
+
+    /**
+     * One filled buffer and where it goes
+     */
+    private static class Slot {
+        final FileChannel file;
+        final long position;
+        final ByteBuffer buffer;
+        final FileReceiver.WriteListener listener;
+
+        Slot(FileChannel file, long position, ByteBuffer buffer, FileReceiver.WriteListener listener) {
+            this.file = file;
+            this.position = position;
+            this.buffer = buffer;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Starts the disk writer of a connection
+     * @param executor Runs the writer until the pipeline is closed
+     * @param metrics Records disk writes and the time each stage is blocked, or null
+     */
+    public ReceivePipeline(Executor executor, TransferMetrics.Stream metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < RING_SLOTS; i++) {
+            ByteBuffer buffer = bufferPool.poll();
+            free.add(buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        executor.execute(this::writeLoop);
+    }
+
+    /**
+     * Reads count bytes from the socket and queues them to be written to the file from
+     * position on. Returns once they are queued; {@link #drain()} waits until they are written.
+     * @param in Buffered socket input; bytes it has read ahead are taken first
+     * @param channel Socket channel to read the rest from, or null to read everything from in
+     * @return Number of bytes read, less than count if the connection ended early
+     */
+    public long receive(FileChannel file, long position, long count, FileReceiver.SocketInput in,
+                        ReadableByteChannel channel, FileReceiver.WriteListener listener) throws IOException {
+        inFile = true;
+        long received = 0;
+        while (received < count) {
+            ByteBuffer buffer = takeFree();
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - received));
+            int bytesRead;
+            try {
+                bytesRead = fill(buffer, in, channel);
+            } catch (IOException e) {
+                free.add(buffer);
+                throw e;
+            }
+            if (bytesRead <= 0) {
+                free.add(buffer);
+                break;
+            }
+            buffer.flip();
+            synchronized (this) {
+                queued++;
+            }
+            filled.add(new Slot(file, position + received, buffer, listener));
+            if (metrics != null) {
+                metrics.onBytes(bytesRead);
+            }
+            received += bytesRead;
+        }
+        return received;
+    }
+
+    /**
+     * Waits until everything queued has been written, which ends the current file
+     * @return Bytes written since the last drain
+     * @throws IOException if a write failed; the bytes written before it are in the
+     *                     {@link FileReceiver.PartialTransferException}
+     */
+    public long drain() throws IOException {
+        long bytes;
+        IOException error;
+        synchronized (this) {
+            while (written < queued) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for disk writes");
+                }
+            }
+            bytes = bytesWritten;
+            error = writeError;
+            queued = 0;
+            written = 0;
+            bytesWritten = 0;
+            writeError = null;
+        }
+        inFile = false;
+        if (error != null) {
+            throw new FileReceiver.PartialTransferException(bytes, error);
+        }
+        return bytes;
+    }
+
+    /**
+     * Stops the writer once it has written what is queued and returns the buffers to the pool
+     */
+    @Override
+    public void close() {
+        filled.add(CLOSE);
+    }
+
+    private ByteBuffer takeFree() throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        // The ring is full: the disk is behind and the socket has to wait
+        long start = System.nanoTime();
+        try {
+            buffer = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a receive buffer");
+        }
+        if (metrics != null) {
+            metrics.onReaderBlocked(System.nanoTime() - start);
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads until the buffer is full or the connection ends
+     */
+    private int fill(ByteBuffer buffer, FileReceiver.SocketInput in, ReadableByteChannel channel)
+            throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int bytesRead;
+            int buffered = in.buffered();
+            if (channel != null && buffered == 0) {
+                bytesRead = channel.read(buffer);
+            } else {
+                // Read-ahead bytes of the stream, or the whole stream without a channel
+                int length = channel != null ? Math.min(buffer.remaining(), buffered) : buffer.remaining();
+                bytesRead = in.read(scratch, 0, Math.min(length, scratch.length));
+                if (bytesRead > 0) {
+                    buffer.put(scratch, 0, bytesRead);
+                }
+            }
+            if (bytesRead == -1) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Slot slot = filled.poll();
+                if (slot == null) {
+                    // Waiting for the network; only counts while a file is being received
+                    long start = System.nanoTime();
+                    slot = filled.take();
+                    if (metrics != null && inFile) {
+                        metrics.onWriterBlocked(System.nanoTime() - start);
+                    }
+                }
+                if (slot == CLOSE) {
+                    break;
+                }
+                write(slot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ByteBuffer buffer;
+            while ((buffer = free.poll()) != null) {
+                if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                    bufferPool.add(buffer);
+                }
+            }
+        }
+    }
+
+    private void write(Slot slot) {
+        ByteBuffer buffer = slot.buffer;
+        int length = buffer.remaining();
+        boolean skip;
+        synchronized (this) {
+            // After a failed write the rest of the file is dropped
+            skip = writeError != null;
+        }
+        IOException error = null;
+        if (!skip) {
+            try {
+                long start = metrics != null ? System.nanoTime() : 0;
+                long position = slot.position;
+                while (buffer.hasRemaining()) {
+                    position += slot.file.write(buffer, position);
+                }
+                if (metrics != null) {
+                    metrics.onDiskWrite(System.nanoTime() - start);
+                }
+                if (slot.listener != null) {
+                    slot.listener.onWritten(slot.position, length);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        free.add(buffer);
+        synchronized (this) {
+            if (error != null) {
+                writeError = error;
+            } else if (!skip) {
+                bytesWritten += length;
+            }
+            written++;
+            notifyAll();
+        }
+    }
+}
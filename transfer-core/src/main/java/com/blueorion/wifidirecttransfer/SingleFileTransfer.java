@@ -0,0 +1,169 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * Frame exchange of the simple send-a-file paths ({@link FileTransferService} and
+ * {@link WiFiDirectFileTransferService}). The sender opens with HELLO, sends each file as
+ * FILE_HEADER, DATA frames and a TRAILER with its content hash, and ends with END. The
+ * receiver answers every TRAILER with an ACK telling whether the file arrived intact.
+ * A connection may carry any number of files, see {@link ConnectionPool}; while it is idle
+ * the sender keeps it alive with PING frames, which the receiver echoes.
+ */
+public final class SingleFileTransfer {
+    private static final String TAG = "SingleFileTransfer";
+
+    private SingleFileTransfer() {
+    }
+
+    /**
+     * Sending end of one connection. Files are sent one after the other.
+     */
+    public static class Sender implements Closeable {
+        private final Socket socket;
+        private final FrameWriter writer;
+        private final FrameReader reader;
+
+        /**
+         * Opens the connection with its HELLO frame
+         */
+        public Sender(Socket socket) throws IOException {
+            this.socket = socket;
+            this.writer = new FrameWriter(socket.getOutputStream(), socket.getChannel());
+            this.reader = new FrameReader(socket.getInputStream(), null);
+            writer.write(Frame.HELLO, FrameCodec.hello(new Random().nextLong(), 0, 0));
+        }
+
+        /**
+         * Sends one file and waits for the receiver to verify it
+         * @return true if the receiver verified the file
+         */
+        public boolean send(File file) throws IOException {
+            long fileSize = file.length();
+            writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(0, file.getName(), 0, fileSize, Compression.STORE));
+            try (FileInputStream fis = new FileInputStream(file)) {
+                if (writer.writeData(fis.getChannel(), 0, fileSize) != fileSize) {
+                    throw new IOException("File changed while sending: " + file.getName());
+                }
+            }
+            writer.write(Frame.TRAILER, ContentHash.hash(file));
+            writer.flush();
+            return reader.expect(Frame.ACK).payload().readBoolean();
+        }
+
+        /**
+         * Checks that the receiver still answers
+         */
+        public void ping() throws IOException {
+            writer.write(Frame.PING, new byte[0]);
+            writer.flush();
+            socket.setSoTimeout(Frame.HEARTBEAT_TIMEOUT_MILLIS);
+            try {
+                reader.expect(Frame.PING);
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        /**
+         * Closes the socket of a broken connection without ending it
+         */
+        public void abort() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+
+        /**
+         * Ends the connection with END and closes the socket
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                writer.write(Frame.END, new byte[0]);
+                writer.flush();
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Receives files from a connected socket into the destination directory until the
+     * sender ends the stream or leaves it silent for {@link Frame#IDLE_TIMEOUT_MILLIS}.
+     * A file that fails verification is deleted.
+     * @return Number of files received intact
+     */
+    public static int receive(Socket socket, File destinationDir) throws IOException {
+        socket.setSoTimeout(Frame.IDLE_TIMEOUT_MILLIS);
+        FrameReader reader = new FrameReader(socket.getInputStream(), socket.getChannel());
+        FrameWriter writer = new FrameWriter(socket.getOutputStream(), null);
+        FrameCodec.readHello(reader.read());
+
+        if (!destinationDir.exists()) {
+            destinationDir.mkdirs();
+        }
+
+        int filesReceived = 0;
+        Frame frame;
+        while ((frame = readFrame(reader)) != null && frame.type != Frame.END) {
+            if (frame.type == Frame.PING) {
+                writer.write(Frame.PING, new byte[0]);
+                writer.flush();
+                continue;
+            }
+            FrameCodec.FileHeader header = FrameCodec.readFileHeader(frame);
+            if (header.offset != 0) {
+                throw new ProtocolException("Unexpected offset for " + header.fileName);
+            }
+            // Only the last path segment is used so a sender cannot write outside the directory
+            File outputFile = new File(destinationDir, new File(header.fileName).getName());
+
+            long received;
+            try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+                raf.setLength(0);
+                received = reader.readData(raf.getChannel(), 0, header.length, header.codec, null);
+            }
+            if (received != header.length) {
+                throw new IOException("Transfer of " + header.fileName + " interrupted at " + received
+                        + " of " + header.length + " bytes");
+            }
+
+            byte[] trailer = FrameCodec.readTrailer(reader.read());
+            boolean verified = ContentHash.equals(ContentHash.hash(outputFile), trailer);
+            if (verified) {
+                filesReceived++;
+                TransferLog.d(TAG, "File received: " + outputFile.getAbsolutePath() + " (" + received + " bytes)");
+            } else {
+                TransferLog.e(TAG, "Digest mismatch for " + header.fileName);
+                outputFile.delete();
+            }
+            writer.write(Frame.ACK, FrameCodec.encode(dos -> dos.writeBoolean(verified)));
+            writer.flush();
+        }
+        return filesReceived;
+    }
+
+    /**
+     * Reads the next frame between files
+     * @return null if the sender went silent
+     */
+    private static Frame readFrame(FrameReader reader) throws IOException {
+        try {
+            return reader.read();
+        } catch (SocketTimeoutException e) {
+            TransferLog.d(TAG, "Closing connection idle for " + Frame.IDLE_TIMEOUT_MILLIS + " ms");
+            return null;
+        }
+    }
+}
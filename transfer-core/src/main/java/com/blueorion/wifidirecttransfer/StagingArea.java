@@ -0,0 +1,224 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Host side staging for incoming files. Data is first written to a ".part" file in a
+ * hidden staging directory and only moved into the destination once it is complete,
+ * so an interrupted transfer can be resumed from the bytes already received.
+ * Concurrent clients claim the files they are about to send so two of them never
+ * write the same part file at once. A part file whose space was preallocated is longer
+ * than its data until it is trimmed, so its received length is also recorded in a
+ * ".len" file next to it, and a resume after a crash starts from that record.
+ */
+public class StagingArea {
+    private static final String STAGING_DIR = ".part";
+    private static final String PART_SUFFIX = ".part";
+    private static final String LENGTH_SUFFIX = ".len";
+    // How far the received data may run ahead of its record; a crash costs at most this much
+    private static final long LENGTH_RECORD_INTERVAL = 8 * 1024 * 1024;
+
+    private final File destinationDir;
+    private final File stagingDir;
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+    public StagingArea(File destinationDir) {
+        this.destinationDir = destinationDir;
+        this.stagingDir = new File(destinationDir, STAGING_DIR);
+    }
+
+    public File getDestinationDir() {
+        return destinationDir;
+    }
+
+    public File getStagingDir() {
+        return stagingDir;
+    }
+
+    /**
+     * Creates the destination and staging directories if needed
+     */
+    public void prepare() throws IOException {
+        if (!stagingDir.mkdirs() && !stagingDir.isDirectory()) {
+            throw new IOException("Cannot create staging directory " + stagingDir);
+        }
+    }
+
+    /**
+     * Returns the staging file for a received file name. Only the last path segment
+     * of the name is used so a peer cannot write outside the destination directory.
+     */
+    public File partFile(String fileName) throws IOException {
+        return new File(stagingDir, safeName(fileName) + PART_SUFFIX);
+    }
+
+    public File destinationFile(String fileName) throws IOException {
+        return new File(destinationDir, safeName(fileName));
+    }
+
+    private File lengthFile(String fileName) throws IOException {
+        return new File(stagingDir, safeName(fileName) + PART_SUFFIX + LENGTH_SUFFIX);
+    }
+
+    /**
+     * Returns how many bytes of the file are already staged and can be skipped. That is
+     * the part file's length, or less if a recorded length says the rest was only reserved.
+     * A staged file larger than the announced size belongs to a different file and is discarded.
+     */
+    public long resumeOffset(String fileName, long fileSize) throws IOException {
+        File part = partFile(fileName);
+        long staged = Math.min(part.length(), recordedLength(fileName));
+        if (staged > fileSize) {
+            discard(fileName);
+            return 0;
+        }
+        return staged;
+    }
+
+    /**
+     * Starts recording the received length of a part file before its space is preallocated
+     * @param length Bytes of the part file that already hold data
+     * @return Record to update as data arrives, see {@link #clearLength}
+     */
+    public LengthRecord recordLength(String fileName, long length) throws IOException {
+        writeLength(fileName, length);
+        return new LengthRecord(fileName, length);
+    }
+
+    /**
+     * Drops the length record once the part file is trimmed to its data again
+     */
+    public void clearLength(String fileName) throws IOException {
+        lengthFile(fileName).delete();
+    }
+
+    private long recordedLength(String fileName) throws IOException {
+        File record = lengthFile(fileName);
+        if (!record.isFile()) {
+            return Long.MAX_VALUE;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(record))) {
+            return in.readLong();
+        } catch (IOException e) {
+            // A record cut short by the crash vouches for nothing
+            return 0;
+        }
+    }
+
+    private void writeLength(String fileName, long length) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(lengthFile(fileName)))) {
+            out.writeLong(length);
+        }
+    }
+
+    /**
+     * Deletes the staged data of a file, so it is received again from the start
+     */
+    public void discard(String fileName) throws IOException {
+        partFile(fileName).delete();
+        clearLength(fileName);
+    }
+
+    /**
+     * Reserves a file name for one client session
+     * @return false if another session is already receiving this file
+     */
+    public boolean claim(String fileName) throws IOException {
+        return claimed.add(safeName(fileName));
+    }
+
+    public void release(String fileName) throws IOException {
+        claimed.remove(safeName(fileName));
+    }
+
+    /**
+     * Checks whether the destination already holds the file described by a manifest entry.
+     * Committed files carry the sender's modification time, so the content is only hashed
+     * when size matches but the timestamps differ.
+     */
+    public boolean hasFile(ManifestEntry entry) throws IOException {
+        File destination = destinationFile(entry.fileName);
+        if (!destination.isFile() || destination.length() != entry.fileSize) {
+            return false;
+        }
+        if (destination.lastModified() == entry.lastModified) {
+            return true;
+        }
+        return ContentHash.equals(ContentHash.hash(destination), entry.hash);
+    }
+
+    /**
+     * Moves a fully received file from staging into the destination directory
+     * and stamps it with the sender's modification time
+     */
+    public File commit(String fileName, long lastModified) throws IOException {
+        File part = partFile(fileName);
+        File destination = destinationFile(fileName);
+        if (destination.exists() && !destination.delete()) {
+            throw new IOException("Cannot replace " + destination);
+        }
+        if (!part.renameTo(destination)) {
+            throw new IOException("Cannot move " + part + " to " + destination);
+        }
+        clearLength(fileName);
+        if (lastModified > 0) {
+            destination.setLastModified(lastModified);
+        }
+        return destination;
+    }
+
+    /**
+     * Received length of a preallocated part file. Received data is hashed and checked
+     * before commit, so a record that runs ahead of what reached the disk is caught there.
+     */
+    public final class LengthRecord {
+        private final String fileName;
+        private long recorded;
+
+        private LengthRecord(String fileName, long recorded) {
+            this.fileName = fileName;
+            this.recorded = recorded;
+        }
+
+        /**
+         * Takes the length received so far, writing it once it has grown enough since the
+         * last write. Called by the thread that writes the file.
+         */
+        public void update(long length) {
+            if (length - recorded < LENGTH_RECORD_INTERVAL) {
+                return;
+            }
+            try {
+                writeLength(fileName, length);
+                recorded = length;
+            } catch (IOException e) {
+                // The older record stays valid; a resume just starts further back
+            }
+        }
+    }
+
+    /**
+     * Whether a file of this name can be received. Names ending in a staging suffix are
+     * refused: they would collide with the staging directory or with another file's part
+     * file or length record.
+     */
+    public static boolean accepts(String fileName) {
+        String name = new File(fileName).getName();
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && !name.endsWith(PART_SUFFIX) && !name.endsWith(LENGTH_SUFFIX);
+    }
+
+    private static String safeName(String fileName) throws IOException {
+        if (!accepts(fileName)) {
+            throw new IOException("Invalid file name: " + fileName);
+        }
+        return new File(fileName).getName();
+    }
+}
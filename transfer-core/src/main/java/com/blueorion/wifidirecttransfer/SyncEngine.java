@@ -0,0 +1,1073 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Syncs the files of a source directory to the destination directory of a host over
+ * the sync protocol, see {@link Frame}. The same engine runs the host, which receives
+ * from any number of clients, and the client, which sends once or keeps syncing new
+ * files as they are written. It depends on nothing but the JVM: the directories come in
+ * as paths, listener callbacks go through a {@link CallbackExecutor}, and watching the
+ * source directory and preallocating received files are left to the platform, see
+ * {@link #setWatcherFactory} and {@link #setPreallocator}.
+ *
+ * The engine owns the connections, threads and sessions; the protocol itself is spoken by
+ * {@link SyncSender} on the client and by {@link SyncReceiver} or {@link NioSyncServer}
+ * on the host.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+    /** Port the host listens on */
+    public static final int PORT = 8988;
+    private static final int DEFAULT_STREAM_COUNT = 4;
+    private static final int MAX_STREAM_COUNT = 16;
+    private static final int DEFAULT_MAX_CONNECTIONS = 16;
+    private static final int CONNECTION_BACKLOG = 32;
+    private static final int SELECTOR_THREADS = 2;
+    private static final int HASH_THREADS = 2;
+    private static final String CHUNK_INDEX_FILE_NAME = "chunks.idx";
+    // Delays between attempts to reconnect a continuous sync
+    private static final long RECONNECT_MIN_MILLIS = 1000;
+    private static final long RECONNECT_MAX_MILLIS = 30000;
+
+    /**
+     * Receive engines the host can run
+     */
+    public enum ServerMode {
+        /** Every client stream is received on its own thread from a bounded pool */
+        BLOCKING,
+        /** A few selector threads multiplex all client streams */
+        SELECTOR
+    }
+
+    private final FileIndex sourceIndex;
+    private final File destinationDir;
+    private final LinkTuner linkTuner;
+    private final CallbackExecutor callbacks;
+    private volatile DirectoryWatcher.Factory watcherFactory;
+    private volatile Preallocator preallocator;
+    private ServerSocket serverSocket;
+    private ExecutorService serverExecutor;
+    private ExecutorService connectionExecutor;
+    private ExecutorService clientExecutor;
+    private HostSessions hostSessions;
+    private ExecutorService hashExecutor;
+    private ExecutorService diskExecutor;
+    private NioSyncServer nioServer;
+    private ServerMode serverMode = ServerMode.BLOCKING;
+    private int streamCount = DEFAULT_STREAM_COUNT;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile boolean zeroCopyEnabled = true;
+    private volatile boolean compressionEnabled = true;
+    private volatile boolean dedupEnabled;
+    private volatile boolean receivePipelineEnabled = true;
+    private volatile int idleTimeoutMillis = Frame.IDLE_TIMEOUT_MILLIS;
+    private volatile Comparator<ManifestEntry> schedulingPolicy = SyncScheduler.Policy.LARGEST_FIRST;
+    // Most recently pinned first
+    private final List<String> pinnedFiles = new ArrayList<>();
+    private volatile SyncSender activeSession;
+    private volatile SyncSession syncSession;
+    // Files the watcher reported while no session was running
+    private final Set<String> writtenFiles = new HashSet<>();
+    private volatile CountDownLatch continuousStop;
+    private final AtomicBoolean isServerRunning = new AtomicBoolean(false);
+    private final TransferMetrics hostMetrics = new TransferMetrics();
+    private final TransferMetrics clientMetrics = new TransferMetrics();
+    private volatile ProgressReporter progressReporter;
+
+    /**
+     * Sync callbacks, delivered on the callback executor. The client reports through the
+     * onTransfer* methods; the host, which may serve several clients at once, reports
+     * each client's session through the onClient* methods keyed by client address.
+     */
+    public interface Listener {
+        void onTransferProgress(int progress, int total);
+        void onFileTransferred(String fileName);
+        void onFileSkipped(String fileName);
+        /** Byte level progress of files in flight, sent or received, in coalesced batches */
+        void onFileProgress(List<ProgressReporter.Update> updates);
+        void onTransferComplete(int fileCount);
+        void onTransferError(String errorMessage);
+
+        void onClientProgress(String clientAddress, int progress, int total);
+        void onClientComplete(String clientAddress, int fileCount);
+        void onClientError(String clientAddress, String errorMessage);
+
+        void onFileSyncStarted();
+
+        void onFileSyncProgress(int progress);
+
+        void onFileSyncCompleted();
+    }
+
+    /**
+     * Reserves disk space for the rest of a file being received
+     */
+    public interface Preallocator {
+        void preallocate(RandomAccessFile file, long offset, long length) throws IOException;
+    }
+
+    private Listener listener;
+
+    /**
+     * @param sourceDir Directory the client syncs from
+     * @param destinationDir Directory the host syncs into
+     * @param stateDir Private directory for the file index and link profiles kept between runs
+     * @param callbacks Runs the listener callbacks
+     */
+    public SyncEngine(Path sourceDir, Path destinationDir, Path stateDir, CallbackExecutor callbacks) {
+        this.sourceIndex = FileIndex.open(sourceDir, stateDir);
+        this.destinationDir = destinationDir.toFile();
+        this.linkTuner = LinkTuner.open(stateDir);
+        this.callbacks = callbacks;
+        this.progressReporter = newProgressReporter(ProgressReporter.DEFAULT_UPDATES_PER_SECOND);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Watches the source directory during a sync, so files written meanwhile are sent in
+     * the same session. Without one, new files wait for the next sync unless they are
+     * reported through {@link #onFilesWritten}.
+     */
+    public void setWatcherFactory(DirectoryWatcher.Factory watcherFactory) {
+        this.watcherFactory = watcherFactory;
+    }
+
+    /**
+     * Reserves the space of a received file before its data is written. Without one the
+     * file grows as it is written.
+     */
+    public void setPreallocator(Preallocator preallocator) {
+        this.preallocator = preallocator;
+    }
+
+    /**
+     * Sets how many parallel connections the client opens to the host
+     * @param streamCount Number of streams, clamped to 1..MAX_STREAM_COUNT
+     */
+    public void setStreamCount(int streamCount) {
+        this.streamCount = Math.max(1, Math.min(streamCount, MAX_STREAM_COUNT));
+    }
+
+    public int getStreamCount() {
+        return streamCount;
+    }
+
+    /**
+     * Sets how many client streams the host receives at the same time. Further
+     * connections wait in a bounded queue and are refused once that is full.
+     * Takes effect the next time the server starts.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Selects the receive engine. Takes effect the next time the server starts.
+     */
+    public void setServerMode(ServerMode serverMode) {
+        this.serverMode = serverMode;
+    }
+
+    /**
+     * Enables moving file data with FileChannel.transferTo when sending and
+     * FileChannel.transferFrom when receiving, instead of copying it through
+     * a heap buffer. Enabled by default.
+     */
+    public void setZeroCopyEnabled(boolean enabled) {
+        this.zeroCopyEnabled = enabled;
+    }
+
+    /**
+     * Allows files that compress well to be sent deflated, if the other side agrees
+     * during the handshake. Already compressed media is always sent as it is.
+     * Enabled by default.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * Enables chunk level deduplication of large files. The client splits each large file
+     * into content-defined chunks and only sends those the host does not hold in any of its
+     * files yet; the host keeps an index of the chunks in its destination directory and
+     * rebuilds the file from them. This pays off for repeated content such as copied or
+     * forwarded videos, at the cost of reading each large file one more time on the client.
+     * Used only if both sides enable it. Disabled by default; on the host it takes effect
+     * the next time the server starts.
+     */
+    public void setDedupEnabled(boolean enabled) {
+        this.dedupEnabled = enabled;
+    }
+
+    /**
+     * Lets the blocking host write received file data on a disk writer thread of its own
+     * per connection, fed through a bounded ring of buffers, so a slow write does not stall
+     * the socket until the ring is full. Otherwise data is written by the thread reading
+     * the socket, with transferFrom if zero copy is enabled. Enabled by default; takes
+     * effect the next time the server starts.
+     */
+    public void setReceivePipelineEnabled(boolean enabled) {
+        this.receivePipelineEnabled = enabled;
+    }
+
+    /**
+     * Sets how long the host waits for a client stream that has gone silent, even in the
+     * middle of a file, before it drops the stream. Defaults to
+     * {@link Frame#IDLE_TIMEOUT_MILLIS}; takes effect the next time the server starts.
+     */
+    public void setIdleTimeout(int millis) {
+        this.idleTimeoutMillis = millis;
+    }
+
+    /**
+     * Sets the order in which the client sends files, one of {@link SyncScheduler.Policy}
+     * or any other order of manifest entries. Pinned files always go first. Defaults to
+     * largest first; takes effect with the next sync.
+     */
+    public void setSchedulingPolicy(Comparator<ManifestEntry> policy) {
+        this.schedulingPolicy = policy;
+    }
+
+    /**
+     * Sends a file before any other that is still waiting, in the running sync as well
+     * as in later ones until it is unpinned
+     */
+    public void pinFile(String fileName) {
+        synchronized (pinnedFiles) {
+            pinnedFiles.remove(fileName);
+            pinnedFiles.add(0, fileName);
+        }
+        SyncSender session = activeSession;
+        if (session != null) {
+            session.pin(fileName);
+        }
+    }
+
+    public void unpinFile(String fileName) {
+        synchronized (pinnedFiles) {
+            pinnedFiles.remove(fileName);
+        }
+        SyncSender session = activeSession;
+        if (session != null) {
+            session.unpin(fileName);
+        }
+    }
+
+    /**
+     * Limits how often byte level progress of a file reaches {@link Listener#onFileProgress}.
+     * Updates of all files in flight are delivered together, so this also bounds the posts
+     * to the callback executor.
+     */
+    public void setProgressUpdatesPerSecond(int updatesPerSecond) {
+        this.progressReporter = newProgressReporter(updatesPerSecond);
+    }
+
+    private ProgressReporter newProgressReporter(int updatesPerSecond) {
+        return new ProgressReporter(callbacks, updates -> {
+            if (listener != null) {
+                listener.onFileProgress(updates);
+            }
+        }, updatesPerSecond);
+    }
+
+    /**
+     * Throughput and latency counters of everything this device received as the host.
+     * Take a {@link TransferMetrics#snapshot()} to read or export them.
+     */
+    public TransferMetrics getHostMetrics() {
+        return hostMetrics;
+    }
+
+    /**
+     * Throughput and latency counters of everything this device sent as a client
+     */
+    public TransferMetrics getClientMetrics() {
+        return clientMetrics;
+    }
+
+    /**
+     * Whether the host is listening for clients
+     */
+    public boolean isServerRunning() {
+        return isServerRunning.get();
+    }
+
+    private int localCapabilities() {
+        int capabilities = 0;
+        if (compressionEnabled) {
+            capabilities |= Compression.CAPABILITY_DEFLATE;
+        }
+        if (dedupEnabled) {
+            capabilities |= Chunker.CAPABILITY_DEDUP;
+        }
+        return capabilities;
+    }
+
+    /**
+     * Starts the server to receive files (called by Host device)
+     * @param hostAddress The host device's IP address
+     */
+    public void startServer(String hostAddress) {
+        if (isServerRunning.get()) {
+            TransferLog.w(TAG, "Server is already running");
+            return;
+        }
+
+        if (serverMode == ServerMode.SELECTOR) {
+            startSelectorServer(hostAddress);
+            return;
+        }
+
+        serverExecutor = Executors.newSingleThreadExecutor();
+        ThreadPoolExecutor connections = new ThreadPoolExecutor(maxConnections, maxConnections,
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(CONNECTION_BACKLOG));
+        connections.allowCoreThreadTimeOut(true);
+        connectionExecutor = connections;
+        // One disk writer per connection at most, so this is bounded by the connection pool
+        ExecutorService diskWriters = receivePipelineEnabled ? Executors.newCachedThreadPool() : null;
+        diskExecutor = diskWriters;
+        serverExecutor.execute(() -> {
+            try {
+                StagingArea staging = new StagingArea(destinationDir);
+                staging.prepare();
+                hostSessions = openHostSessions(staging);
+                SyncReceiver receiver = newReceiver(hostSessions, diskWriters);
+
+                // Accepted sockets inherit the channel, which the receive path uses for transferFrom
+                serverSocket = ServerSocketChannel.open().socket();
+                serverSocket.setReuseAddress(true);
+                serverSocket.bind(new InetSocketAddress(hostAddress, PORT));
+                isServerRunning.set(true);
+
+                TransferLog.d(TAG, "Server started on " + hostAddress + ":" + PORT);
+
+                while (isServerRunning.get()) {
+                    Socket clientSocket = serverSocket.accept();
+                    TransferLog.d(TAG, "Client connected: " + clientSocket.getInetAddress());
+                    // Every stream of every client is received on the bounded worker pool
+                    try {
+                        connections.execute(() -> receiver.receive(clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        TransferLog.w(TAG, "Too many connections, refusing " + clientSocket.getInetAddress());
+                        clientSocket.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (isServerRunning.get()) {
+                    TransferLog.e(TAG, "Server error", e);
+                    notifyError("Server error: " + e.getMessage());
+                }
+            } finally {
+                stopServer();
+            }
+        });
+    }
+
+    /**
+     * Creates the session registry together with its hashing threads and, if deduplication
+     * is enabled, the chunk index of the destination directory
+     */
+    private HostSessions openHostSessions(StagingArea staging) {
+        hashExecutor = Executors.newFixedThreadPool(HASH_THREADS);
+        ChunkIndex chunkIndex = null;
+        if (dedupEnabled) {
+            chunkIndex = new ChunkIndex(staging.getDestinationDir(),
+                    new File(staging.getStagingDir(), CHUNK_INDEX_FILE_NAME));
+            // Files that were here before are chunked in the background
+            hashExecutor.execute(chunkIndex::indexMissing);
+        }
+        return new HostSessions(staging, hashExecutor, localCapabilities(), chunkIndex);
+    }
+
+    /**
+     * Creates the blocking server's receiver, which reports its clients through the listener
+     * @param diskWriters Runs the disk writers of the receive pipelines, or null
+     */
+    private SyncReceiver newReceiver(HostSessions sessions, ExecutorService diskWriters) {
+        SyncReceiver receiver = new SyncReceiver(sessions, new SyncReceiver.Callback() {
+            @Override
+            public void onSessionProgress(String clientAddress, int filesReceived, int totalFiles) {
+                notifyClientProgress(clientAddress, filesReceived, totalFiles);
+            }
+
+            @Override
+            public void onFilesReceived(String clientAddress, List<String> fileNames) {
+                notifyFilesTransferred(fileNames);
+            }
+
+            @Override
+            public void onSessionComplete(String clientAddress, int fileCount) {
+                notifyClientComplete(clientAddress, fileCount);
+            }
+
+            @Override
+            public void onSessionError(String clientAddress, String errorMessage) {
+                notifyClientError(clientAddress, errorMessage);
+            }
+        }, hostMetrics, progressReporter, diskWriters);
+        receiver.setZeroCopyEnabled(zeroCopyEnabled);
+        receiver.setIdleTimeout(idleTimeoutMillis);
+        receiver.setPreallocator(preallocator);
+        return receiver;
+    }
+
+    /**
+     * Starts the selector based receive engine, which needs no accept or connection threads
+     */
+    private void startSelectorServer(String hostAddress) {
+        serverExecutor = Executors.newSingleThreadExecutor();
+        serverExecutor.execute(() -> {
+            try {
+                StagingArea staging = new StagingArea(destinationDir);
+                staging.prepare();
+                hostSessions = openHostSessions(staging);
+
+                nioServer = new NioSyncServer(hostSessions, new NioSyncServer.Callback() {
+                    @Override
+                    public void onSessionStarted(String clientAddress, int totalFiles) {
+                        notifyClientProgress(clientAddress, 0, totalFiles);
+                    }
+
+                    @Override
+                    public void onFileReceived(String clientAddress, String fileName, int filesReceived, int totalFiles) {
+                        notifyFileTransferred(fileName);
+                        notifyClientProgress(clientAddress, filesReceived, totalFiles);
+                    }
+
+                    @Override
+                    public void onSessionComplete(String clientAddress, int fileCount) {
+                        TransferLog.d(TAG, "All files received from " + clientAddress + ": " + fileCount);
+                        notifyClientComplete(clientAddress, fileCount);
+                    }
+
+                    @Override
+                    public void onSessionError(String clientAddress, String errorMessage) {
+                        TransferLog.e(TAG, "Error receiving files from " + clientAddress + ": " + errorMessage);
+                        notifyClientError(clientAddress, errorMessage);
+                    }
+                }, SELECTOR_THREADS, hostMetrics, progressReporter);
+                nioServer.setIdleTimeout(idleTimeoutMillis);
+                nioServer.start(new InetSocketAddress(hostAddress, PORT));
+                isServerRunning.set(true);
+
+                TransferLog.d(TAG, "Selector server started on " + hostAddress + ":" + PORT);
+            } catch (IOException e) {
+                TransferLog.e(TAG, "Server error", e);
+                notifyError("Server error: " + e.getMessage());
+                stopServer();
+            }
+        });
+    }
+
+    /**
+     * Stops the server
+     */
+    public void stopServer() {
+        isServerRunning.set(false);
+
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                TransferLog.e(TAG, "Error closing server socket", e);
+            }
+        }
+
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+
+        if (serverExecutor != null) {
+            serverExecutor.shutdownNow();
+            serverExecutor = null;
+        }
+
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+            connectionExecutor = null;
+        }
+
+        if (hashExecutor != null) {
+            hashExecutor.shutdownNow();
+            hashExecutor = null;
+        }
+
+        if (diskExecutor != null) {
+            diskExecutor.shutdownNow();
+            diskExecutor = null;
+        }
+        if (hostSessions != null) {
+            hostSessions.clear();
+        }
+
+        TransferLog.d(TAG, "Server stopped");
+    }
+
+    /**
+     * Starts the client to send files to the server (called by Client device).
+     * A manifest of the local files is exchanged first so only files the server is
+     * missing are sent, spread over several parallel streams, see {@link #setStreamCount(int)},
+     * in the order set with {@link #setSchedulingPolicy}. Files captured while the sync
+     * runs are offered to the server as well and queued by the same order.
+     * @param serverAddress Server's IP address
+     * @return Handle to pause, resume or cancel the sync with
+     */
+    public SyncSession startClientSync(String serverAddress) {
+        return startClientSync(serverAddress, null);
+    }
+
+    /**
+     * Starts the client sync with buffers tuned for the given peer. The link is measured
+     * in the first seconds of the sync and the streams are retuned for the rest of it;
+     * the result is kept per device address for the next sync, see {@link LinkTuner}.
+     * @param serverAddress Server's IP address
+     * @param deviceAddress Wi-Fi Direct address of the server device, or null if unknown
+     * @return Handle to pause, resume or cancel the sync with
+     */
+    public SyncSession startClientSync(String serverAddress, String deviceAddress) {
+        stopClientExecutor();
+
+        // Group owners all share one IP address, so the device address tells peers apart
+        String peer = deviceAddress != null ? deviceAddress : serverAddress;
+        SyncSession sync = new SyncSession();
+        syncSession = sync;
+        clientExecutor = Executors.newSingleThreadExecutor();
+        clientExecutor.execute(() -> {
+            DirectoryWatcher watcher = startWatching();
+            try {
+                while (true) {
+                    CancellationToken attempt = sync.newAttempt();
+                    try {
+                        reportSyncResult(runClientSession(serverAddress, peer, null, attempt));
+                        break;
+                    } catch (IOException | ExecutionException e) {
+                        Throwable error = e instanceof ExecutionException ? e.getCause() : e;
+                        if (!attempt.isCancelled()) {
+                            TransferLog.e(TAG, "Error sending files", error);
+                            notifyError("Error sending files: " + error.getMessage());
+                            break;
+                        }
+                    }
+                    // The connection was closed on purpose, to pause or cancel the sync
+                    if (!awaitResume(sync)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                TransferLog.d(TAG, "Client sync interrupted");
+                Thread.currentThread().interrupt();
+            } finally {
+                sync.finish();
+                if (watcher != null) {
+                    watcher.stop();
+                }
+            }
+        });
+        return sync;
+    }
+
+    /**
+     * Keeps syncing to the server until {@link #stopContinuousSync()}. Every connection
+     * starts with a full manifest exchange, which catches up on whatever was captured
+     * while disconnected; after that the first stream stays open and new captures are
+     * sent as the directory watcher reports them, a burst of photos at a time.
+     * A broken connection is reestablished with exponential backoff.
+     * @param serverAddress Server's IP address
+     * @param deviceAddress Wi-Fi Direct address of the server device, or null if unknown
+     * @return Handle to pause, resume or cancel the sync with
+     */
+    public SyncSession startContinuousSync(String serverAddress, String deviceAddress) {
+        stopClientExecutor();
+
+        String peer = deviceAddress != null ? deviceAddress : serverAddress;
+        CountDownLatch stopSignal = new CountDownLatch(1);
+        continuousStop = stopSignal;
+        SyncSession sync = new SyncSession();
+        syncSession = sync;
+        // Cancelling also cuts the wait before reconnecting short
+        sync.onCancel(stopSignal::countDown);
+        clientExecutor = Executors.newSingleThreadExecutor();
+        clientExecutor.execute(() -> {
+            DirectoryWatcher watcher = startWatching();
+            long backoff = RECONNECT_MIN_MILLIS;
+            try {
+                while (stopSignal.getCount() > 0) {
+                    long started = System.currentTimeMillis();
+                    CancellationToken attempt = sync.newAttempt();
+                    try {
+                        SyncSender session = runClientSession(serverAddress, peer, stopSignal, attempt);
+                        if (stopSignal.getCount() == 0) {
+                            if (sync.getState() != SyncSession.State.CANCELLED) {
+                                reportSyncResult(session);
+                            }
+                            break;
+                        }
+                    } catch (IOException | ExecutionException e) {
+                        if (!attempt.isCancelled()) {
+                            Throwable error = e instanceof ExecutionException ? e.getCause() : e;
+                            TransferLog.w(TAG, "Continuous sync lost the connection: " + error.getMessage());
+                        }
+                    }
+
+                    // Paused rather than lost, so there is no backoff once resumed
+                    if (attempt.isCancelled()) {
+                        if (!awaitResume(sync)) {
+                            break;
+                        }
+                        backoff = RECONNECT_MIN_MILLIS;
+                        continue;
+                    }
+
+                    // A session that ran for a while starts the backoff over
+                    if (System.currentTimeMillis() - started > RECONNECT_MAX_MILLIS) {
+                        backoff = RECONNECT_MIN_MILLIS;
+                    }
+                    TransferLog.d(TAG, "Reconnecting in " + backoff + " ms");
+                    if (stopSignal.await(backoff, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                    backoff = Math.min(backoff * 2, RECONNECT_MAX_MILLIS);
+                }
+                TransferLog.d(TAG, "Continuous sync stopped");
+            } catch (InterruptedException e) {
+                TransferLog.d(TAG, "Continuous sync interrupted");
+                Thread.currentThread().interrupt();
+            } finally {
+                sync.finish();
+                if (watcher != null) {
+                    watcher.stop();
+                }
+            }
+        });
+        return sync;
+    }
+
+    /**
+     * Waits out a pause of the sync
+     * @return Whether to reconnect, false if the sync was cancelled
+     */
+    private boolean awaitResume(SyncSession sync) throws InterruptedException {
+        if (sync.getState() == SyncSession.State.PAUSED) {
+            TransferLog.d(TAG, "Sync paused");
+        }
+        if (!sync.awaitRunning()) {
+            TransferLog.d(TAG, "Sync cancelled");
+            return false;
+        }
+        TransferLog.d(TAG, "Sync resumed");
+        return true;
+    }
+
+    /**
+     * Ends a continuous sync. The files in flight are finished and verified before the
+     * connection is closed; a paused sync has none and just ends.
+     */
+    public void stopContinuousSync() {
+        CountDownLatch stopSignal = continuousStop;
+        if (stopSignal != null) {
+            stopSignal.countDown();
+        }
+        SyncSession sync = syncSession;
+        if (sync != null && sync.getState() == SyncSession.State.PAUSED) {
+            sync.cancel();
+        }
+        SyncSender session = activeSession;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * The client sync started last, or null if there was none
+     */
+    public SyncSession getSyncSession() {
+        return syncSession;
+    }
+
+    private void stopClientExecutor() {
+        CountDownLatch stopSignal = continuousStop;
+        if (stopSignal != null) {
+            stopSignal.countDown();
+            continuousStop = null;
+        }
+        SyncSession sync = syncSession;
+        if (sync != null) {
+            sync.cancel();
+        }
+        if (clientExecutor != null) {
+            clientExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The running watcher, or null if there is no watcher factory
+     */
+    private DirectoryWatcher startWatching() {
+        DirectoryWatcher.Factory factory = watcherFactory;
+        if (factory == null) {
+            return null;
+        }
+        DirectoryWatcher watcher = factory.create(sourceIndex.getSourceDir(), this::onFilesWritten);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Runs one sync session: exchanges the manifest, sends the files the server is missing
+     * and, while the streams run, whatever is written to the source directory meanwhile
+     * @param stopSignal For a continuous sync, ends the session; the first stream stays open
+     *                   for new captures until then. Null for a single sync.
+     * @param attempt Closes the session's sockets and stops its streams when cancelled
+     * @return The finished session
+     */
+    private SyncSender runClientSession(String serverAddress, String peer, CountDownLatch stopSignal,
+                                           CancellationToken attempt)
+            throws IOException, ExecutionException, InterruptedException {
+        attempt.throwIfCancelled();
+        int streams = streamCount;
+        LinkTuner.Profile profile = linkTuner.profileFor(peer);
+        ExecutorService streamExecutor = null;
+        SyncSender.Stream controlStream = null;
+        try {
+            // The index only hashes files that are new or changed since the last sync
+            List<FileIndex.Entry> localFiles = sourceIndex.refresh();
+            // Hashing new files may take a while and cannot be interrupted
+            attempt.throwIfCancelled();
+            ManifestEntry[] manifest = new ManifestEntry[localFiles.size()];
+            for (int i = 0; i < manifest.length; i++) {
+                manifest[i] = localFiles.get(i).manifest;
+            }
+
+            // The first stream carries the manifest exchange
+            long sessionId = new Random().nextLong();
+            SyncSender.Stream control = openStream(serverAddress, sessionId, 0, profile, attempt);
+            controlStream = control;
+            List<SyncSender.Stream> openStreams = new CopyOnWriteArrayList<>();
+            openStreams.add(control);
+
+            control.writer.write(Frame.MANIFEST, FrameCodec.manifest(manifest));
+            control.writer.flush();
+
+            // The server answers with the files it is missing and how much of each it already holds
+            DataInputStream reply = control.reader.expect(Frame.ACK).payload();
+            int missing = reply.readInt();
+            if (missing < 0 || missing > manifest.length) {
+                throw new IOException("Invalid manifest reply");
+            }
+            boolean[] requested = new boolean[manifest.length];
+            List<SyncSender.PendingFile> filesToSend = new ArrayList<>(missing);
+            for (int i = 0; i < missing; i++) {
+                int index = reply.readInt();
+                long offset = reply.readLong();
+                if (index < 0 || index >= manifest.length || offset < 0 || offset > manifest[index].fileSize) {
+                    throw new IOException("Invalid manifest reply");
+                }
+                requested[index] = true;
+                filesToSend.add(new SyncSender.PendingFile(index, localFiles.get(index).file, manifest[index], offset));
+            }
+
+            for (int i = 0; i < manifest.length; i++) {
+                if (!requested[i]) {
+                    notifyFileSkipped(manifest[i].fileName);
+                }
+            }
+
+            // Compression and deduplication are only used if both sides enabled them
+            int capabilities = reply.readInt() & localCapabilities();
+
+            int totalFiles = filesToSend.size();
+            // No point in opening more streams than there are files
+            int activeStreams = Math.max(1, Math.min(streams, totalFiles));
+            control.writer.write(Frame.ACK, FrameCodec.encode(dos -> dos.writeInt(activeStreams)));
+            control.writer.flush();
+
+            SyncSender session = new SyncSender(capabilities, newScheduler(), manifest, filesToSend,
+                    stopSignal != null, progressReporter, newSenderCallback());
+            // Wakes the first stream of a continuous session waiting for new captures
+            attempt.onCancel(session::close);
+            List<String> written;
+            synchronized (writtenFiles) {
+                activeSession = session;
+                written = new ArrayList<>(writtenFiles);
+                writtenFiles.clear();
+            }
+            // Stopped before the session was there to close
+            if (stopSignal != null && stopSignal.getCount() == 0) {
+                session.close();
+            }
+            // Files written while the manifest was built
+            offerWrittenFiles(session, written);
+
+            TransferLog.d(TAG, "Sending " + totalFiles + " of " + manifest.length + " files over " + activeStreams + " streams");
+            notifyProgress(0, totalFiles);
+
+            long probeStart = System.nanoTime();
+            streamExecutor = Executors.newFixedThreadPool(activeStreams);
+            attempt.onCancel(streamExecutor::shutdownNow);
+            List<Future<Integer>> results = new ArrayList<>();
+            results.add(streamExecutor.submit(() -> session.send(control, 0)));
+            for (int i = 1; i < activeStreams; i++) {
+                int streamIndex = i;
+                Callable<Integer> sender = () -> {
+                    try (SyncSender.Stream stream = openStream(serverAddress, sessionId, streamIndex, profile,
+                            attempt)) {
+                        openStreams.add(stream);
+                        return session.send(stream, streamIndex);
+                    }
+                };
+                results.add(streamExecutor.submit(sender));
+            }
+
+            // Measure the link while the streams run, then retune them for the rest of the session
+            streamExecutor.shutdown();
+            boolean finished = streamExecutor.awaitTermination(LinkTuner.PROBE_MILLIS, TimeUnit.MILLISECONDS);
+            tuneLink(peer, openStreams, System.nanoTime() - probeStart, !finished);
+
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+
+            int leftOver = session.takeUnannounced().size();
+            if (leftOver > 0) {
+                TransferLog.d(TAG, leftOver + " files found at the end of the sync are left for the next one");
+            }
+            return session;
+
+        } finally {
+            activeSession = null;
+            if (streamExecutor != null) {
+                streamExecutor.shutdownNow();
+            }
+            if (controlStream != null) {
+                try {
+                    controlStream.close();
+                } catch (IOException e) {
+                    TransferLog.e(TAG, "Error closing socket", e);
+                }
+            }
+        }
+    }
+
+    private void reportSyncResult(SyncSender session) {
+        int filesFailed = session.getFilesFailed();
+        if (filesFailed > 0) {
+            TransferLog.e(TAG, filesFailed + " files failed verification");
+            notifyError(filesFailed + " files failed verification");
+        } else {
+            TransferLog.d(TAG, "All files sent successfully: " + session.getFilesSent());
+            notifyTransferComplete(session.getFilesSent());
+        }
+    }
+
+    private SyncScheduler<SyncSender.PendingFile> newScheduler() {
+        List<String> pinned;
+        synchronized (pinnedFiles) {
+            pinned = new ArrayList<>(pinnedFiles);
+        }
+        return new SyncScheduler<>(schedulingPolicy, file -> file.entry, pinned);
+    }
+
+    private SyncSender.Callback newSenderCallback() {
+        return new SyncSender.Callback() {
+            @Override
+            public void onProgress(int filesSent, int totalFiles) {
+                notifyProgress(filesSent, totalFiles);
+            }
+
+            @Override
+            public void onFilesSent(List<String> fileNames) {
+                notifyFilesTransferred(fileNames);
+            }
+
+            @Override
+            public void onFileSkipped(String fileName) {
+                notifyFileSkipped(fileName);
+            }
+        };
+    }
+
+    /**
+     * Hands files written to the source directory to the running session, which offers
+     * them to the server. Without a session they wait for the next one. Called by the
+     * directory watcher, or by whoever writes the files if there is none.
+     * @param fileNames Names of the files within the source directory
+     */
+    public void onFilesWritten(Set<String> fileNames) {
+        SyncSender session;
+        synchronized (writtenFiles) {
+            session = activeSession;
+            if (session == null) {
+                writtenFiles.addAll(fileNames);
+                return;
+            }
+        }
+        offerWrittenFiles(session, fileNames);
+    }
+
+    private void offerWrittenFiles(SyncSender session, Collection<String> fileNames) {
+        if (fileNames.isEmpty()) {
+            return;
+        }
+        List<FileIndex.Entry> files;
+        try {
+            files = sourceIndex.update(fileNames);
+        } catch (IOException e) {
+            TransferLog.w(TAG, "Could not index new files: " + e.getMessage());
+            return;
+        }
+        int found = session.addFound(files);
+        if (found > 0) {
+            TransferLog.d(TAG, "Found " + found + " new files during the sync");
+        }
+    }
+
+    /**
+     * Records the link profile measured over the first part of a session and, if the
+     * session is still running, applies it to its streams
+     * @param nanos Time the streams have been sending
+     */
+    private void tuneLink(String peer, List<SyncSender.Stream> streams, long nanos, boolean running) {
+        long bytes = 0;
+        long rttMicros = Long.MAX_VALUE;
+        for (SyncSender.Stream stream : streams) {
+            bytes += stream.metrics.getBytes();
+            rttMicros = Math.min(rttMicros, stream.rttMicros);
+        }
+        LinkTuner.Profile profile = linkTuner.record(peer, rttMicros, bytes, nanos, streams.size());
+        if (profile != null && running) {
+            for (SyncSender.Stream stream : streams) {
+                stream.retune(profile);
+            }
+        }
+    }
+
+    /**
+     * Connects one stream to the server and sends its HELLO frame. The socket is opened
+     * through a SocketChannel so file data can be sent with transferTo.
+     * @param profile Buffer settings to start the stream with
+     * @param attempt Closes the socket when cancelled, even while it connects
+     */
+    private SyncSender.Stream openStream(String serverAddress, long sessionId, int streamIndex,
+                              LinkTuner.Profile profile, CancellationToken attempt) throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        attempt.closeOnCancel(socket);
+        SyncSender.Stream stream = null;
+        try {
+            profile.applyTo(socket);
+            // The TCP handshake takes one round trip, which makes the connect a free RTT probe
+            long connectStart = System.nanoTime();
+            socket.connect(new InetSocketAddress(serverAddress, PORT), 10000); // 10 seconds timeout
+            long rttMicros = (System.nanoTime() - connectStart) / 1000;
+
+            TransferLog.d(TAG, "Stream " + streamIndex + " connected to server: " + serverAddress + ":" + PORT);
+
+            // Without a channel the data is copied through the heap buffer instead
+            stream = new SyncSender.Stream(socket, zeroCopyEnabled ? socket.getChannel() : null,
+                    clientMetrics.openStream(serverAddress + " stream " + streamIndex), profile, rttMicros);
+            stream.writer.write(Frame.HELLO, FrameCodec.hello(sessionId, streamIndex, localCapabilities()));
+            return stream;
+        } catch (IOException e) {
+            if (stream != null) {
+                stream.close();
+            } else {
+                socket.close();
+            }
+            throw e;
+        }
+    }
+
+    // Notification methods to update UI
+    private void notifyProgress(int progress, int total) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onTransferProgress(progress, total));
+        }
+    }
+
+    private void notifyFileTransferred(String fileName) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onFileTransferred(fileName));
+        }
+    }
+
+    /**
+     * Reports a batch of files with a single callback
+     */
+    private void notifyFilesTransferred(List<String> fileNames) {
+        if (listener != null && !fileNames.isEmpty()) {
+            callbacks.execute(() -> {
+                for (String fileName : fileNames) {
+                    listener.onFileTransferred(fileName);
+                }
+            });
+        }
+    }
+
+    private void notifyFileSkipped(String fileName) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onFileSkipped(fileName));
+        }
+    }
+
+    private void notifyTransferComplete(int fileCount) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onTransferComplete(fileCount));
+        }
+    }
+
+    private void notifyError(String errorMessage) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onTransferError(errorMessage));
+        }
+    }
+
+    private void notifyClientProgress(String clientAddress, int progress, int total) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onClientProgress(clientAddress, progress, total));
+        }
+    }
+
+    private void notifyClientComplete(String clientAddress, int fileCount) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onClientComplete(clientAddress, fileCount));
+        }
+    }
+
+    private void notifyClientError(String clientAddress, String errorMessage) {
+        if (listener != null) {
+            callbacks.execute(() -> listener.onClientError(clientAddress, errorMessage));
+        }
+    }
+}
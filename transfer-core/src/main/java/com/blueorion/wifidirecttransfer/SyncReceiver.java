@@ -0,0 +1,422 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Host side of the sync protocol on the blocking server: receives one client stream at a
+ * time on the calling thread, while the server runs as many of them in parallel as its
+ * connection pool allows. Session handling is shared with {@link NioSyncServer} through
+ * {@link HostSessions}.
+ */
+class SyncReceiver {
+    private static final String TAG = "SyncReceiver";
+
+    /**
+     * Session events, called on the connection threads
+     */
+    interface Callback {
+        void onSessionProgress(String clientAddress, int filesReceived, int totalFiles);
+        void onFilesReceived(String clientAddress, List<String> fileNames);
+        void onSessionComplete(String clientAddress, int fileCount);
+        void onSessionError(String clientAddress, String errorMessage);
+    }
+
+    private final HostSessions sessions;
+    private final Callback callback;
+    private final TransferMetrics hostMetrics;
+    private final ProgressReporter progressReporter;
+    private final ExecutorService diskWriters;
+    private boolean zeroCopyEnabled = true;
+    private int idleTimeoutMillis = Frame.IDLE_TIMEOUT_MILLIS;
+    private SyncEngine.Preallocator preallocator;
+
+    /**
+     * @param hostMetrics Counters every stream records its received data into
+     * @param progressReporter Told about the byte progress of every received file
+     * @param diskWriters Runs the disk writer of each connection's receive pipeline, or null
+     *                    to write on the connection's thread
+     */
+    SyncReceiver(HostSessions sessions, Callback callback, TransferMetrics hostMetrics,
+                 ProgressReporter progressReporter, ExecutorService diskWriters) {
+        this.sessions = sessions;
+        this.callback = callback;
+        this.hostMetrics = hostMetrics;
+        this.progressReporter = progressReporter;
+        this.diskWriters = diskWriters;
+    }
+
+    /**
+     * Receives file data with transferFrom instead of through a heap buffer. Enabled by
+     * default; set before the first stream is received.
+     */
+    void setZeroCopyEnabled(boolean enabled) {
+        this.zeroCopyEnabled = enabled;
+    }
+
+    /**
+     * Sets how long a stream may stay silent before it is dropped. Defaults to
+     * {@link Frame#IDLE_TIMEOUT_MILLIS}; set before the first stream is received.
+     */
+    void setIdleTimeout(int millis) {
+        this.idleTimeoutMillis = millis;
+    }
+
+    /**
+     * Reserves the space of received files, or null to let them grow as they are written.
+     * Set before the first stream is received.
+     */
+    void setPreallocator(SyncEngine.Preallocator preallocator) {
+        this.preallocator = preallocator;
+    }
+
+    /**
+     * Handles one client stream and receives its files. The first stream of a session
+     * carries the manifest exchange; further streams join the session by its id. The
+     * session completes once all of its streams have finished. Closes the socket.
+     */
+    void receive(Socket clientSocket) {
+        String clientAddress = clientSocket.getInetAddress().getHostAddress();
+        StagingArea staging = sessions.getStaging();
+        long sessionId = 0;
+        HostSessions.Session session = null;
+        TransferMetrics.Stream metrics = null;
+        ReceivePipeline receivePipeline = null;
+        try {
+            // The round and chunk replies are small frames the client waits for
+            clientSocket.setTcpNoDelay(true);
+            // A live client sends frames or heartbeats, so a silent one is gone
+            clientSocket.setSoTimeout(idleTimeoutMillis);
+            SocketChannel channel = zeroCopyEnabled ? clientSocket.getChannel() : null;
+            FrameReader reader = new FrameReader(clientSocket.getInputStream(), channel);
+            FrameWriter writer = new FrameWriter(clientSocket.getOutputStream(), null);
+
+            // First, receive the stream header
+            FrameCodec.Hello hello = FrameCodec.readHello(reader.read());
+            sessionId = hello.sessionId;
+            metrics = hostMetrics.openStream(clientAddress + " stream " + hello.streamIndex);
+            reader.setMetrics(metrics);
+            if (diskWriters != null) {
+                receivePipeline = new ReceivePipeline(diskWriters, metrics);
+                reader.setPipeline(receivePipeline);
+            }
+
+            if (hello.streamIndex == 0) {
+                session = exchangeManifest(reader, writer, sessionId, hello.capabilities, clientAddress);
+            } else {
+                session = sessions.join(sessionId);
+            }
+
+            List<Integer> retry = new ArrayList<>();
+            List<Integer> failed = new ArrayList<>();
+
+            while (true) {
+                // Receive files until the client marks the end of this round
+                Frame frame;
+                while ((frame = reader.read()).type != Frame.END) {
+                    if (frame.type == Frame.PACK) {
+                        // Small files arrive whole, several to a frame
+                        List<String> committed = new ArrayList<>();
+                        for (FilePack.Entry packed : FilePack.read(frame)) {
+                            metrics.onBytes(packed.length);
+                            byte[] digest = sessions.stagePacked(session, packed);
+                            if (settleFile(session, packed.index, digest, packed.hash, retry, failed)) {
+                                committed.add(session.requestedEntry(packed.index).fileName);
+                            }
+                        }
+                        callback.onFilesReceived(clientAddress, committed);
+                        callback.onSessionProgress(clientAddress, session.getFilesReceived(), session.getTotalFiles());
+                        continue;
+                    }
+
+                    if (frame.type == Frame.PING) {
+                        // An idle continuous sync checking its link
+                        writer.write(Frame.PING, new byte[0]);
+                        writer.flush();
+                        continue;
+                    }
+
+                    if (frame.type == Frame.MANIFEST) {
+                        // Files the client found after the session started
+                        ManifestEntry[] added = FrameCodec.readManifest(frame);
+                        int first = sessions.extend(session, added);
+                        HostSessions.Session extended = session;
+                        writer.write(Frame.ACK, FrameCodec.encode(dos ->
+                                extended.writeExtensionReply(dos, first, added.length)));
+                        writer.flush();
+                        callback.onSessionProgress(clientAddress, session.getFilesReceived(), session.getTotalFiles());
+                        continue;
+                    }
+
+                    if (frame.type == Frame.CHUNKS) {
+                        // A large file offered for deduplication
+                        FrameCodec.ChunkList chunkList = FrameCodec.readChunkList(frame);
+                        ManifestEntry entry = session.requestedEntry(chunkList.index);
+                        ProgressReporter.Tracker progress = progressReporter.start(clientAddress, entry.fileName,
+                                entry.fileSize, 0);
+                        metrics.fileStarted();
+                        boolean committed = receiveChunked(reader, writer, session, chunkList, progress, retry,
+                                failed);
+                        metrics.fileFinished();
+                        if (committed) {
+                            progress.finish();
+                            callback.onFilesReceived(clientAddress,
+                                    Collections.singletonList(session.requestedEntry(chunkList.index).fileName));
+                            callback.onSessionProgress(clientAddress, session.getFilesReceived(), session.getTotalFiles());
+                        }
+                        continue;
+                    }
+
+                    // The header names the manifest index of the file that follows
+                    FrameCodec.FileHeader header = FrameCodec.readFileHeader(frame);
+                    int index = header.index;
+                    ManifestEntry entry = session.requestedEntry(index);
+                    String fileName = entry.fileName;
+                    long fileSize = entry.fileSize;
+                    long offset = session.offset(index);
+                    if (header.offset != offset || header.length != fileSize - offset) {
+                        throw new ProtocolException("Unexpected range for " + fileName);
+                    }
+                    if (!session.acceptsCodec(header.codec)) {
+                        throw new ProtocolException("Codec " + header.codec + " not negotiated for " + fileName);
+                    }
+
+                    if (offset > 0) {
+                        TransferLog.d(TAG, "Resuming file: " + fileName + " at " + offset + " of " + fileSize + " bytes");
+                    } else {
+                        TransferLog.d(TAG, "Receiving file: " + fileName + " (" + fileSize + " bytes)");
+                    }
+
+                    // Write into the staged part file; it is kept if the transfer breaks off
+                    metrics.fileStarted();
+                    ProgressReporter.Tracker progress = progressReporter.start(clientAddress, fileName, fileSize, offset);
+                    File partFile = staging.partFile(fileName);
+                    long totalBytesRead = offset;
+                    byte[] digest;
+                    byte[] trailer;
+
+                    // Receive file data, hashing it on the pipeline thread as it lands
+                    try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                        raf.setLength(offset);
+                        StagingArea.LengthRecord lengthRecord = preallocate(staging, fileName, raf, offset,
+                                fileSize - offset);
+                        DigestPipeline pipeline = sessions.startDigest(session, index, raf.getChannel());
+                        FileReceiver.WriteListener written = (position, length) -> {
+                            pipeline.update(position, length);
+                            progress.add(length);
+                            if (lengthRecord != null) {
+                                lengthRecord.update(position + length);
+                            }
+                        };
+                        try {
+                            totalBytesRead += reader.readData(raf.getChannel(), offset, fileSize - offset,
+                                    header.codec, written);
+                        } catch (FileReceiver.PartialTransferException e) {
+                            totalBytesRead += e.bytesTransferred;
+                            throw e;
+                        } finally {
+                            // Cut off the unused preallocation so the part file length
+                            // keeps matching the received bytes for the next resume
+                            if (totalBytesRead != fileSize) {
+                                raf.setLength(totalBytesRead);
+                            }
+                            if (lengthRecord != null) {
+                                staging.clearLength(fileName);
+                            }
+                        }
+
+                        // Verify file size
+                        if (totalBytesRead != fileSize) {
+                            TransferLog.e(TAG, "Transfer of " + fileName + " interrupted at " + totalBytesRead + " of " + fileSize + " bytes");
+                            throw new IOException("Transfer interrupted");
+                        }
+
+                        // The trailer carries the client's digest of the whole file
+                        trailer = FrameCodec.readTrailer(reader.read());
+                        digest = pipeline.finish();
+                    }
+                    metrics.fileFinished();
+
+                    if (settleFile(session, index, digest, trailer, retry, failed)) {
+                        progress.finish();
+                        callback.onFilesReceived(clientAddress, Collections.singletonList(fileName));
+                        callback.onSessionProgress(clientAddress, session.getFilesReceived(), session.getTotalFiles());
+                    }
+                }
+
+                // End the round with the files that need another attempt
+                boolean moreRounds = FrameCodec.readEnd(frame);
+                writer.write(Frame.ACK, FrameCodec.encode(dos -> HostSessions.Session.writeRoundReply(dos, retry, failed)));
+                writer.flush();
+                if (retry.isEmpty() && !moreRounds) {
+                    break;
+                }
+                retry.clear();
+                failed.clear();
+            }
+
+            if (sessions.finishStream(sessionId, session)) {
+                reportSessionEnd(clientAddress, session);
+            }
+
+        } catch (IOException e) {
+            if (session == null || sessions.fail(sessionId)) {
+                TransferLog.e(TAG, "Error receiving files from " + clientAddress, e);
+                callback.onSessionError(clientAddress, "Error receiving files: " + e.getMessage());
+            }
+        } finally {
+            if (session != null) {
+                sessions.leave(sessionId, session);
+            }
+            if (receivePipeline != null) {
+                receivePipeline.close();
+            }
+            if (metrics != null) {
+                metrics.close();
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                TransferLog.e(TAG, "Error closing client socket", e);
+            }
+        }
+    }
+
+    /**
+     * Receives a file offered for deduplication: answers its chunk list with the chunks
+     * missing here, then rebuilds the file in order from local chunks and the DATA frames
+     * of the missing ones. The part file always holds a complete prefix, so a broken
+     * transfer resumes like any other.
+     * @return true if the file was committed
+     */
+    private boolean receiveChunked(FrameReader reader, FrameWriter writer, HostSessions.Session session,
+                                   FrameCodec.ChunkList chunkList, ProgressReporter.Tracker progress,
+                                   List<Integer> retry, List<Integer> failed) throws IOException {
+        int index = chunkList.index;
+        boolean[] local = sessions.planChunks(session, chunkList);
+        writer.write(Frame.ACK, FrameCodec.chunkReply(local));
+        writer.flush();
+
+        String fileName = session.requestedEntry(index).fileName;
+        long deduplicated = 0;
+        boolean stale = false;
+        byte[] digest;
+        byte[] trailer;
+        try (RandomAccessFile raf = new RandomAccessFile(sessions.getStaging().partFile(fileName), "rw")) {
+            FileChannel file = raf.getChannel();
+            raf.setLength(0);
+            DigestPipeline pipeline = sessions.startDigest(session, index, file);
+            FileReceiver.WriteListener written = (position, length) -> {
+                pipeline.update(position, length);
+                progress.add(length);
+            };
+            for (int i = 0; i < local.length; i++) {
+                Chunker.Chunk chunk = chunkList.chunks.get(i);
+                if (local[i]) {
+                    if (!sessions.copyChunk(chunk, file) && !stale) {
+                        TransferLog.w(TAG, "Local chunk of " + fileName + " changed, the file will be sent again");
+                        stale = true;
+                    }
+                    written.onWritten(chunk.offset, chunk.length);
+                    deduplicated += chunk.length;
+                } else if (reader.readData(file, chunk.offset, chunk.length, Compression.STORE,
+                        written) != chunk.length) {
+                    throw new IOException("Transfer interrupted");
+                }
+            }
+            trailer = FrameCodec.readTrailer(reader.read());
+            digest = pipeline.finish();
+        }
+        TransferLog.d(TAG, "Received " + fileName + " with " + deduplicated + " of " + chunkList.length()
+                + " bytes from local chunks");
+        return settleFile(session, index, digest, trailer, retry, failed);
+    }
+
+    /**
+     * Reads the client's manifest, answers with the files that are missing here together
+     * with the number of bytes already staged for each, and reads back the stream count
+     */
+    private HostSessions.Session exchangeManifest(FrameReader reader, FrameWriter writer, long sessionId,
+                                                  int capabilities, String clientAddress) throws IOException {
+        ManifestEntry[] manifest = FrameCodec.readManifest(reader.expect(Frame.MANIFEST));
+        int manifestSize = manifest.length;
+
+        HostSessions.Session session = sessions.open(manifest, capabilities);
+        try {
+            writer.write(Frame.ACK, FrameCodec.encode(session::writeReply));
+            writer.flush();
+            sessions.publish(sessionId, session, reader.expect(Frame.ACK).payload().readInt());
+        } catch (IOException e) {
+            sessions.discard(session);
+            throw e;
+        }
+
+        TransferLog.d(TAG, "Will receive " + session.getTotalFiles() + " of " + manifestSize + " files from " + clientAddress);
+        callback.onSessionProgress(clientAddress, 0, session.getTotalFiles());
+        return session;
+    }
+
+    /**
+     * Commits a received file if it matches the client's hash. Otherwise the file is queued
+     * for another attempt, or given up once it has used its attempts.
+     * @return true if the file was committed
+     */
+    private boolean settleFile(HostSessions.Session session, int index, byte[] digest, byte[] trailer,
+                               List<Integer> retry, List<Integer> failed) throws IOException {
+        if (sessions.verifyAndCommit(session, index, digest, trailer)) {
+            return true;
+        }
+        String fileName = session.requestedEntry(index).fileName;
+        if (sessions.canRetry(session, index)) {
+            TransferLog.w(TAG, "Digest mismatch for " + fileName + ", requesting it again");
+            retry.add(index);
+        } else {
+            TransferLog.e(TAG, "Digest mismatch for " + fileName + ", giving up");
+            failed.add(index);
+        }
+        return false;
+    }
+
+    private void reportSessionEnd(String clientAddress, HostSessions.Session session) {
+        if (session.getFilesFailed() > 0) {
+            TransferLog.e(TAG, session.getFilesFailed() + " files from " + clientAddress + " failed verification");
+            callback.onSessionError(clientAddress, session.getFilesFailed() + " files failed verification");
+        } else {
+            TransferLog.d(TAG, "All files received from " + clientAddress + ": " + session.getFilesReceived());
+            callback.onSessionComplete(clientAddress, session.getFilesReceived());
+        }
+    }
+
+    /**
+     * Reserves the disk space for the rest of an incoming file in one step, so the
+     * file system can lay it out contiguously instead of growing it write by write.
+     * The part file then is longer than its data, so the received length is recorded
+     * first; a crash before the file is trimmed again resumes from that record.
+     * @return Record to keep up to date while receiving, or null if nothing was reserved
+     */
+    private StagingArea.LengthRecord preallocate(StagingArea staging, String fileName, RandomAccessFile raf,
+                                                 long offset, long length) throws IOException {
+        if (length <= 0 || preallocator == null) {
+            // A record left by a crash no longer matches the trimmed file
+            staging.clearLength(fileName);
+            return null;
+        }
+        StagingArea.LengthRecord record = staging.recordLength(fileName, offset);
+        try {
+            preallocator.preallocate(raf, offset, length);
+        } catch (IOException e) {
+            // Not every file system supports it; the file then just grows as it is written
+            TransferLog.w(TAG, "Preallocation not available: " + e.getMessage());
+        }
+        return record;
+    }
+}
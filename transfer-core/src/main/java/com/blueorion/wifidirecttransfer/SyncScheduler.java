@@ -0,0 +1,186 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Order in which a client sync sends its files. All streams of a session take their next
+ * file from one queue, so the order holds across streams, and the queue stays open while
+ * the sync runs: files found after it started are placed by the same rules and can
+ * overtake everything still waiting. Pinned files go first, the most recently pinned
+ * ahead of the others; the rest follow the policy.
+ */
+public class SyncScheduler<T> {
+
+    /**
+     * Built-in orders. Any other comparator of manifest entries can be used as well.
+     */
+    public enum Policy implements Comparator<ManifestEntry> {
+        /** Largest first, which keeps parallel streams finishing close together */
+        LARGEST_FIRST {
+            @Override
+            public int compare(ManifestEntry a, ManifestEntry b) {
+                return Long.compare(b.fileSize, a.fileSize);
+            }
+        },
+        /** Latest captures first, so the newest photos are safe soonest if the link drops */
+        NEWEST_FIRST {
+            @Override
+            public int compare(ManifestEntry a, ManifestEntry b) {
+                return Long.compare(b.lastModified, a.lastModified);
+            }
+        },
+        /** Smallest first, for the most files per minute */
+        SMALLEST_FIRST {
+            @Override
+            public int compare(ManifestEntry a, ManifestEntry b) {
+                return Long.compare(a.fileSize, b.fileSize);
+            }
+        },
+        /**
+         * Newest first, with photos ranked as if taken a day later than they were and
+         * files that are neither photo nor video a day earlier. A photo is small and
+         * usually what the user is waiting for; a long video can follow.
+         */
+        MEDIA_WEIGHTED {
+            @Override
+            public int compare(ManifestEntry a, ManifestEntry b) {
+                return Long.compare(weightedTime(b), weightedTime(a));
+            }
+        };
+
+        private static final long MEDIA_BONUS_MS = TimeUnit.DAYS.toMillis(1);
+
+        private static long weightedTime(ManifestEntry entry) {
+            switch (mediaType(entry.fileName)) {
+                case PHOTO:
+                    return entry.lastModified + MEDIA_BONUS_MS;
+                case VIDEO:
+                    return entry.lastModified;
+                default:
+                    return entry.lastModified - MEDIA_BONUS_MS;
+            }
+        }
+    }
+
+    private enum MediaType { PHOTO, VIDEO, OTHER }
+
+    private static MediaType mediaType(String fileName) {
+        String name = fileName.toLowerCase(Locale.US);
+        int dot = name.lastIndexOf('.');
+        switch (dot < 0 ? "" : name.substring(dot + 1)) {
+            case "jpg":
+            case "jpeg":
+            case "heic":
+            case "heif":
+            case "png":
+            case "dng":
+            case "webp":
+                return MediaType.PHOTO;
+            case "mp4":
+            case "3gp":
+            case "mkv":
+            case "webm":
+            case "mov":
+                return MediaType.VIDEO;
+            default:
+                return MediaType.OTHER;
+        }
+    }
+
+    private final Function<T, ManifestEntry> entryOf;
+    private final Comparator<ManifestEntry> policy;
+    private final PriorityQueue<T> queue;
+    // Pin order by file name; a higher number was pinned later and goes first
+    private final Map<String, Long> pins = new HashMap<>();
+    private long pinCount;
+
+    /**
+     * @param policy Order of files that are not pinned
+     * @param entryOf Manifest entry of a queued item
+     * @param pinned Names of files pinned before the sync started, most important first
+     */
+    public SyncScheduler(Comparator<ManifestEntry> policy, Function<T, ManifestEntry> entryOf,
+                         Collection<String> pinned) {
+        this.policy = policy;
+        this.entryOf = entryOf;
+        this.queue = new PriorityQueue<>(11, this::compare);
+        // The first name is the most important, so it gets the highest number
+        long rank = pinned.size();
+        for (String fileName : pinned) {
+            pins.put(fileName, rank--);
+        }
+        pinCount = pinned.size();
+    }
+
+    private int compare(T a, T b) {
+        long pinA = pins.getOrDefault(entryOf.apply(a).fileName, 0L);
+        long pinB = pins.getOrDefault(entryOf.apply(b).fileName, 0L);
+        if (pinA != pinB) {
+            return Long.compare(pinB, pinA);
+        }
+        return policy.compare(entryOf.apply(a), entryOf.apply(b));
+    }
+
+    public synchronized void add(T item) {
+        queue.add(item);
+    }
+
+    public synchronized void addAll(Collection<T> items) {
+        queue.addAll(items);
+    }
+
+    /**
+     * Takes the most important file, or returns null if none is waiting
+     */
+    public synchronized T poll() {
+        return queue.poll();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Moves a file ahead of everything else still waiting, or of everything it is added
+     * with later if it is not queued yet
+     */
+    public synchronized void pin(String fileName) {
+        rerank(fileName, ++pinCount);
+    }
+
+    /**
+     * Returns a pinned file to its place by policy
+     */
+    public synchronized void unpin(String fileName) {
+        rerank(fileName, null);
+    }
+
+    private void rerank(String fileName, Long rank) {
+        // The queue does not notice a changed rank, so the file is taken out while it changes
+        T queued = null;
+        for (T item : queue) {
+            if (entryOf.apply(item).fileName.equals(fileName)) {
+                queued = item;
+                break;
+            }
+        }
+        if (queued != null) {
+            queue.remove(queued);
+        }
+        if (rank != null) {
+            pins.put(fileName, rank);
+        } else {
+            pins.remove(fileName);
+        }
+        if (queued != null) {
+            queue.add(queued);
+        }
+    }
+}
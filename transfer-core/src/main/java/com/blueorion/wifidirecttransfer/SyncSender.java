@@ -0,0 +1,554 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of one sync session. The files the server asked for wait in a queue shared
+ * by the session's streams, each of which sends from it on its own thread until it is
+ * drained. Files found while the session runs are offered to the server between files
+ * and queued by the same order.
+ */
+class SyncSender {
+    private static final String TAG = "SyncSender";
+
+    /**
+     * Session events, called on the stream threads
+     */
+    interface Callback {
+        void onProgress(int filesSent, int totalFiles);
+        void onFilesSent(List<String> fileNames);
+        void onFileSkipped(String fileName);
+    }
+
+    private final int capabilities;
+    private final SyncScheduler<PendingFile> scheduler;
+    private final ProgressReporter progressReporter;
+    private final Callback callback;
+    private final AtomicInteger totalFiles;
+    private final AtomicInteger filesSent = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    // Every file the server has been offered, so files written again are not offered twice
+    private final Set<String> offered = new HashSet<>();
+    private final List<FileIndex.Entry> unannounced = new ArrayList<>();
+    private final boolean continuous;
+    private boolean closed;
+
+    /**
+     * @param capabilities Optional protocol features both sides support
+     * @param scheduler Queue to send the files from, in the order of the sync
+     * @param manifest Files offered to the server in the manifest exchange
+     * @param requested Files the server asked for
+     * @param continuous Whether the first stream waits for new files once the queue is
+     *                   drained, until the session is closed
+     */
+    SyncSender(int capabilities, SyncScheduler<PendingFile> scheduler, ManifestEntry[] manifest,
+               List<PendingFile> requested, boolean continuous, ProgressReporter progressReporter,
+               Callback callback) {
+        this.capabilities = capabilities;
+        this.scheduler = scheduler;
+        this.progressReporter = progressReporter;
+        this.callback = callback;
+        this.totalFiles = new AtomicInteger(requested.size());
+        this.continuous = continuous;
+        for (ManifestEntry entry : manifest) {
+            offered.add(entry.fileName);
+        }
+        scheduler.addAll(requested);
+    }
+
+    int getFilesSent() {
+        return filesSent.get();
+    }
+
+    /**
+     * Number of files the server gave up on after they kept failing verification
+     */
+    int getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    /**
+     * Moves a queued file to the front, see {@link SyncScheduler#pin}
+     */
+    void pin(String fileName) {
+        scheduler.pin(fileName);
+    }
+
+    void unpin(String fileName) {
+        scheduler.unpin(fileName);
+    }
+
+    /**
+     * Takes note of the files not offered yet
+     * @return Number of files found
+     */
+    synchronized int addFound(List<FileIndex.Entry> files) {
+        int found = 0;
+        for (FileIndex.Entry file : files) {
+            if (offered.add(file.manifest.fileName)) {
+                unannounced.add(file);
+                found++;
+            }
+        }
+        if (found > 0) {
+            notifyAll();
+        }
+        return found;
+    }
+
+    /**
+     * Whether the first stream waits for new files once it is done with the queued ones
+     */
+    synchronized boolean keepsOpen() {
+        return continuous && !closed;
+    }
+
+    /**
+     * Waits until new files were found or the session was closed
+     * @return false if neither happened within timeoutMillis
+     */
+    synchronized boolean awaitFound(long timeoutMillis) throws InterruptedIOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (unannounced.isEmpty() && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Sync interrupted");
+            }
+        }
+        return true;
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized List<FileIndex.Entry> takeUnannounced() {
+        List<FileIndex.Entry> files = new ArrayList<>(unannounced);
+        unannounced.clear();
+        return files;
+    }
+
+    /**
+     * Offers the server files found since the sync started and queues those it asks for.
+     * Called between files, when no other reply is outstanding on the stream.
+     */
+    private void announceFiles(Stream stream) throws IOException {
+        List<FileIndex.Entry> found = takeUnannounced();
+        if (found.isEmpty()) {
+            return;
+        }
+        ManifestEntry[] added = new ManifestEntry[found.size()];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = found.get(i).manifest;
+        }
+        stream.writer.write(Frame.MANIFEST, FrameCodec.manifest(added));
+        stream.writer.flush();
+
+        // The server numbers the new files after the ones it knows
+        DataInputStream reply = stream.reader.expect(Frame.ACK).payload();
+        int first = reply.readInt();
+        int count = reply.readInt();
+        if (first < 0 || count < 0 || count > added.length) {
+            throw new IOException("Invalid manifest reply");
+        }
+        boolean[] requested = new boolean[added.length];
+        List<PendingFile> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = reply.readInt();
+            long offset = reply.readLong();
+            int position = index - first;
+            if (position < 0 || position >= added.length || offset < 0 || offset > added[position].fileSize) {
+                throw new IOException("Invalid manifest reply");
+            }
+            requested[position] = true;
+            files.add(new PendingFile(index, found.get(position).file, added[position], offset));
+        }
+        for (int i = 0; i < added.length; i++) {
+            if (!requested[i]) {
+                callback.onFileSkipped(added[i].fileName);
+            }
+        }
+
+        TransferLog.d(TAG, "Server asked for " + count + " of " + added.length + " new files");
+        scheduler.addAll(files);
+        callback.onProgress(filesSent.get(), totalFiles.addAndGet(count));
+    }
+
+    /**
+     * Sends files from the shared queue on one stream until the queue is drained, then
+     * sends again whatever the server asks for after verifying the round. The first stream
+     * of a continuous session then waits for new captures and sends them in further rounds
+     * until the session is closed.
+     * @return Number of files sent on this stream
+     */
+    int send(Stream stream, int streamIndex) throws IOException {
+        boolean compress = (capabilities & Compression.CAPABILITY_DEFLATE) != 0;
+        Map<Integer, PendingFile> sent = new HashMap<>();
+        int streamFiles = 0;
+
+        while (true) {
+            streamFiles += sendQueued(stream, sent, compress);
+            boolean moreRounds = streamIndex == 0 && keepsOpen();
+            finishRound(stream, sent, compress, moreRounds);
+            if (!moreRounds) {
+                break;
+            }
+            // Heartbeats find a dead link before the next capture does
+            while (!awaitFound(Frame.HEARTBEAT_MILLIS)) {
+                stream.ping();
+            }
+        }
+
+        TransferLog.d(TAG, "Stream " + streamIndex + " finished after " + streamFiles + " files");
+        return streamFiles;
+    }
+
+    /**
+     * Sends files from the shared queue until it is drained, offering the server the files
+     * found meanwhile between them
+     * @param sent Files sent in this round, by index
+     * @return Number of files sent
+     */
+    private int sendQueued(Stream stream, Map<Integer, PendingFile> sent, boolean compress) throws IOException {
+        boolean dedup = (capabilities & Chunker.CAPABILITY_DEDUP) != 0;
+        int files = 0;
+        PendingFile pending;
+
+        FilePack pack = new FilePack();
+        List<String> packed = new ArrayList<>();
+
+        // Send each file; small ones are collected into packs that go out without a flush of their own
+        while (true) {
+            announceFiles(stream);
+            if ((pending = scheduler.poll()) == null) {
+                break;
+            }
+            stream.applyPendingProfile();
+            sent.put(pending.index, pending);
+            files++;
+            if (pending.remaining() < FilePack.FILE_THRESHOLD) {
+                pack.add(pending.index, pending.file, pending.offset, (int) pending.remaining(), pending.entry.hash);
+                packed.add(pending.file.getName());
+                if (pack.size() >= FilePack.TARGET_SIZE) {
+                    sendPack(stream, pack, packed);
+                }
+                continue;
+            }
+            stream.metrics.fileStarted();
+            if (dedup && isDedupCandidate(pending, compress)) {
+                sendChunked(stream, pending);
+            } else {
+                sendFile(stream, pending, pending.offset, compress);
+            }
+            stream.metrics.fileFinished();
+            callback.onFilesSent(Collections.singletonList(pending.file.getName()));
+            callback.onProgress(filesSent.incrementAndGet(), totalFiles.get());
+        }
+        if (!pack.isEmpty()) {
+            sendPack(stream, pack, packed);
+        }
+        return files;
+    }
+
+    /**
+     * Ends the round and sends again the files the server could not verify until it has
+     * nothing left to retry
+     * @param moreRounds Whether the stream stays open for another round afterwards
+     */
+    private void finishRound(Stream stream, Map<Integer, PendingFile> sent, boolean compress, boolean moreRounds)
+            throws IOException {
+        while (true) {
+            // Mark the end of this round and wait for the server's verdict on it
+            stream.writer.write(Frame.END, FrameCodec.end(moreRounds));
+            stream.writer.flush();
+
+            DataInputStream reply = stream.reader.expect(Frame.ACK).payload();
+            List<PendingFile> retry = readRoundIndexes(reply, sent);
+            List<PendingFile> failed = readRoundIndexes(reply, sent);
+            for (PendingFile file : failed) {
+                TransferLog.e(TAG, "Server gave up on " + file.file.getName() + " after failed verification");
+                filesFailed.incrementAndGet();
+            }
+            if (retry.isEmpty()) {
+                break;
+            }
+
+            // Files that failed verification are sent again in full
+            stream.applyPendingProfile();
+            for (PendingFile file : retry) {
+                TransferLog.w(TAG, "Server asked for " + file.file.getName() + " again");
+                stream.metrics.fileStarted();
+                sendFile(stream, file, 0, compress);
+                stream.metrics.fileFinished();
+            }
+        }
+        // Every file of the round is settled now
+        sent.clear();
+    }
+
+    /**
+     * Sends the small files collected so far as one PACK frame
+     */
+    private void sendPack(Stream stream, FilePack pack, List<String> packed) throws IOException {
+        TransferLog.d(TAG, "Sending " + pack.getFileCount() + " small files in one pack (" + pack.size() + " bytes)");
+        int fileCount = pack.getFileCount();
+        stream.metrics.onBytes(pack.size());
+        stream.writer.write(Frame.PACK, pack.drain());
+        callback.onFilesSent(new ArrayList<>(packed));
+        callback.onProgress(filesSent.addAndGet(fileCount), totalFiles.get());
+        packed.clear();
+    }
+
+    /**
+     * Sends one file from offset on as a FILE_HEADER frame, its DATA frames and a TRAILER
+     * frame with its content hash
+     * @param compress Whether the session allows deflating files that compress well
+     */
+    private void sendFile(Stream stream, PendingFile pending, long offset, boolean compress) throws IOException {
+        FrameWriter writer = stream.writer;
+        File file = pending.file;
+        long fileSize = pending.entry.fileSize;
+        long remaining = fileSize - offset;
+        int level = compress ? pending.compressionLevel() : -1;
+        byte codec = level < 0 ? Compression.STORE : Compression.DEFLATE;
+
+        // Announce the next file by its manifest index
+        writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(pending.index, file.getName(), offset, remaining, codec));
+
+        if (offset > 0) {
+            TransferLog.d(TAG, "Resuming file: " + file.getName() + " at " + offset + " of " + fileSize + " bytes");
+        } else {
+            TransferLog.d(TAG, "Sending file: " + file.getName() + " (" + fileSize + " bytes)");
+        }
+
+        // Send the file data the server does not hold yet
+        ProgressReporter.Tracker progress = progressReporter.start(stream.peer(), file.getName(), fileSize, offset);
+        writer.setProgress(progress);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            long totalBytesSent = level < 0
+                    ? writer.writeData(fis.getChannel(), offset, remaining)
+                    : writer.writeCompressedData(fis.getChannel(), offset, remaining, level);
+
+            if (totalBytesSent != remaining) {
+                throw new IOException("File changed while sending: " + file.getName());
+            }
+        } finally {
+            writer.setProgress(null);
+        }
+
+        // The trailer repeats the hash from the manifest so the server can verify the whole file
+        writer.write(Frame.TRAILER, pending.entry.hash);
+        writer.flush();
+        progress.finish();
+    }
+
+    /**
+     * Whether a file is sent for deduplication. Resumed files continue as they are, chunking
+     * only pays off for a whole large file, and files that compress well are deflated instead.
+     */
+    private boolean isDedupCandidate(PendingFile pending, boolean compress) throws IOException {
+        return pending.offset == 0 && pending.remaining() >= Chunker.MIN_FILE_SIZE
+                && (!compress || pending.compressionLevel() < 0);
+    }
+
+    /**
+     * Sends a whole file for deduplication: its chunk list first, then DATA frames for
+     * only the chunks the server asks for and the TRAILER. Retries go through
+     * {@link #sendFile} so a stale chunk on the server cannot fail the file twice.
+     */
+    private void sendChunked(Stream stream, PendingFile pending) throws IOException {
+        File file = pending.file;
+        long fileSize = pending.entry.fileSize;
+        ProgressReporter.Tracker progress;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            // Chunking reads the whole file, which takes a while for a large video; pings keep
+            // the host from dropping the stream as silent meanwhile
+            long[] lastFrame = {System.nanoTime()};
+            List<Chunker.Chunk> chunks = Chunker.chunk(channel, fileSize, position -> {
+                if (System.nanoTime() - lastFrame[0] >= TimeUnit.MILLISECONDS.toNanos(Frame.HEARTBEAT_MILLIS)) {
+                    stream.ping();
+                    lastFrame[0] = System.nanoTime();
+                }
+            });
+            stream.writer.write(Frame.CHUNKS, FrameCodec.chunkList(pending.index, chunks));
+            stream.writer.flush();
+
+            boolean[] needed = FrameCodec.readChunkReply(stream.reader.expect(Frame.ACK), chunks.size());
+            progress = progressReporter.start(stream.peer(), file.getName(), fileSize, 0);
+            stream.writer.setProgress(progress);
+            long bytesSent = 0;
+            try {
+                for (int i = 0; i < needed.length; i++) {
+                    Chunker.Chunk chunk = chunks.get(i);
+                    if (!needed[i]) {
+                        // Held by the server, done as far as progress goes
+                        progress.add(chunk.length);
+                        continue;
+                    }
+                    if (stream.writer.writeData(channel, chunk.offset, chunk.length) != chunk.length) {
+                        throw new IOException("File changed while sending: " + file.getName());
+                    }
+                    bytesSent += chunk.length;
+                }
+            } finally {
+                stream.writer.setProgress(null);
+            }
+            TransferLog.d(TAG, "Sent " + bytesSent + " of " + fileSize + " bytes of " + file.getName()
+                    + ", the server holds the rest");
+        }
+
+        // The trailer still covers the whole file, so a wrongly rebuilt file is caught
+        stream.writer.write(Frame.TRAILER, pending.entry.hash);
+        stream.writer.flush();
+        progress.finish();
+    }
+
+    /**
+     * Reads one list of file indexes from a round reply; only files sent on this stream may appear
+     */
+    private List<PendingFile> readRoundIndexes(DataInputStream dis, Map<Integer, PendingFile> sent) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > sent.size()) {
+            throw new IOException("Invalid round reply");
+        }
+        List<PendingFile> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PendingFile file = sent.get(dis.readInt());
+            if (file == null) {
+                throw new IOException("Invalid round reply");
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * One client connection with its frame reader and writer
+     */
+    static class Stream implements Closeable {
+        final Socket socket;
+        final FrameWriter writer;
+        final FrameReader reader;
+        final TransferMetrics.Stream metrics;
+        final long rttMicros;
+        // Set by the tuning thread, applied by the stream's own thread between files
+        private volatile LinkTuner.Profile pendingProfile;
+
+        Stream(Socket socket, SocketChannel channel, TransferMetrics.Stream metrics, LinkTuner.Profile profile,
+               long rttMicros) throws IOException {
+            this.socket = socket;
+            this.writer = new FrameWriter(socket.getOutputStream(), channel);
+            this.reader = new FrameReader(socket.getInputStream(), null);
+            this.metrics = metrics;
+            this.rttMicros = rttMicros;
+            writer.setMetrics(metrics);
+            writer.setBufferSizes(profile.copyBufferSize, profile.coalesceSize);
+        }
+
+        /**
+         * Applies a new profile: the socket options right away, the writer's buffers at
+         * the next file boundary. May be called from any thread.
+         */
+        void retune(LinkTuner.Profile profile) {
+            try {
+                profile.applyTo(socket);
+            } catch (IOException e) {
+                // The stream may just have finished; its buffers no longer matter
+                TransferLog.w(TAG, "Could not retune stream: " + e.getMessage());
+            }
+            pendingProfile = profile;
+        }
+
+        void applyPendingProfile() throws IOException {
+            LinkTuner.Profile profile = pendingProfile;
+            if (profile != null) {
+                pendingProfile = null;
+                writer.setBufferSizes(profile.copyBufferSize, profile.coalesceSize);
+            }
+        }
+
+        String peer() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        /**
+         * Checks that the server still answers, see {@link Frame#PING}
+         */
+        void ping() throws IOException {
+            writer.write(Frame.PING, new byte[0]);
+            writer.flush();
+            socket.setSoTimeout(Frame.HEARTBEAT_TIMEOUT_MILLIS);
+            try {
+                reader.expect(Frame.PING);
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            metrics.close();
+            socket.close();
+        }
+    }
+
+    /**
+     * A file the server asked for, together with the number of bytes it already holds
+     */
+    static class PendingFile {
+        private static final int LEVEL_UNKNOWN = -2;
+
+        final int index;
+        final File file;
+        final ManifestEntry entry;
+        final long offset;
+        private int level = LEVEL_UNKNOWN;
+
+        PendingFile(int index, File file, ManifestEntry entry, long offset) {
+            this.index = index;
+            this.file = file;
+            this.entry = entry;
+            this.offset = offset;
+        }
+
+        long remaining() {
+            return entry.fileSize - offset;
+        }
+
+        /**
+         * Deflate level for the file, or -1 to store it. Picking it samples the file, so
+         * that is done once.
+         */
+        int compressionLevel() throws IOException {
+            if (level == LEVEL_UNKNOWN) {
+                level = Compression.selectLevel(file);
+            }
+            return level;
+        }
+    }
+}
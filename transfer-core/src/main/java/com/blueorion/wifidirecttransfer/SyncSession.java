@@ -0,0 +1,108 @@
+package com.blueorion.wifidirecttransfer;
+
+/**
+ * Handle of one client sync, returned by {@link SyncEngine#startClientSync} and
+ * {@link SyncEngine#startContinuousSync}. Pausing and cancelling do not wait for a file
+ * boundary: the sync's sockets are closed at once, which ends blocked reads and writes,
+ * frees the link for other peers and closes the files being sent. The host keeps what
+ * it received of a file, so resuming reconnects and continues each file where it stopped.
+ */
+public final class SyncSession {
+
+    public enum State {
+        RUNNING,
+        PAUSED,
+        /** Ended by {@link #cancel()} */
+        CANCELLED,
+        /** Ended by itself, with the result reported to the listener */
+        FINISHED
+    }
+
+    private final CancellationToken cancellation = new CancellationToken();
+    private State state = State.RUNNING;
+    // Sockets and threads of the current connection attempt
+    private CancellationToken attempt = new CancellationToken();
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Disconnects until {@link #resume()}. Does nothing unless the sync is running.
+     */
+    public void pause() {
+        CancellationToken current;
+        synchronized (this) {
+            if (state != State.RUNNING) {
+                return;
+            }
+            state = State.PAUSED;
+            current = attempt;
+        }
+        current.cancel();
+    }
+
+    /**
+     * Reconnects a paused sync
+     */
+    public synchronized void resume() {
+        if (state == State.PAUSED) {
+            state = State.RUNNING;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Ends the sync without waiting for the files in flight. No result is reported.
+     */
+    public void cancel() {
+        CancellationToken current;
+        synchronized (this) {
+            if (state == State.CANCELLED || state == State.FINISHED) {
+                return;
+            }
+            state = State.CANCELLED;
+            current = attempt;
+            notifyAll();
+        }
+        current.cancel();
+        cancellation.cancel();
+    }
+
+    /**
+     * Starts a connection attempt, whose sockets and threads register with the returned
+     * token. If the sync is not running the token is cancelled already.
+     */
+    synchronized CancellationToken newAttempt() {
+        attempt = new CancellationToken();
+        if (state != State.RUNNING) {
+            attempt.cancel();
+        }
+        return attempt;
+    }
+
+    /**
+     * Runs the action when the sync is cancelled, or at once if it already is
+     */
+    void onCancel(Runnable action) {
+        cancellation.onCancel(action);
+    }
+
+    /**
+     * Waits while the sync is paused
+     * @return Whether it runs, false once it was cancelled or finished
+     */
+    synchronized boolean awaitRunning() throws InterruptedException {
+        while (state == State.PAUSED) {
+            wait();
+        }
+        return state == State.RUNNING;
+    }
+
+    synchronized void finish() {
+        if (state != State.CANCELLED) {
+            state = State.FINISHED;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,148 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs transfers on a pool of its own, at most a set number at a time, with a bounded
+ * queue of transfers waiting for a thread. Every transfer gets a {@link CancellationToken};
+ * cancelling it drops the transfer if it is still queued and otherwise interrupts its
+ * thread, which closes a channel-backed socket in the middle of a read or write.
+ */
+public class TransferExecutor {
+    private static final String TAG = "TransferExecutor";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * One transfer. It should register whatever it blocks on with
+     * {@link CancellationToken#closeOnCancel} unless that is an interruptible channel.
+     */
+    public interface Transfer {
+        void run(CancellationToken token) throws Exception;
+    }
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final Set<CancellationToken> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name Names the threads and log messages
+     * @param parallelism Transfers that run at the same time
+     * @param queueCapacity Transfers that may wait for a thread before submitting fails
+     */
+    public TransferExecutor(String name, int parallelism, int queueCapacity) {
+        this.name = name;
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), task -> {
+                    Thread thread = new Thread(task, name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes how many transfers run at the same time. Running transfers are not affected;
+     * fewer new ones start until the count is below the new limit.
+     */
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        // The core size may never exceed the maximum size, so the order depends on the direction
+        if (parallelism > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(parallelism);
+            pool.setCorePoolSize(parallelism);
+        } else {
+            pool.setCorePoolSize(parallelism);
+            pool.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    public int getParallelism() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Queues a transfer
+     * @return Token to cancel it with
+     * @throws RejectedExecutionException If the queue is full or the executor is shut down
+     */
+    public CancellationToken submit(Transfer transfer) {
+        CancellationToken token = new CancellationToken();
+        running.add(token);
+        Future<?> future;
+        try {
+            future = pool.submit(() -> run(transfer, token));
+        } catch (RejectedExecutionException e) {
+            running.remove(token);
+            throw e;
+        }
+        token.onCancel(() -> {
+            future.cancel(true);
+            // A queued transfer never runs, so it is not removed by run
+            pool.remove((Runnable) future);
+            running.remove(token);
+        });
+        return token;
+    }
+
+    private void run(Transfer transfer, CancellationToken token) {
+        try {
+            if (!token.isCancelled()) {
+                transfer.run(token);
+            }
+        } catch (Exception e) {
+            if (token.isCancelled()) {
+                TransferLog.d(TAG, name + " transfer cancelled: " + e.getMessage());
+            } else {
+                TransferLog.e(TAG, name + " transfer failed", e);
+            }
+        } finally {
+            running.remove(token);
+        }
+    }
+
+    /**
+     * Transfers queued or running
+     */
+    public int getActiveCount() {
+        return running.size();
+    }
+
+    /**
+     * Cancels every queued and running transfer
+     */
+    public void cancelAll() {
+        List<CancellationToken> tokens = new ArrayList<>(running);
+        for (CancellationToken token : tokens) {
+            token.cancel();
+        }
+    }
+
+    /**
+     * Stops taking transfers and cancels all of them. Does not wait for them to unwind;
+     * see {@link #awaitTermination}.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        cancelAll();
+    }
+
+    /**
+     * Waits for the transfers to end after {@link #shutdown()}
+     * @return Whether they all ended in time
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+}
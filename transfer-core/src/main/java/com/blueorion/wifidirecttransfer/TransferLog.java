@@ -0,0 +1,60 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging of the transfer code, which runs on Android as well as on a plain JVM. Messages
+ * go to java.util.logging until the platform installs a sink of its own, such as logcat.
+ */
+public final class TransferLog {
+    // The same priorities as android.util.Log
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Receives every message; may be called from any thread
+     */
+    public interface Sink {
+        void log(int priority, String tag, String message, Throwable error);
+    }
+
+    private static volatile Sink sink = TransferLog::logToJava;
+
+    private TransferLog() {
+    }
+
+    public static void setSink(Sink sink) {
+        TransferLog.sink = sink;
+    }
+
+    public static void d(String tag, String message) {
+        sink.log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        sink.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        sink.log(WARN, tag, message, null);
+    }
+
+    public static void e(String tag, String message) {
+        sink.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        sink.log(ERROR, tag, message, error);
+    }
+
+    private static void logToJava(int priority, String tag, String message, Throwable error) {
+        Level level = priority >= ERROR ? Level.SEVERE
+                : priority == WARN ? Level.WARNING
+                : priority == INFO ? Level.INFO
+                : Level.FINE;
+        Logger.getLogger(tag).log(level, message, error);
+    }
+}
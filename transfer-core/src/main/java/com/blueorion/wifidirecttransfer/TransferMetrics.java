@@ -0,0 +1,400 @@
+package com.blueorion.wifidirecttransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and latency counters for one direction of transfers, so a slow sync can be
+ * told apart as a slow link, a slow disk or a protocol stall. Every stream records into
+ * its own {@link Stream}; the counters are plain atomics and fixed arrays, so recording
+ * never allocates. {@link #snapshot()} copies them out for display or export.
+ *
+ * A stall is a gap of more than a second between two deliveries of file data within one
+ * file; a working link moves a whole DATA frame well within that.
+ *
+ * With a {@link ReceivePipeline} the time each stage waits for the other is counted as
+ * well: reader blocked time is the network held up by the disk, writer blocked time the
+ * disk waiting for the network.
+ *
+ * File latency is the time from a file's header to its last byte, for files sent or
+ * received on their own; files travelling in a pack are counted in bytes only.
+ */
+public class TransferMetrics {
+    private static final int WINDOW_SECONDS = 10;
+    private static final long STALL_THRESHOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong filesStarted = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong readerBlockedNanos = new AtomicLong();
+    private final AtomicLong writerBlockedNanos = new AtomicLong();
+    // Bytes per second of the last WINDOW_SECONDS seconds, slot chosen by second modulo window
+    private final AtomicLongArray windowBytes = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray windowSeconds = new AtomicLongArray(WINDOW_SECONDS);
+    private final Histogram firstByteLatency = new Histogram();
+    private final Histogram diskWriteLatency = new Histogram();
+    private final Histogram fileLatency = new Histogram();
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+
+    /**
+     * Starts recording one connection
+     * @param label Shown in snapshots, such as the peer address and stream index
+     */
+    public Stream openStream(String label) {
+        Stream stream = new Stream(label);
+        streams.add(stream);
+        return stream;
+    }
+
+    private void addBytes(long bytes, long now) {
+        totalBytes.addAndGet(bytes);
+        long second = now / 1_000_000_000L;
+        int slot = (int) (second % WINDOW_SECONDS);
+        long slotSecond = windowSeconds.get(slot);
+        if (slotSecond != second && windowSeconds.compareAndSet(slot, slotSecond, second)) {
+            windowBytes.set(slot, 0);
+        }
+        windowBytes.addAndGet(slot, bytes);
+    }
+
+    /**
+     * Bytes per second over the last few seconds
+     */
+    public long rollingBytesPerSecond() {
+        long now = System.nanoTime();
+        long second = now / 1_000_000_000L;
+        long bytes = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (second - windowSeconds.get(i) < WINDOW_SECONDS) {
+                bytes += windowBytes.get(i);
+            }
+        }
+        // Shortly after the start the window is not full yet
+        double seconds = Math.min(WINDOW_SECONDS, Math.max(1, (now - startNanos) / 1e9));
+        return (long) (bytes / seconds);
+    }
+
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        List<StreamSnapshot> streamSnapshots = new ArrayList<>(streams.size());
+        for (Stream stream : streams) {
+            streamSnapshots.add(stream.snapshot(now));
+        }
+        return new Snapshot(totalBytes.get(), rollingBytesPerSecond(), filesStarted.get(), stalls.get(),
+                TimeUnit.NANOSECONDS.toMillis(stallNanos.get()), TimeUnit.NANOSECONDS.toMillis(readerBlockedNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(writerBlockedNanos.get()), firstByteLatency.snapshot(),
+                diskWriteLatency.snapshot(), fileLatency.snapshot(), streamSnapshots);
+    }
+
+    /**
+     * Counters of one connection. Recording methods are called by the thread serving the
+     * connection only, except for those of the disk writer stage, which are atomic;
+     * snapshots may be taken from any thread.
+     */
+    public class Stream {
+        private final String label;
+        private final long openedNanos = System.nanoTime();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong streamStalls = new AtomicLong();
+        private final AtomicLong streamReaderBlockedNanos = new AtomicLong();
+        private final AtomicLong streamWriterBlockedNanos = new AtomicLong();
+        private volatile long closedNanos;
+        private long fileStartNanos;
+        private long lastBytesNanos;
+        private boolean inFile;
+        private boolean awaitingFirstByte;
+
+        Stream(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Marks a file being announced; its first data bytes complete the time to first byte
+         */
+        public void fileStarted() {
+            fileStartNanos = System.nanoTime();
+            lastBytesNanos = fileStartNanos;
+            inFile = true;
+            awaitingFirstByte = true;
+            filesStarted.incrementAndGet();
+        }
+
+        /**
+         * Marks the current file as done, so the gap until the next one is not a stall, and
+         * records its latency
+         */
+        public void fileFinished() {
+            if (inFile) {
+                fileLatency.record(System.nanoTime() - fileStartNanos);
+            }
+            inFile = false;
+        }
+
+        /**
+         * Records file data moved over the connection
+         */
+        public void onBytes(long count) {
+            long now = System.nanoTime();
+            if (inFile) {
+                if (awaitingFirstByte) {
+                    firstByteLatency.record(now - fileStartNanos);
+                    awaitingFirstByte = false;
+                } else if (now - lastBytesNanos > STALL_THRESHOLD_NANOS) {
+                    streamStalls.incrementAndGet();
+                    stalls.incrementAndGet();
+                    stallNanos.addAndGet(now - lastBytesNanos);
+                }
+                lastBytesNanos = now;
+            }
+            bytes.addAndGet(count);
+            addBytes(count, now);
+        }
+
+        /**
+         * Records how long one write of received data to its file took
+         */
+        public void onDiskWrite(long nanos) {
+            diskWriteLatency.record(nanos);
+        }
+
+        /**
+         * Records the network reader waiting for a free buffer because the disk is behind
+         */
+        public void onReaderBlocked(long nanos) {
+            streamReaderBlockedNanos.addAndGet(nanos);
+            readerBlockedNanos.addAndGet(nanos);
+        }
+
+        /**
+         * Records the disk writer waiting for data in the middle of a file. Called on the
+         * writer's thread.
+         */
+        public void onWriterBlocked(long nanos) {
+            streamWriterBlockedNanos.addAndGet(nanos);
+            writerBlockedNanos.addAndGet(nanos);
+        }
+
+        /**
+         * File data moved over this connection so far
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Stops recording; the connection's bytes stay in the totals
+         */
+        public void close() {
+            closedNanos = System.nanoTime();
+            streams.remove(this);
+        }
+
+        StreamSnapshot snapshot(long now) {
+            long end = closedNanos != 0 ? closedNanos : now;
+            long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - openedNanos));
+            long streamBytes = bytes.get();
+            return new StreamSnapshot(label, streamBytes, elapsedMs, streamBytes * 1000 / elapsedMs,
+                    streamStalls.get(), TimeUnit.NANOSECONDS.toMillis(streamReaderBlockedNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(streamWriterBlockedNanos.get()));
+        }
+    }
+
+    /**
+     * Latency histogram with power of two buckets in microseconds: bucket i counts values
+     * from 2^(i-1) up to 2^i microseconds, bucket 0 anything below one microsecond
+     */
+    static class Histogram {
+        static final int BUCKETS = 32;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Retry against the newer maximum
+            }
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = counts.get(i);
+            }
+            return new HistogramSnapshot(buckets, count.get(), sumNanos.get() / 1000, maxNanos.get() / 1000);
+        }
+    }
+
+    /**
+     * Copy of a latency histogram
+     */
+    public static class HistogramSnapshot {
+        public final long[] buckets;
+        public final long count;
+        public final long sumMicros;
+        public final long maxMicros;
+
+        HistogramSnapshot(long[] buckets, long count, long sumMicros, long maxMicros) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long meanMicros() {
+            return count == 0 ? 0 : sumMicros / count;
+        }
+
+        /**
+         * Upper bound in microseconds of the bucket holding the given fraction of values
+         */
+        public long percentileMicros(double fraction) {
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(1L << i, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"count\":").append(count)
+                    .append(",\"meanUs\":").append(meanMicros())
+                    .append(",\"p50Us\":").append(percentileMicros(0.5))
+                    .append(",\"p90Us\":").append(percentileMicros(0.9))
+                    .append(",\"p99Us\":").append(percentileMicros(0.99))
+                    .append(",\"maxUs\":").append(maxMicros)
+                    .append(",\"buckets\":[");
+            // Trailing empty buckets are left out
+            int last = buckets.length - 1;
+            while (last >= 0 && buckets[last] == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(buckets[i]);
+            }
+            sb.append("]}");
+        }
+    }
+
+    /**
+     * Counters of one connection at the time of a snapshot
+     */
+    public static class StreamSnapshot {
+        public final String label;
+        public final long bytes;
+        public final long elapsedMs;
+        public final long bytesPerSecond;
+        public final long stalls;
+        public final long readerBlockedMs;
+        public final long writerBlockedMs;
+
+        StreamSnapshot(String label, long bytes, long elapsedMs, long bytesPerSecond, long stalls,
+                       long readerBlockedMs, long writerBlockedMs) {
+            this.label = label;
+            this.bytes = bytes;
+            this.elapsedMs = elapsedMs;
+            this.bytesPerSecond = bytesPerSecond;
+            this.stalls = stalls;
+            this.readerBlockedMs = readerBlockedMs;
+            this.writerBlockedMs = writerBlockedMs;
+        }
+    }
+
+    /**
+     * All counters at one point in time
+     */
+    public static class Snapshot {
+        public final long totalBytes;
+        public final long bytesPerSecond;
+        public final long files;
+        public final long stalls;
+        public final long stallMs;
+        public final long readerBlockedMs;
+        public final long writerBlockedMs;
+        public final HistogramSnapshot firstByteLatency;
+        public final HistogramSnapshot diskWriteLatency;
+        public final HistogramSnapshot fileLatency;
+        public final List<StreamSnapshot> streams;
+
+        Snapshot(long totalBytes, long bytesPerSecond, long files, long stalls, long stallMs,
+                 long readerBlockedMs, long writerBlockedMs, HistogramSnapshot firstByteLatency,
+                 HistogramSnapshot diskWriteLatency, HistogramSnapshot fileLatency, List<StreamSnapshot> streams) {
+            this.totalBytes = totalBytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.files = files;
+            this.stalls = stalls;
+            this.stallMs = stallMs;
+            this.readerBlockedMs = readerBlockedMs;
+            this.writerBlockedMs = writerBlockedMs;
+            this.firstByteLatency = firstByteLatency;
+            this.diskWriteLatency = diskWriteLatency;
+            this.fileLatency = fileLatency;
+            this.streams = streams;
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("{\"totalBytes\":").append(totalBytes)
+                    .append(",\"bytesPerSecond\":").append(bytesPerSecond)
+                    .append(",\"files\":").append(files)
+                    .append(",\"stalls\":").append(stalls)
+                    .append(",\"stallMs\":").append(stallMs)
+                    .append(",\"readerBlockedMs\":").append(readerBlockedMs)
+                    .append(",\"writerBlockedMs\":").append(writerBlockedMs)
+                    .append(",\"firstByteLatency\":");
+            firstByteLatency.appendJson(sb);
+            sb.append(",\"diskWriteLatency\":");
+            diskWriteLatency.appendJson(sb);
+            sb.append(",\"fileLatency\":");
+            fileLatency.appendJson(sb);
+            sb.append(",\"streams\":[");
+            for (int i = 0; i < streams.size(); i++) {
+                StreamSnapshot stream = streams.get(i);
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"label\":\"").append(escape(stream.label))
+                        .append("\",\"bytes\":").append(stream.bytes)
+                        .append(",\"elapsedMs\":").append(stream.elapsedMs)
+                        .append(",\"bytesPerSecond\":").append(stream.bytesPerSecond)
+                        .append(",\"stalls\":").append(stream.stalls)
+                        .append(",\"readerBlockedMs\":").append(stream.readerBlockedMs)
+                        .append(",\"writerBlockedMs\":").append(stream.writerBlockedMs)
+                        .append('}');
+            }
+            return sb.append("]}").toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d bytes, %d B/s, %d files, %d stalls, first byte p50 %d us, "
+                            + "disk write p99 %d us, file p99 %d us, %d streams", totalBytes, bytesPerSecond, files,
+                    stalls, firstByteLatency.percentileMicros(0.5), diskWriteLatency.percentileMicros(0.99),
+                    fileLatency.percentileMicros(0.99), streams.size());
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.blueorion.wifidirecttransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends through the shared pool to a single-file receiver over loopback
+ */
+public class ConnectionPoolTest {
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final Semaphore ended = new Semaphore(0);
+    private ServerSocket serverSocket;
+    private InetSocketAddress address;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        File destination = temp.newFolder("destination");
+        byte[] data = new byte[100_000];
+        new Random(1).nextBytes(data);
+        file = temp.newFile("IMG_0001.jpg");
+        Files.write(file.toPath(), data);
+
+        serverSocket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        executor.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    executor.execute(() -> {
+                        try (Socket socket = client) {
+                            SingleFileTransfer.receive(socket, destination);
+                        } catch (IOException e) {
+                            // Counted as ended all the same
+                        }
+                        ended.release();
+                    });
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Two senders share the pool. One of them closing its idle connections must leave the
+     * connection the other one used last open.
+     */
+    @Test
+    public void closesOnlyTheOwnersConnections() throws Exception {
+        ConnectionPool pool = ConnectionPool.get();
+        Object first = new Object();
+        Object second = new Object();
+
+        assertTrue(pool.send(first, address, file));
+        // Reuses the connection, which is left to the second sender from now on
+        assertTrue(pool.send(second, address, file));
+        pool.closeIdle(first);
+        assertTrue(pool.send(second, address, file));
+        assertEquals(1, accepted.get());
+
+        pool.closeIdle(second);
+        assertTrue("Connection not closed", ended.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(pool.send(second, address, file));
+        assertEquals(2, accepted.get());
+        pool.closeIdle(second);
+    }
+}
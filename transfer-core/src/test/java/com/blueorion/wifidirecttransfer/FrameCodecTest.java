@@ -0,0 +1,184 @@
+package com.blueorion.wifidirecttransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class FrameCodecTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void controlFramesRoundTrip() throws IOException {
+        byte[] hash = new byte[ContentHash.LENGTH];
+        new Random(1).nextBytes(hash);
+        ManifestEntry[] manifest = {
+                new ManifestEntry("IMG_0001.jpg", 3_000_000, 1_700_000_000_000L, hash),
+                new ManifestEntry("VID_0002.mp4", 5L << 32, 1_700_000_001_000L, hash)
+        };
+        List<Chunker.Chunk> chunks = Arrays.asList(
+                new Chunker.Chunk(0, 300_000, hash),
+                new Chunker.Chunk(300_000, 700_000, hash));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(bytes, null);
+        writer.write(Frame.HELLO, FrameCodec.hello(42, 3, Compression.CAPABILITY_DEFLATE));
+        writer.write(Frame.MANIFEST, FrameCodec.manifest(manifest));
+        writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(1, "VID_0002.mp4", 1024, (5L << 32) - 1024,
+                Compression.DEFLATE));
+        writer.write(Frame.CHUNKS, FrameCodec.chunkList(1, chunks));
+        writer.write(Frame.ACK, FrameCodec.chunkReply(new boolean[] {true, false}));
+        writer.write(Frame.TRAILER, hash);
+        writer.write(Frame.END, FrameCodec.end(true));
+        writer.write(Frame.END, FrameCodec.end(false));
+        writer.flush();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes.toByteArray()), null);
+        FrameCodec.Hello hello = FrameCodec.readHello(reader.read());
+        assertEquals(42, hello.sessionId);
+        assertEquals(3, hello.streamIndex);
+        assertEquals(Compression.CAPABILITY_DEFLATE, hello.capabilities);
+
+        ManifestEntry[] readManifest = FrameCodec.readManifest(reader.read());
+        assertEquals(manifest.length, readManifest.length);
+        for (int i = 0; i < manifest.length; i++) {
+            assertEquals(manifest[i].fileName, readManifest[i].fileName);
+            assertEquals(manifest[i].fileSize, readManifest[i].fileSize);
+            assertEquals(manifest[i].lastModified, readManifest[i].lastModified);
+            assertArrayEquals(manifest[i].hash, readManifest[i].hash);
+        }
+
+        FrameCodec.FileHeader header = FrameCodec.readFileHeader(reader.read());
+        assertEquals(1, header.index);
+        assertEquals("VID_0002.mp4", header.fileName);
+        assertEquals(1024, header.offset);
+        assertEquals((5L << 32) - 1024, header.length);
+        assertEquals(Compression.DEFLATE, header.codec);
+
+        FrameCodec.ChunkList chunkList = FrameCodec.readChunkList(reader.read());
+        assertEquals(1, chunkList.index);
+        assertEquals(1_000_000, chunkList.length());
+        assertEquals(300_000, chunkList.chunks.get(1).offset);
+        assertArrayEquals(new boolean[] {false, true}, FrameCodec.readChunkReply(reader.read(), 2));
+
+        assertArrayEquals(hash, FrameCodec.readTrailer(reader.read()));
+        assertTrue(FrameCodec.readEnd(reader.read()));
+        assertFalse(FrameCodec.readEnd(reader.read()));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unexpectedFrameIsRejected() throws IOException {
+        FrameCodec.readHello(new Frame(Frame.MANIFEST, FrameCodec.manifest(new ManifestEntry[0])));
+    }
+
+    @Test
+    public void dataRoundTripsThroughMemory() throws IOException {
+        File source = randomFile("source.bin", 3 * Frame.MAX_DATA_PAYLOAD + 12345, true);
+        for (byte codec : new byte[] {Compression.STORE, Compression.DEFLATE}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FrameWriter writer = new FrameWriter(bytes, null);
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                sendData(writer, in, codec, Compression.selectLevel(source));
+            }
+            writer.flush();
+
+            File received = new File(temp.getRoot(), "received-" + codec + ".bin");
+            FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes.toByteArray()), null);
+            receiveData(reader, received, source.length(), codec);
+            assertArrayEquals("codec " + codec, Files.readAllBytes(source.toPath()),
+                    Files.readAllBytes(received.toPath()));
+        }
+    }
+
+    /**
+     * Sends file data over a loopback socket and receives it through the zero-copy path
+     */
+    @Test
+    public void dataRoundTripsOverLoopback() throws Exception {
+        File source = randomFile("source.bin", 5 * Frame.MAX_DATA_PAYLOAD + 777, false);
+        File received = new File(temp.getRoot(), "received.bin");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Future<?> sent = executor.submit(() -> {
+                try (SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+                     FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                    FrameWriter writer = new FrameWriter(
+                            new BufferedOutputStream(channel.socket().getOutputStream()), channel);
+                    sendData(writer, in, Compression.STORE, 0);
+                    writer.write(Frame.TRAILER, ContentHash.hash(source));
+                    writer.flush();
+                }
+                return null;
+            });
+            try (SocketChannel channel = server.accept()) {
+                FrameReader reader = new FrameReader(
+                        new BufferedInputStream(channel.socket().getInputStream()), channel);
+                receiveData(reader, received, source.length(), Compression.STORE);
+                assertArrayEquals(ContentHash.hash(received), FrameCodec.readTrailer(reader.read()));
+            }
+            sent.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(received.toPath()));
+    }
+
+    private static void sendData(FrameWriter writer, FileChannel in, byte codec, int level) throws IOException {
+        long size = in.size();
+        long sent = 0;
+        while (sent < size) {
+            sent += codec == Compression.DEFLATE
+                    ? writer.writeCompressedData(in, sent, size - sent, level)
+                    : writer.writeData(in, sent, size - sent);
+        }
+    }
+
+    private static void receiveData(FrameReader reader, File target, long size, byte codec) throws IOException {
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long written = reader.readData(out, 0, size, codec, (position, length) -> { });
+            assertEquals(size, written);
+        }
+    }
+
+    private File randomFile(String name, int size, boolean compressible) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        if (compressible) {
+            // Long runs give the deflater something to do
+            for (int i = 0; i < size; i += 4096) {
+                Arrays.fill(data, i, Math.min(size, i + 2048), (byte) 'a');
+            }
+        }
+        File file = temp.newFile(name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,209 @@
+package com.blueorion.wifidirecttransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the selector host with a hand written client, to reach the cases a well behaved
+ * client does not: a client that does not read its replies, and frames cut into pieces
+ */
+public class NioSyncServerTest {
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Events events = new Events();
+    private File destination;
+    private NioSyncServer server;
+    private InetSocketAddress address;
+
+    @Before
+    public void setUp() throws IOException {
+        destination = temp.newFolder("destination");
+        StagingArea staging = new StagingArea(destination);
+        staging.prepare();
+        HostSessions sessions = new HostSessions(staging, executor, Compression.CAPABILITY_DEFLATE, null);
+        ProgressReporter progress = new ProgressReporter(CallbackExecutor.newSingleThread("test-progress"),
+                updates -> { }, ProgressReporter.DEFAULT_UPDATES_PER_SECOND);
+        server = new NioSyncServer(sessions, events, 1, new TransferMetrics(), progress);
+        address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends far more PINGs than the socket buffers hold while not reading the echoes, so
+     * the host runs into a full send buffer. Every echo must still arrive whole and in order.
+     */
+    @Test
+    public void keepsRepliesInOrderWhenSendBufferIsFull() throws Exception {
+        int pings = 1_500_000;
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(address);
+            FrameWriter writer = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()), null);
+            FrameReader reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), null);
+            openSession(writer, reader, new ManifestEntry[0]);
+
+            Future<?> sent = executor.submit(() -> {
+                for (int i = 0; i < pings; i++) {
+                    writer.write(Frame.PING, new byte[0]);
+                }
+                writer.flush();
+                return null;
+            });
+            // Let the echoes back up before taking any of them
+            Thread.sleep(3000);
+            for (int i = 0; i < pings; i++) {
+                reader.expect(Frame.PING);
+            }
+            sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            writer.write(Frame.END, FrameCodec.end(false));
+            writer.flush();
+            assertEquals(0, readRoundReply(reader));
+        }
+        awaitSession();
+    }
+
+    /**
+     * Sends a whole session in one go, cut into pieces of a few bytes, so frame headers and
+     * payloads arrive split across reads and behind frames the host is still working on
+     */
+    @Test
+    public void parsesFramesSplitAcrossReads() throws Exception {
+        File file = temp.newFile("IMG_0001.jpg");
+        byte[] data = new byte[300_000];
+        new Random(1).nextBytes(data);
+        Files.write(file.toPath(), data);
+        ManifestEntry entry = ManifestEntry.of(file);
+
+        ByteArrayOutputStream session = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(session, null);
+        writer.write(Frame.HELLO, FrameCodec.hello(1, 0, 0));
+        writer.write(Frame.MANIFEST, FrameCodec.manifest(new ManifestEntry[] {entry}));
+        writer.write(Frame.ACK, FrameCodec.encode(dos -> dos.writeInt(1)));
+        writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(0, entry.fileName, 0, data.length, Compression.STORE));
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            writer.writeData(in, 0, data.length);
+        }
+        writer.write(Frame.TRAILER, ContentHash.hash(file));
+        writer.write(Frame.END, FrameCodec.end(false));
+        writer.flush();
+        byte[] bytes = session.toByteArray();
+
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            int[] pieces = {1, 2, 3, 5, 7, 11, 13, 4096, 1, 65_537};
+            int position = 0;
+            for (int i = 0; position < bytes.length; i++) {
+                int length = Math.min(pieces[i % pieces.length], bytes.length - position);
+                out.write(bytes, position, length);
+                out.flush();
+                position += length;
+                if (i % 50 == 0) {
+                    // Gives the host a chance to read the pieces one by one
+                    Thread.sleep(1);
+                }
+            }
+
+            FrameReader reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), null);
+            DataInputStream reply = reader.expect(Frame.ACK).payload();
+            assertEquals(1, reply.readInt());
+            assertEquals(0, reply.readInt());
+            assertEquals(0, reply.readLong());
+            assertEquals(0, readRoundReply(reader));
+        }
+        awaitSession();
+        assertEquals(1, events.fileCount);
+        assertArrayEquals(data, Files.readAllBytes(new File(destination, entry.fileName).toPath()));
+    }
+
+    private static void openSession(FrameWriter writer, FrameReader reader, ManifestEntry[] manifest)
+            throws IOException {
+        writer.write(Frame.HELLO, FrameCodec.hello(1, 0, 0));
+        writer.write(Frame.MANIFEST, FrameCodec.manifest(manifest));
+        writer.flush();
+        reader.expect(Frame.ACK);
+        // One stream
+        writer.write(Frame.ACK, FrameCodec.encode(dos -> dos.writeInt(1)));
+        writer.flush();
+    }
+
+    /**
+     * @return Number of files to send again
+     */
+    private static int readRoundReply(FrameReader reader) throws IOException {
+        DataInputStream reply = reader.expect(Frame.ACK).payload();
+        int retry = reply.readInt();
+        reply.skipBytes(4 * retry);
+        assertEquals(0, reply.readInt());
+        return retry;
+    }
+
+    private void awaitSession() throws InterruptedException {
+        assertTrue("Session did not complete", events.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(events.error);
+    }
+
+    private static class Events implements NioSyncServer.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int fileCount = -1;
+        volatile String error;
+
+        @Override
+        public void onSessionStarted(String clientAddress, int totalFiles) {
+        }
+
+        @Override
+        public void onFileReceived(String clientAddress, String fileName, int filesReceived, int totalFiles) {
+        }
+
+        @Override
+        public void onSessionComplete(String clientAddress, int fileCount) {
+            this.fileCount = fileCount;
+            done.countDown();
+        }
+
+        @Override
+        public void onSessionError(String clientAddress, String errorMessage) {
+            error = errorMessage;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.blueorion.wifidirecttransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Syncs files from a client engine to a host engine over loopback, with either receive engine
+ */
+@RunWith(Parameterized.class)
+public class SyncEngineTest {
+    private static final String HOST = "127.0.0.1";
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final Queue<String> log = new ConcurrentLinkedQueue<>();
+
+    @Parameters(name = "{0}")
+    public static Object[] serverModes() {
+        return SyncEngine.ServerMode.values();
+    }
+
+    @Parameter
+    public SyncEngine.ServerMode serverMode;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final CallbackExecutor callbacks = CallbackExecutor.newSingleThread("test-callbacks");
+    private Path source;
+    private Path destination;
+    private SyncEngine host;
+    private SyncEngine client;
+    private Events hostEvents;
+    private Events clientEvents;
+
+    @BeforeClass
+    public static void captureLog() {
+        TransferLog.setSink((priority, tag, message, error) -> log.add(tag + ": " + message));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        log.clear();
+        source = temp.newFolder("source").toPath();
+        destination = temp.newFolder("destination").toPath();
+
+        hostEvents = new Events();
+        host = new SyncEngine(temp.newFolder("host-source").toPath(), destination,
+                temp.newFolder("host-state").toPath(), callbacks);
+        host.setServerMode(serverMode);
+        host.setListener(hostEvents);
+
+        clientEvents = new Events();
+        client = new SyncEngine(source, temp.newFolder("client-destination").toPath(),
+                temp.newFolder("client-state").toPath(), callbacks);
+        // Random data does not compress, and stored data keeps the byte counts exact
+        client.setCompressionEnabled(false);
+        client.setListener(clientEvents);
+    }
+
+    @After
+    public void tearDown() {
+        SyncSession session = client.getSyncSession();
+        if (session != null) {
+            session.cancel();
+        }
+        host.stopServer();
+    }
+
+    @Test
+    public void syncsFilesToHost() throws Exception {
+        List<File> files = Arrays.asList(
+                randomFile("IMG_0001.jpg", 2_500_000),
+                randomFile("IMG_0002.jpg", 700_000),
+                randomFile("VID_0003.mp4", 6_000_000));
+
+        startHost();
+        sync();
+
+        assertEquals(files.size(), clientEvents.fileCount);
+        assertEquals(files.size(), hostEvents.fileCount);
+        for (File file : files) {
+            assertReceived(file);
+        }
+    }
+
+    @Test
+    public void resumesFromTruncatedPartFile() throws Exception {
+        File file = randomFile("VID_0001.mp4", 6_000_000);
+        int staged = 2_000_000;
+        stage(file.getName(), Arrays.copyOf(Files.readAllBytes(file.toPath()), staged));
+
+        startHost();
+        sync();
+
+        assertReceived(file);
+        assertEquals(file.length() - staged, host.getHostMetrics().snapshot().totalBytes);
+    }
+
+    @Test
+    public void retriesFileAfterDigestMismatch() throws Exception {
+        File file = randomFile("VID_0001.mp4", 3_000_000);
+        // A staged prefix that does not match the file fails verification once the rest arrives
+        int staged = 1_000_000;
+        stage(file.getName(), new byte[staged]);
+
+        startHost();
+        sync();
+
+        assertReceived(file);
+        assertEquals(1, clientEvents.fileCount);
+        assertEquals(file.length() - staged + file.length(), host.getHostMetrics().snapshot().totalBytes);
+    }
+
+    @Test
+    public void packsSmallFiles() throws Exception {
+        Random random = new Random(7);
+        File[] files = new File[20];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = randomFile("IMG_" + i + ".jpg", 1000 + random.nextInt(FilePack.FILE_THRESHOLD - 1000));
+        }
+
+        startHost();
+        sync();
+
+        assertEquals(files.length, hostEvents.fileCount);
+        for (File file : files) {
+            assertReceived(file);
+        }
+        assertTrue("No PACK frame sent", log.stream().anyMatch(line -> line.contains("in one pack")));
+    }
+
+    @Test
+    public void sendsOnlyChunksTheHostLacks() throws Exception {
+        host.setDedupEnabled(true);
+        client.setDedupEnabled(true);
+        // The host holds an earlier version of the file, already in its chunk index
+        byte[] original = new byte[12 * 1024 * 1024];
+        new Random(3).nextBytes(original);
+        Files.write(destination.resolve("VID_0001.mp4"), original);
+        StagingArea staging = new StagingArea(destination.toFile());
+        staging.prepare();
+        ChunkIndex index = new ChunkIndex(destination.toFile(), new File(staging.getStagingDir(), "chunks.idx"));
+        index.indexFile(destination.resolve("VID_0001.mp4").toFile());
+        index.save();
+
+        byte[] edited = original.clone();
+        Arrays.fill(edited, 0, 512 * 1024, (byte) 1);
+        File file = source.resolve("VID_0001_edited.mp4").toFile();
+        Files.write(file.toPath(), edited);
+
+        startHost();
+        sync();
+
+        assertReceived(file);
+        long received = host.getHostMetrics().snapshot().totalBytes;
+        assertTrue("Received " + received + " of " + edited.length + " bytes", received < edited.length / 2);
+    }
+
+    /**
+     * Opens a further stream whose HELLO reaches the host before the first stream's stream
+     * count, as it may when the client opens its streams right after announcing the count
+     */
+    @Test
+    public void joinsStreamThatArrivesBeforeStreamCount() throws Exception {
+        File file = randomFile("IMG_0001.jpg", 300_000);
+        ManifestEntry entry = ManifestEntry.of(file);
+        long sessionId = 42;
+
+        startHost();
+        try (Socket controlSocket = new Socket(HOST, SyncEngine.PORT);
+             Socket furtherSocket = new Socket(HOST, SyncEngine.PORT)) {
+            FrameWriter control = new FrameWriter(new BufferedOutputStream(controlSocket.getOutputStream()), null);
+            FrameReader controlReader = new FrameReader(new BufferedInputStream(controlSocket.getInputStream()), null);
+            control.write(Frame.HELLO, FrameCodec.hello(sessionId, 0, 0));
+            control.write(Frame.MANIFEST, FrameCodec.manifest(new ManifestEntry[] {entry}));
+            control.flush();
+            controlReader.expect(Frame.ACK);
+
+            FrameWriter further = new FrameWriter(new BufferedOutputStream(furtherSocket.getOutputStream()), null);
+            FrameReader furtherReader = new FrameReader(new BufferedInputStream(furtherSocket.getInputStream()), null);
+            further.write(Frame.HELLO, FrameCodec.hello(sessionId, 1, 0));
+            further.flush();
+            // Lets the host take the HELLO before the count arrives
+            Thread.sleep(200);
+            control.write(Frame.ACK, FrameCodec.encode(dos -> dos.writeInt(2)));
+            control.write(Frame.END, FrameCodec.end(false));
+            control.flush();
+
+            further.write(Frame.FILE_HEADER, FrameCodec.fileHeader(0, entry.fileName, 0, entry.fileSize,
+                    Compression.STORE));
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                further.writeData(in, 0, entry.fileSize);
+            }
+            further.write(Frame.TRAILER, ContentHash.hash(file));
+            further.write(Frame.END, FrameCodec.end(false));
+            further.flush();
+
+            assertEquals(0, controlReader.expect(Frame.ACK).payload().readInt());
+            assertEquals(0, furtherReader.expect(Frame.ACK).payload().readInt());
+        }
+        assertTrue("Host did not finish", hostEvents.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(hostEvents.error);
+        assertReceived(file);
+    }
+
+    @Test
+    public void dropsSenderThatStallsInsideFile() throws Exception {
+        stallSenderInsideFileThenResume();
+    }
+
+    @Test
+    public void dropsSenderThatStallsInsideFileWithoutPipeline() throws Exception {
+        host.setReceivePipelineEnabled(false);
+        stallSenderInsideFileThenResume();
+    }
+
+    /**
+     * Sends half of a DATA frame and then goes silent without closing the connection, as a
+     * client does when the link drops mid file. The host must drop the stream after its idle
+     * timeout, keep what it received, and take the file again from there on the next sync.
+     */
+    private void stallSenderInsideFileThenResume() throws Exception {
+        File file = randomFile("VID_0001.mp4", 3_000_000);
+        ManifestEntry entry = ManifestEntry.of(file);
+        byte[] data = Files.readAllBytes(file.toPath());
+        int frameLength = 1_000_000;
+
+        host.setIdleTimeout(1000);
+        startHost();
+        try (Socket socket = new Socket(HOST, SyncEngine.PORT)) {
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            DataOutputStream dos = new DataOutputStream(out);
+            FrameWriter writer = new FrameWriter(out, null);
+            FrameReader reader = new FrameReader(new BufferedInputStream(socket.getInputStream()), null);
+            writer.write(Frame.HELLO, FrameCodec.hello(1, 0, 0));
+            writer.write(Frame.MANIFEST, FrameCodec.manifest(new ManifestEntry[] {entry}));
+            writer.flush();
+            reader.expect(Frame.ACK);
+            writer.write(Frame.ACK, FrameCodec.encode(d -> d.writeInt(1)));
+            writer.write(Frame.FILE_HEADER, FrameCodec.fileHeader(0, entry.fileName, 0, entry.fileSize,
+                    Compression.STORE));
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                writer.writeData(in, 0, frameLength);
+            }
+            writer.flush();
+            dos.writeByte(Frame.DATA);
+            dos.writeInt(frameLength);
+            dos.write(data, frameLength, frameLength / 2);
+            dos.flush();
+
+            assertTrue("Host kept the stalled stream", hostEvents.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertNotNull(hostEvents.error);
+        }
+
+        long staged = new StagingArea(destination.toFile()).resumeOffset(file.getName(), file.length());
+        assertTrue("Nothing staged", staged > 0);
+        long receivedBefore = host.getHostMetrics().snapshot().totalBytes;
+        hostEvents = new Events();
+        host.setListener(hostEvents);
+        sync();
+
+        assertReceived(file);
+        assertEquals(file.length() - staged, host.getHostMetrics().snapshot().totalBytes - receivedBefore);
+    }
+
+    private void startHost() throws InterruptedException {
+        host.startServer(HOST);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!host.isServerRunning()) {
+            assertTrue("Host did not start", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void sync() throws InterruptedException {
+        client.startClientSync(HOST);
+        assertTrue("Client did not finish", clientEvents.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue("Host did not finish", hostEvents.done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(clientEvents.error);
+        assertNull(hostEvents.error);
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(name.hashCode()).nextBytes(data);
+        File file = source.resolve(name).toFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * Leaves data in the host's staging area as an interrupted transfer would
+     */
+    private void stage(String fileName, byte[] data) throws IOException {
+        StagingArea staging = new StagingArea(destination.toFile());
+        staging.prepare();
+        Files.write(staging.partFile(fileName).toPath(), data);
+    }
+
+    private void assertReceived(File file) throws IOException {
+        assertArrayEquals(file.getName(), Files.readAllBytes(file.toPath()),
+                Files.readAllBytes(destination.resolve(file.getName())));
+    }
+
+    /**
+     * Records how a sync ended, on the client or on the host
+     */
+    private static class Events implements SyncEngine.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int fileCount = -1;
+        volatile String error;
+
+        @Override
+        public void onTransferProgress(int progress, int total) {
+        }
+
+        @Override
+        public void onFileTransferred(String fileName) {
+        }
+
+        @Override
+        public void onFileSkipped(String fileName) {
+        }
+
+        @Override
+        public void onFileProgress(List<ProgressReporter.Update> updates) {
+        }
+
+        @Override
+        public void onTransferComplete(int fileCount) {
+            this.fileCount = fileCount;
+            done.countDown();
+        }
+
+        @Override
+        public void onTransferError(String errorMessage) {
+            error = errorMessage;
+            done.countDown();
+        }
+
+        @Override
+        public void onClientProgress(String clientAddress, int progress, int total) {
+        }
+
+        @Override
+        public void onClientComplete(String clientAddress, int fileCount) {
+            this.fileCount = fileCount;
+            done.countDown();
+        }
+
+        @Override
+        public void onClientError(String clientAddress, String errorMessage) {
+            error = errorMessage;
+            done.countDown();
+        }
+
+        @Override
+        public void onFileSyncStarted() {
+        }
+
+        @Override
+        public void onFileSyncProgress(int progress) {
+        }
+
+        @Override
+        public void onFileSyncCompleted() {
+        }
+    }
+}